@@ -11,6 +11,86 @@ function DataBridge(graph) {
 
 var API_ROOT = "/api/v2";
 
+// binary point format of /getpoints, see BinaryPointWriter in MsDataServer.java
+var POINTS_MAGIC = "MSPB";
+var POINTS_VERSION = 1;
+var POINTS_BYTES_PER_POINT = 8 + 8 + 4 + 4 + 4;
+
+// typed arrays use the host's byte order, the format is little-endian
+var LITTLE_ENDIAN_HOST = new Uint8Array(new Uint16Array([1]).buffer)[0] === 1;
+
+// Decodes a binary /getpoints response into columns of typed arrays:
+// { length, id: Int32Array, trace: Int32Array, mz: Float64Array, rt: Float32Array, intensity: Float64Array }
+// Throws if the response is not in the expected format or is truncated.
+DataBridge.decodePoints = function(buffer) {
+    var view = new DataView(buffer);
+    var magic = String.fromCharCode(view.getUint8(0), view.getUint8(1), view.getUint8(2), view.getUint8(3));
+    if (magic !== POINTS_MAGIC || view.getUint16(4, true) !== POINTS_VERSION) {
+        throw new Error("Unsupported point format");
+    }
+
+    // locate the blocks, up to the terminating empty block
+    var blocks = [];
+    var total = 0;
+    var offset = 8;
+    while (true) {
+        var count = view.getUint32(offset, true);
+        offset += 8;
+        if (count === 0) {
+            break;
+        }
+        blocks.push({ offset: offset, count: count });
+        total += count;
+        // odd counts are padded to keep the next block 8 byte aligned
+        offset += count * POINTS_BYTES_PER_POINT + (count % 2) * 4;
+    }
+    if (offset > buffer.byteLength) {
+        throw new RangeError("Truncated point data");
+    }
+
+    var points = {
+        length: total,
+        id: new Int32Array(total),
+        trace: new Int32Array(total),
+        mz: new Float64Array(total),
+        rt: new Float32Array(total),
+        intensity: new Float64Array(total),
+    };
+
+    // copy each block's columns into place
+    var start = 0;
+    blocks.forEach(function(block) {
+        var n = block.count;
+        var o = block.offset;
+        if (LITTLE_ENDIAN_HOST) {
+            points.mz.set(new Float64Array(buffer, o, n), start);
+            points.intensity.set(new Float64Array(buffer, o + 8*n, n), start);
+            points.id.set(new Int32Array(buffer, o + 16*n, n), start);
+            points.trace.set(new Int32Array(buffer, o + 20*n, n), start);
+            points.rt.set(new Float32Array(buffer, o + 24*n, n), start);
+        } else {
+            for (var i = 0; i < n; i++) {
+                points.mz[start + i] = view.getFloat64(o + 8*i, true);
+                points.intensity[start + i] = view.getFloat64(o + 8*n + 8*i, true);
+                points.id[start + i] = view.getInt32(o + 16*n + 4*i, true);
+                points.trace[start + i] = view.getInt32(o + 20*n + 4*i, true);
+                points.rt[start + i] = view.getFloat32(o + 24*n + 4*i, true);
+            }
+        }
+        start += n;
+    });
+
+    return points;
+};
+
+// Decodes a text message from an ArrayBuffer response
+DataBridge.decodeText = function(buffer) {
+    if (!buffer) {
+        return "";
+    }
+    return String.fromCharCode.apply(null, new Uint8Array(buffer));
+};
+
 // wait for a file to load on the server
 DataBridge.prototype.openFileWaitLoop = function() {
     var self = this;
@@ -113,29 +193,43 @@ DataBridge.prototype.requestPointsFromServer = function() {
         this.updateCommStatus("Requesting points...");
 
         var self = this;
-        // send HTTP GET request, accept JSON
-        $.getJSON(API_ROOT + "/getpoints", params)
-        
-            // HTTP status codes 2XX
-            .done(function(data, status, jqXHR) {
-                switch(jqXHR.status){
-                    case 200:
-                        self.queuePlotPoints(data);
-                        break;
-                    case 204: // "No content"
-                        self.updateCommStatus("No file loaded");
+        // send HTTP GET request, accept the binary point format
+        var xhr = new XMLHttpRequest();
+        xhr.open("GET", API_ROOT + "/getpoints?" + $.param(params));
+        xhr.setRequestHeader("Accept", "application/octet-stream");
+        xhr.responseType = "arraybuffer";
+
+        xhr.onload = function() {
+            switch(xhr.status){
+                case 200:
+                    var points;
+                    try {
+                        points = DataBridge.decodePoints(xhr.response);
+                    } catch (e) {
+                        self.updateCommStatus("Invalid points received");
                         break;
-                    default:
+                    }
+                    self.queuePlotPoints(points);
+                    break;
+                case 204: // "No content"
+                    self.updateCommStatus("No file loaded");
+                    break;
+                default:
+                    // HTTP status codes 4XX/5XX carry a text message
+                    if (xhr.status >= 400) {
+                        self.updateCommStatus(DataBridge.decodeText(xhr.response));
+                    } else {
                         self.updateCommStatus("No points received");
-                        break;
-                }
+                    }
+                    break;
+            }
+        };
 
-            })
-            
-            // HTTP status codes 4XX/5XX
-            .fail(function(jqXHR, textStatus, errorThrown) {
-                self.updateCommStatus(jqXHR.responseText);
-            });
+        xhr.onerror = function() {
+            self.updateCommStatus("Could not reach the server");
+        };
+
+        xhr.send();
 
         // also update the trace map
         $.getJSON(API_ROOT + "/gettracemap")
@@ -16,9 +16,21 @@ MsGraph.prototype.plotPoints = function(points) {
     var zoom = Math.max(this.viewRange.mzrange / this.dataRange.mzrange, this.viewRange.rtrange / this.dataRange.rtrange);
     this.CYLINDER_RADIUS_CURRENT = (MsGraph.CYLINDER_RADIUS_MAX - MsGraph.CYLINDER_RADIUS_MIN) * (1-zoom) + MsGraph.CYLINDER_RADIUS_MIN;
     
-    // Plots points on the graph immediately. points should be an array of coordinate arrays.
+    // Plots points on the graph immediately. points should be an array of coordinate arrays,
+    // or columns of typed arrays as decoded by DataBridge.decodePoints.
+    var columnar = points.mz !== undefined;
+    var point = [];
     for (var i = 0; i < points.length && this.linesArray.length < this.POINTS_PLOTTED_LIMIT; i++) {
-        this.plotPoint(points[i]);
+        if (columnar) {
+            point[0] = points.id[i];
+            point[1] = points.trace[i];
+            point[2] = points.mz[i];
+            point[3] = points.rt[i];
+            point[4] = points.intensity[i];
+            this.plotPoint(point);
+        } else {
+            this.plotPoint(points[i]);
+        }
     }
     
     this.plotJumpMarker();
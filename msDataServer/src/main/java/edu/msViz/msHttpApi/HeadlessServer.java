@@ -4,6 +4,9 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import edu.msViz.mzTree.MzTree;
+import edu.msViz.mzTree.storage.BlockCodec;
+import edu.msViz.mzTree.storage.PointFormat;
+import edu.msViz.mzTree.storage.StorageFacadeFactory;
 import edu.msViz.mzTree.summarization.SummarizationStrategyFactory.Strategy;
 
 public class HeadlessServer {
@@ -16,7 +19,14 @@ public class HeadlessServer {
 	 * 
 	 * Example usage:
 	 * java -cp /path/to/msDataServer-1.0.jar edu.msViz.msHttpApi.HeadlessServer convert input_file.mzML output_file.mzTree
+	 * java -cp /path/to/msDataServer-1.0.jar edu.msViz.msHttpApi.HeadlessServer convert input_file.mzML output_file.mzTree compact
+	 * java -cp /path/to/msDataServer-1.0.jar edu.msViz.msHttpApi.HeadlessServer convert input_file.mzML output_file.mzTree compressed
 	 * java -cp /path/to/msDataServer-1.0.jar edu.msViz.msHttpApi.HeadlessServer server file.mzTree 8000 
+	 * java -cp /path/to/msDataServer-1.0.jar edu.msViz.msHttpApi.HeadlessServer server file.mzTree 8000 mapped
+	 * 
+	 * The optional 'compact' argument writes the point file in the Compact point format,
+	 * 'compressed' additionally deflates each leaf block.
+	 * The optional 'mapped' argument accesses the point file through memory mappings.
 	 * 
 	 */
 	public static void main(String[] args) {
@@ -32,9 +42,12 @@ public class HeadlessServer {
 			}
 			Path sourcePath = Paths.get(args[1]);
 			Path destPath = Paths.get(args[2]);
+			String formatArg = (args.length > 3) ? args[3] : "";
+			boolean compressed = formatArg.equals("compressed");
+			PointFormat format = (compressed || formatArg.equals("compact")) ? PointFormat.Compact : PointFormat.Record;
 			
 			try {
-				convert(sourcePath, destPath);
+				convert(sourcePath, destPath, format, compressed ? BlockCodec.Deflate : BlockCodec.None);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -54,8 +67,10 @@ public class HeadlessServer {
 				return;
 			}
 			
+			boolean mapped = args.length > 3 && args[3].equals("mapped");
+			
 			try {
-				startServer(filePath, port);
+				startServer(filePath, port, mapped);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -63,7 +78,13 @@ public class HeadlessServer {
 	}
 	
 	public static void convert(Path sourceFilePath, Path destFilePath) throws Exception {
+		convert(sourceFilePath, destFilePath, PointFormat.Record, BlockCodec.None);
+	}
+	
+	public static void convert(Path sourceFilePath, Path destFilePath, PointFormat format, BlockCodec codec) throws Exception {
 		MzTree mzTree = new MzTree();
+		mzTree.setPointFormat(format);
+		mzTree.setBlockCodec(codec);
 		mzTree.setConvertDestinationProvider(suggestedPath -> {
 			return destFilePath;
 		});
@@ -71,7 +92,14 @@ public class HeadlessServer {
 	}
 	
 	public static void startServer(Path filePath, int port) throws Exception {
+		startServer(filePath, port, false);
+	}
+	
+	public static void startServer(Path filePath, int port, boolean mapped) throws Exception {
 		MzTree mzTree = new MzTree();
+		if (mapped) {
+			mzTree.setStorageInterfaceChoice(StorageFacadeFactory.Facades.HybridMapped);
+		}
 		mzTree.load(filePath.toString(), Strategy.WeightedStriding);
 		
 		MsDataServer dataServer = new MsDataServer();
@@ -10,7 +10,15 @@ import com.google.gson.JsonObject;
 import edu.msViz.mzTree.*;
 import edu.msViz.xnet.dataTypes.IsotopeTrace;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -20,6 +28,9 @@ import java.util.Optional;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.stream.Collectors;
 
 import spark.Request;
@@ -32,6 +43,12 @@ import spark.Service;
 public final class MsDataServer {
 
     private static final Logger LOGGER = Logger.getLogger(MsDataServer.class.getName());
+
+    // size of the buffer between streamed responses and the servlet output stream
+    private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+    // content type of the binary point format
+    private static final String BINARY_CONTENT_TYPE = "application/octet-stream";
     
     // path to API root
     private static final String API_ROOT = "/api/v2";
@@ -43,6 +60,9 @@ public final class MsDataServer {
     private final ReentrantLock updateSaveLock = new ReentrantLock(true);
 
     private CommandStack commandStack;
+
+    // identifies the current mzTree in ETags, changed whenever a tree is set
+    private volatile String treeEpoch = newTreeEpoch();
     
     public int getPort() {
         return spark.port();
@@ -93,6 +113,9 @@ public final class MsDataServer {
         spark.post(API_ROOT + "/updatesegmentation", this::updateSegmentation);
         
         spark.post(API_ROOT + "/getenvelopeinfo", this::getEnvelopeInfo);
+
+        // gzip the API's string responses for clients that accept it (/getpoints encodes its own)
+        spark.after(API_ROOT + "/*", this::compressResponse);
         
     } // END startServer
 
@@ -101,6 +124,7 @@ public final class MsDataServer {
             updateSaveLock.lock();
             this.mzTree = newTree;
             this.commandStack = new CommandStack();
+            this.treeEpoch = newTreeEpoch();
         }
         finally {
             updateSaveLock.unlock();
@@ -121,6 +145,19 @@ public final class MsDataServer {
      *      rtmin -> float : lower rt query bound
      *      rtmax -> float : upper rt query bound
      *      numpoints -> int : number of points to return
+     *      parallel -> boolean (optional) : with numpoints 0, read the leaves of each
+     *                  streamed block in parallel (batch callers)
+     *
+     * HTTP HEADERS:
+     *      Accept -> application/octet-stream (optional) : respond with the binary
+     *                  columnar format of BinaryPointWriter instead of JSON
+     *      Accept-Encoding -> gzip, deflate (optional) : compress the response
+     *      If-None-Match -> ETag (optional) : respond 304 Not Modified if the ETag
+     *                  of the response would match, i.e. neither the query nor the
+     *                  segmentation have changed since
+     *
+     * Responses with numpoints 0 are streamed from the leaf level block by block,
+     * so neither time to first byte nor heap use grows with the size of the range
      * 
      * @param request Spark request object containing HTTP request components
      * @param response Spark response object returned to requester
@@ -153,6 +190,7 @@ public final class MsDataServer {
                 double mzmin, mzmax;
                 float rtmin, rtmax;
                 int numPoints;
+                boolean parallel;
                 try{
                     // parse paramaters from request url
                     mzmin = Double.parseDouble(request.queryParams("mzmin"));
@@ -161,8 +199,8 @@ public final class MsDataServer {
                     rtmax = Float.parseFloat(request.queryParams("rtmax"));
                     numPoints = Integer.parseInt(request.queryParams("numpoints"));
 
-                    // numPoints == 0 means no limit
-                    numPoints = numPoints == 0 ? Integer.MAX_VALUE : numPoints;
+                    // parallel leaf reads only apply to unlimited queries
+                    parallel = numPoints == 0 && Boolean.parseBoolean(request.queryParams("parallel"));
                 }
                 // catch cases where parameter not included
                 catch (NullPointerException ex)
@@ -178,20 +216,51 @@ public final class MsDataServer {
                     return "Invalid data range requested.";
                 }
 
-                // query the mzTree for points within the bounds
-                //long start = System.currentTimeMillis();
-
-                List<MsDataPoint> queryResults = mzTree.query(mzmin, mzmax, rtmin, rtmax, numPoints);
-
-                // serialize query results as JSON
-
-                StringBuilder queryResultsJSON = JSONify(queryResults,numPoints,true);
+                // negotiate the representation
+                boolean binary = acceptsBinary(request);
+                String encoding = negotiateEncoding(request.headers("Accept-Encoding"));
+
+                // the response only changes with the query and the segmentation,
+                // clients revalidate cached responses through their ETag
+                String etag = this.pointsETag(mzmin, mzmax, rtmin, rtmax, numPoints, binary, encoding);
+                response.header("ETag", etag);
+                response.header("Cache-Control", "no-cache");
+                response.header("Vary", "Accept, Accept-Encoding");
+                if(etagMatches(request.headers("If-None-Match"), etag)) {
+                    response.status(HttpServletResponse.SC_NOT_MODIFIED);
+                    return "";
+                }
 
-                // respond with HTTP 200 OK
+                // respond with HTTP 200 OK, points are written straight to the response
                 response.status(HttpServletResponse.SC_OK);
+                response.type(binary ? BINARY_CONTENT_TYPE : "application/json");
+                if(encoding != null)
+                    response.header("Content-Encoding", encoding);
+
+                try (OutputStream out = encodedStream(response.raw().getOutputStream(), encoding)) {
+                    PointWriter writer = binary ? new BinaryPointWriter(out) : new JSONPointWriter(out, true);
+
+                    if(numPoints == 0) {
+                        // numPoints == 0 means no limit, stream the leaf level
+                        try(PointCursor cursor = mzTree.stream(mzmin, mzmax, rtmin, rtmax, parallel)) {
+                            while(cursor.next())
+                                writer.write(cursor.block());
+                        }
+                    } else {
+                        // summarized results are bounded by numPoints
+                        PointBlock queryResults = mzTree.queryColumns(mzmin, mzmax, rtmin, rtmax, numPoints);
+                        if(queryResults != null)
+                            writer.write(queryResults);
+                    }
+
+                    writer.finish();
+                } catch (IOException ex) {
+                    // the status has been sent, the client sees a truncated response
+                    LOGGER.log(Level.WARNING, "Failed to stream query results", ex);
+                }
 
-                // format points and traceMap as single JSON object
-                return queryResultsJSON.toString();
+                // body already written
+                return "";
 
             // unknown status type
             default:
@@ -591,12 +660,20 @@ public final class MsDataServer {
             return "Could not interpret ids as integers";
         }
         
-        List<IsotopeTrace> traces = mzTree.recompileTraces();
+        // compiled trace values are maintained by segmentation edits
+        List<IsotopeTrace> traces;
+        updateSaveLock.lock();
+        try {
+            traces = mzTree.getCompiledTraces();
+        } finally {
+            updateSaveLock.unlock();
+        }
         Map<Integer, IsotopeTrace> tracesById = traces.stream().collect(Collectors.toMap(t -> t.traceID, t -> t));
         
 
         mzTree.traceMap.forEach((tid, eid) -> {
-            if (envelopeMap.containsKey(eid)) {
+            // traces without points have no compiled values
+            if (envelopeMap.containsKey(eid) && tracesById.containsKey(tid)) {
                 envelopeMap.get(eid).add(tracesById.get(tid));
             }
         });
@@ -648,45 +725,346 @@ public final class MsDataServer {
     *****************************************************/
     
     /**
-     * Serializes a portio of an array of MsDataPoint objects into JSON format
-     * @param msData Mass spec dataset
-     * @param numPoints Number of points to return
-     * @param includeIDs If True traceID and envelopeID are included in serialization
+     * Creates a token identifying a newly set mzTree, unique across server runs
+     * @return epoch token
      */
-    private static StringBuilder JSONify(List<MsDataPoint> msData, int numPoints, boolean includeIDs)
+    private static String newTreeEpoch()
     {
-        // numPoints == 0 implies no limit
-        if(numPoints == 0)
-            numPoints = Integer.MAX_VALUE;
-        
-        StringBuilder JSON = new StringBuilder("[");
-        if(!includeIDs)
-            for(int i = 0; i < numPoints && i < msData.size(); i++)
-            {
-                MsDataPoint curPoint = msData.get(i);
-                JSON.append("[").append(curPoint.mz).append(",")
-                        .append(curPoint.rt).append(",")
-                        .append(curPoint.intensity).append("],");
+        return Long.toString(System.currentTimeMillis(), 36) + Long.toString(System.nanoTime() & 0xFFFFFF, 36);
+    }
+
+    /**
+     * Builds the strong ETag of a /getpoints response. The ETag covers everything
+     * the response bytes depend on: the tree, its segmentation version, the
+     * query and the negotiated representation
+     * @param mzmin lower mz query bound
+     * @param mzmax upper mz query bound
+     * @param rtmin lower rt query bound
+     * @param rtmax upper rt query bound
+     * @param numPoints number of points requested, 0 for no limit
+     * @param binary if true the response uses the binary point format
+     * @param encoding content encoding of the response, null if uncompressed
+     * @return quoted ETag
+     */
+    private String pointsETag(double mzmin, double mzmax, float rtmin, float rtmax, int numPoints, boolean binary, String encoding)
+    {
+        StringBuilder etag = new StringBuilder("\"");
+        etag.append(this.treeEpoch).append('-')
+                .append(this.mzTree.getSegmentationVersion()).append('-')
+                .append(Long.toString(Double.doubleToLongBits(mzmin), 36)).append('-')
+                .append(Long.toString(Double.doubleToLongBits(mzmax), 36)).append('-')
+                .append(Integer.toString(Float.floatToIntBits(rtmin), 36)).append('-')
+                .append(Integer.toString(Float.floatToIntBits(rtmax), 36)).append('-')
+                .append(numPoints).append('-')
+                .append(binary ? 'b' : 'j');
+        if(encoding != null)
+            etag.append('-').append(encoding);
+        return etag.append('"').toString();
+    }
+
+    /**
+     * Checks an If-None-Match header against an ETag
+     * @param ifNoneMatch header value, null if absent
+     * @param etag quoted ETag of the response
+     * @return True if the header lists the ETag or is "*"
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag)
+    {
+        if(ifNoneMatch == null)
+            return false;
+
+        for(String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+
+            // If-None-Match uses the weak comparison
+            if(candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if(candidate.equals("*") || candidate.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Picks the content encoding of a response from the Accept-Encoding header,
+     * preferring gzip over deflate
+     * @param acceptEncoding header value, null if absent
+     * @return "gzip", "deflate" or null for an uncompressed response
+     */
+    private static String negotiateEncoding(String acceptEncoding)
+    {
+        if(acceptEncoding == null)
+            return null;
+
+        boolean gzip = false, deflate = false;
+        for(String coding : acceptEncoding.split(",")) {
+            // coding;q=value, a zero quality refuses the coding
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim().toLowerCase();
+            boolean refused = false;
+            for(int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) == 0;
+                    } catch(NumberFormatException ex) {
+                        refused = true;
+                    }
+                }
             }
-                   
+
+            if(refused)
+                continue;
+            if(name.equals("gzip"))
+                gzip = true;
+            else if(name.equals("deflate"))
+                deflate = true;
+        }
+
+        return gzip ? "gzip" : deflate ? "deflate" : null;
+    }
+
+    /**
+     * Wraps a response output stream with the negotiated content encoding.
+     * Points are compressed for speed rather than size
+     * @param out response output stream
+     * @param encoding "gzip", "deflate" or null
+     * @return stream to write the response body to, finished by close()
+     * @throws IOException
+     */
+    private static OutputStream encodedStream(OutputStream out, String encoding) throws IOException
+    {
+        if("gzip".equals(encoding))
+            return new GZIPOutputStream(out, RESPONSE_BUFFER_SIZE) {{ def.setLevel(Deflater.BEST_SPEED); }};
+        else if("deflate".equals(encoding))
+            // HTTP deflate is the zlib format written by DeflaterOutputStream
+            return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), RESPONSE_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
         else
-            for(int i = 0; i < numPoints && i < msData.size(); i++)
+            return out;
+    }
+
+    /**
+     * After filter compressing the API's string responses. Spark gzips a
+     * response body it serializes when the response declares the encoding;
+     * responses already written to the output stream are committed and skipped
+     * @param request Spark request object
+     * @param response Spark response object
+     */
+    private void compressResponse(Request request, Response response)
+    {
+        HttpServletResponse raw = response.raw();
+        if(raw.isCommitted() || raw.getHeader("Content-Encoding") != null)
+            return;
+
+        // responses without a body
+        if(raw.getStatus() == HttpServletResponse.SC_NO_CONTENT || raw.getStatus() == HttpServletResponse.SC_NOT_MODIFIED)
+            return;
+
+        if("gzip".equals(negotiateEncoding(request.headers("Accept-Encoding"))))
+            response.header("Content-Encoding", "gzip");
+    }
+
+    /**
+     * Checks whether a request accepts the binary point format
+     * @param request Spark request object
+     * @return True if the Accept header lists BINARY_CONTENT_TYPE
+     */
+    private static boolean acceptsBinary(Request request)
+    {
+        String accept = request.headers("Accept");
+        return accept != null && accept.contains(BINARY_CONTENT_TYPE);
+    }
+
+    /**
+     * Serializes columnar blocks of points to a response, one block at a time,
+     * without holding the whole response in memory
+     */
+    private interface PointWriter
+    {
+        /**
+         * Appends every point of a block to the response
+         * @param msData block of points to serialize
+         * @throws IOException
+         */
+        void write(PointBlock msData) throws IOException;
+
+        /**
+         * Ends the response and flushes it
+         * @throws IOException
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * Writes points as a single JSON array of [pointID,traceID,mz,rt,intensity]
+     */
+    private static class JSONPointWriter implements PointWriter
+    {
+        // destination of the serialized points
+        private final Writer out;
+
+        // if true traceID and pointID are included in serialization
+        private final boolean includeIDs;
+
+        // reused buffer for serializing a single point
+        private final StringBuilder row = new StringBuilder(64);
+
+        // number of points written so far
+        private int numWritten = 0;
+
+        /**
+         * Starts the JSON array
+         * @param out response output stream
+         * @param includeIDs If True pointID and traceID are included in serialization
+         * @throws IOException
+         */
+        JSONPointWriter(OutputStream out, boolean includeIDs) throws IOException
+        {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), RESPONSE_BUFFER_SIZE);
+            this.includeIDs = includeIDs;
+            this.out.write('[');
+        }
+
+        @Override
+        public void write(PointBlock msData) throws IOException
+        {
+            for(int i = 0; i < msData.size(); i++)
             {
-                MsDataPoint curPoint = msData.get(i);
-                JSON.append("[")
-                        .append(curPoint.pointID).append(",")
-                        .append(curPoint.traceID).append(",")
-                        .append(curPoint.mz).append(",")
-                        .append(curPoint.rt).append(",")
-                        .append(curPoint.intensity).append("],");
+                this.row.setLength(0);
+                if(this.numWritten > 0)
+                    this.row.append(',');
+
+                this.row.append('[');
+                if(this.includeIDs)
+                    this.row.append(msData.id[i]).append(',')
+                            .append(msData.traceID[i]).append(',');
+                this.row.append(msData.mz[i]).append(',')
+                        .append(msData.rt[i]).append(',')
+                        .append(msData.intensity[i]).append(']');
+
+                this.out.append(this.row);
+                this.numWritten++;
             }
-        
-        if(msData.size() > 0)
-            JSON.replace(JSON.length()-1, JSON.length(), "]");
-        else 
-            JSON.append("]");
-        
-        return JSON;
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            this.out.write(']');
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Writes points in a little-endian columnar binary format, read in the
+     * browser through typed arrays without a parse step:
+     *
+     *      header: "MSPB" (4 bytes), version (uint16), flags (uint16, 0)
+     *      blocks: count (uint32), reserved (uint32, 0),
+     *              mz (float64 x count), intensity (float64 x count),
+     *              pointID (int32 x count), traceID (int32 x count), rt (float32 x count),
+     *              zero padding to a multiple of 8 bytes
+     *      end:    a block with a count of 0
+     *
+     * Blocks start 8 byte aligned, so the float64 columns are 8 byte aligned
+     * and the int32 and float32 columns 4 byte aligned (the traceID column of
+     * an odd count is not 8 byte aligned). Every column can be viewed in place
+     */
+    private static class BinaryPointWriter implements PointWriter
+    {
+        // leading bytes of every binary response
+        private static final byte[] MAGIC = {'M', 'S', 'P', 'B'};
+
+        // format version, increased on incompatible changes
+        private static final short VERSION = 1;
+
+        // destination of the serialized points
+        private final OutputStream out;
+
+        // staging buffer, flushed to out as it fills
+        private final ByteBuffer buffer = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * Writes the header
+         * @param out response output stream
+         */
+        BinaryPointWriter(OutputStream out)
+        {
+            this.out = out;
+            this.buffer.put(MAGIC).putShort(VERSION).putShort((short)0);
+        }
+
+        @Override
+        public void write(PointBlock msData) throws IOException
+        {
+            int count = msData.size();
+
+            // a count of 0 ends the response, empty blocks are skipped
+            if(count == 0)
+                return;
+
+            this.reserve(8);
+            this.buffer.putInt(count).putInt(0);
+
+            for(int i = 0; i < count; i++) {
+                this.reserve(8);
+                this.buffer.putDouble(msData.mz[i]);
+            }
+            for(int i = 0; i < count; i++) {
+                this.reserve(8);
+                this.buffer.putDouble(msData.intensity[i]);
+            }
+            for(int i = 0; i < count; i++) {
+                this.reserve(4);
+                this.buffer.putInt(msData.id[i]);
+            }
+            for(int i = 0; i < count; i++) {
+                this.reserve(4);
+                this.buffer.putInt(msData.traceID[i]);
+            }
+            for(int i = 0; i < count; i++) {
+                this.reserve(4);
+                this.buffer.putFloat(msData.rt[i]);
+            }
+
+            // 28 bytes per point, pad odd counts to keep the next block aligned
+            if((count & 1) == 1) {
+                this.reserve(4);
+                this.buffer.putInt(0);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            this.reserve(8);
+            this.buffer.putInt(0).putInt(0);
+            this.drain();
+            this.out.flush();
+        }
+
+        /* Makes room for numBytes in the staging buffer */
+        private void reserve(int numBytes) throws IOException
+        {
+            if(this.buffer.remaining() < numBytes)
+                this.drain();
+        }
+
+        /* Writes the staged bytes to the response */
+        private void drain() throws IOException
+        {
+            this.out.write(this.buffer.array(), 0, this.buffer.position());
+            this.buffer.clear();
+        }
     }
 
     /**
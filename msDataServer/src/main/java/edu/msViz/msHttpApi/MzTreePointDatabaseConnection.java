@@ -3,7 +3,8 @@ package edu.msViz.msHttpApi;
 import edu.msViz.mzTree.MsDataPoint;
 import edu.msViz.mzTree.IO.MsDataRange;
 import edu.msViz.mzTree.MzTree;
-import edu.msViz.mzTree.MsDataPoint;
+import edu.msViz.mzTree.PointBlock;
+import edu.msViz.mzTree.PointCursor;
 import edu.umt.ms.traceSeg.Point;
 import edu.umt.ms.traceSeg.PointDatabaseConnection;
 import java.util.ArrayList;
@@ -28,24 +29,17 @@ public class MzTreePointDatabaseConnection implements PointDatabaseConnection {
 
     @Override
     public List<Point> getAllPoints(double minMz, double maxMz, float minRt, float maxRt, double minIntensity) throws Exception {
-      List<MsDataPoint> preFilter = new ArrayList<MsDataPoint>();
       List<Point> points = new ArrayList<Point>();
 
-      preFilter = mzTree.query(minMz,maxMz,minRt,maxRt,0);
-
-      if(minIntensity == 0){
-        for(int i = 0; i < preFilter.size();i++){
-          MsDataPoint msPt = preFilter.get(i);
-          Point pt = new Point( msPt.pointID,msPt.mz,msPt.rt,msPt.intensity);
-          points.add(pt);
-        }
-      }
-      else{
-        for(int i = 0; i < preFilter.size();i++){
-          MsDataPoint msPt = preFilter.get(i);
-          if(msPt.intensity > minIntensity){
-            Point pt = new Point(msPt.pointID,msPt.mz,msPt.rt,msPt.intensity);
-            points.add(pt);
+      // stream the range, only the points passing the filter are kept
+      try(PointCursor cursor = mzTree.stream(minMz,maxMz,minRt,maxRt,true)){
+        while(cursor.next()){
+          PointBlock block = cursor.block();
+          for(int i = 0; i < block.size();i++){
+            if(minIntensity == 0 || block.intensity[i] > minIntensity){
+              Point pt = new Point(block.id[i],block.mz[i],block.rt[i],block.intensity[i]);
+              points.add(pt);
+            }
           }
         }
       }
@@ -86,10 +80,29 @@ public class MzTreePointDatabaseConnection implements PointDatabaseConnection {
 
     @Override
     public void writePoint(int traceId, Point point) throws Exception {
-        if (!mzTree.traceMap.containsKey(traceId)) {
-            mzTree.insertTrace(traceId, 0);
+        writeTrace(traceId, new int[] { point.id });
+    }
+
+    @Override
+    public void writeTrace(int traceId, int[] pointIds) throws Exception {
+        Map<Integer, int[]> traces = new HashMap<Integer, int[]>();
+        traces.put(traceId, pointIds);
+        writeTraces(traces);
+    }
+
+    @Override
+    public void writeTraces(Map<Integer, int[]> traces) throws Exception {
+        // one storage transaction for the whole batch
+        Map<Integer, Integer[]> boxedTraces = new HashMap<Integer, Integer[]>();
+        for (Map.Entry<Integer, int[]> trace : traces.entrySet()) {
+            int[] pointIds = trace.getValue();
+            Integer[] boxedIds = new Integer[pointIds.length];
+            for (int i = 0; i < pointIds.length; i++) {
+                boxedIds[i] = pointIds[i];
+            }
+            boxedTraces.put(trace.getKey(), boxedIds);
         }
-        mzTree.updateTraces(traceId, new Integer[] { point.id });
+        mzTree.updateTraces(boxedTraces);
     }
 
     private Map<Integer, Double> calculatedMzResolutions;
@@ -115,15 +128,18 @@ public class MzTreePointDatabaseConnection implements PointDatabaseConnection {
      * @return the m/z resolution near the specified m/z value
      */
     private double calculateMzResolutionNear(double mz) throws Exception {
-        List<MsDataPoint> points = mzTree.query(mz - 1, mz + 1, mzTree.head.rtMin, mzTree.head.rtMax, 0);
-        points.sort(Comparator.comparingDouble((MsDataPoint p) -> p.rt).thenComparingDouble(p -> p.mz));
+        PointBlock points = mzTree.queryColumns(mz - 1, mz + 1, mzTree.head.rtMin, mzTree.head.rtMax, 0);
+        int[] order = points.sortedIndices((a, b) -> {
+            int byRt = Float.compare(points.rt[a], points.rt[b]);
+            return byRt != 0 ? byRt : Double.compare(points.mz[a], points.mz[b]);
+        });
 
         List<Double> diffs = new ArrayList<Double>();
-        for(int i = 1; i < points.size(); i++) {
-            MsDataPoint current = points.get(i);
-            MsDataPoint prev = points.get(i-1);
-            if (current.rt == prev.rt) {
-                double diff = current.mz - prev.mz;
+        for(int i = 1; i < order.length; i++) {
+            int current = order[i];
+            int prev = order[i-1];
+            if (points.rt[current] == points.rt[prev]) {
+                double diff = points.mz[current] - points.mz[prev];
                 if (diff < 1) {
                     diffs.add(diff);
                 }
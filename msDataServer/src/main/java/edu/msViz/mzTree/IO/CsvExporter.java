@@ -6,13 +6,12 @@
 package edu.msViz.mzTree.IO;
 
 import com.opencsv.CSVWriter;
-import edu.msViz.mzTree.MsDataPoint;
 import edu.msViz.mzTree.MzTree;
+import edu.msViz.mzTree.PointBlock;
+import edu.msViz.mzTree.PointCursor;
 import java.io.FileWriter;
 import java.util.List;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.stream.Collectors;
 
 import edu.msViz.xnet.dataTypes.IsotopeTrace;
 import edu.msViz.xnet.dataTypes.IsotopicEnvelope;
@@ -31,14 +30,6 @@ public class CsvExporter implements AutoCloseable{
      */
     private final String destinationPath;
 
-    /**
-     * length of partitions
-     */
-    private static final float PARTITION_LENGTH = 5.0f;
-
-    // EPSILON values to cope with floating point accuracy issues
-    private static final float EPSILONf = 0.000001f;
-
     /**
      * csv output writer
      */
@@ -228,79 +219,32 @@ public class CsvExporter implements AutoCloseable{
     public int export(MsDataRange msDataRange, MzTree mzTree, boolean onlySegmented) throws IOException {
         int numPoints = 0;
 
-        // create iterator over range's partitions
-        Iterator<MsDataRange> partitionIterator = this.partitionedRange(msDataRange);
-
-        // iterate range's partitions
-        while(partitionIterator.hasNext())
+        // stream the whole range block by block, bounds inclusive
+        try (PointCursor cursor = mzTree.stream(msDataRange.mzMin, msDataRange.mzMax, msDataRange.rtMin, msDataRange.rtMax, true))
         {
-            MsDataRange range = partitionIterator.next();
+            while(cursor.next())
+            {
+                PointBlock block = cursor.block();
 
-            // TODO: mzTree.query only takes inclusive bounds, so shorten the bound that will be incremented (RT)
-            // This could cause a small number of points to be skipped during export. This scenario was considered
-            // slightly less bad than duplicating 8000 points when this change was made.
-            List<MsDataPoint> partitionResults = mzTree.query(range.mzMin, range.mzMax, range.rtMin, range.rtMax - EPSILONf, 0);
+                // write all points in the block, count num points written
+                for (int i = 0; i < block.size(); i++) {
+                    int traceID = block.traceID[i];
 
-            // if collecting only segmented data, apply a segmented filter
-            if(onlySegmented) {
-                partitionResults = partitionResults.stream().filter((MsDataPoint point) -> point.traceID != 0 && point.traceID != -1).collect(Collectors.toList());
-            }
+                    // if collecting only segmented data, skip unsegmented points
+                    if(onlySegmented && (traceID == 0 || traceID == -1))
+                        continue;
 
-            // write all points in the stream, count num points written
-            for (MsDataPoint p : partitionResults) {
-                int envelopeID = mzTree.traceMap.getOrDefault(p.traceID, 0);
-                outputWriter.writeNext( new String[] {Double.toString(p.mz), Float.toString(p.rt), Double.toString(p.intensity), Integer.toString(p.traceID), Integer.toString(envelopeID) }, false);
+                    int envelopeID = mzTree.traceMap.getOrDefault(traceID, 0);
+                    outputWriter.writeNext( new String[] {Double.toString(block.mz[i]), Float.toString(block.rt[i]), Double.toString(block.intensity[i]), Integer.toString(traceID), Integer.toString(envelopeID) }, false);
+                    numPoints++;
+                }
             }
-            numPoints += partitionResults.size();
         }
 
         this.outputWriter.flush();
         return numPoints;
     }
 
-    /**
-     * Creates an iterator over the data range's partitions. Iterates along the m/z axis (fixed RT) if the
-     * range is wide, otherwise iterates along the RT axis (fixed m/z).
-     * @param range ms data range to partition
-     * @return Iterator iterator over range's partitions
-     */
-    private Iterator<MsDataRange> partitionedRange(MsDataRange range)
-    {
-        // isWide == true -> smaller partitions along m/z axis
-        final MsDataRange currentPartition;
-
-        // partition along rt axis
-        currentPartition = new MsDataRange(range.mzMin, range.mzMax, range.rtMin, range.rtMin + PARTITION_LENGTH);
-
-        // create iterator for query range's partitions
-        Iterator<MsDataRange> partitionIterator = new Iterator<MsDataRange>()
-        {
-            @Override
-            public boolean hasNext() {
-                return currentPartition.rtMin <= range.rtMax;
-            }
-
-            @Override
-            public MsDataRange next()
-            {
-
-                MsDataRange returnPartition = new MsDataRange(currentPartition);
-
-                // advance partition for next (will exceed range if final partition, causes hasNext to fail)
-                currentPartition.rtMin += PARTITION_LENGTH;
-                currentPartition.rtMax += PARTITION_LENGTH;
-
-                // cap the bounds at the requested range
-                if (currentPartition.rtMax > range.rtMax) {
-                    currentPartition.rtMax = range.rtMax;
-                }
-
-                return returnPartition;
-            }
-        };
-        return partitionIterator;
-    }
-
     public String getDestinationPath()
     {
         return this.destinationPath;
@@ -0,0 +1,172 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.IO;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Spectrum offsets of an indexedmzML file, read from its indexList.
+ * Allows the points of the file to be counted from each spectrum's
+ * defaultArrayLength without parsing or decoding any binary data.
+ */
+class MzmlIndex
+{
+    // number of bytes at the end of the file searched for the indexListOffset
+    private static final int TAIL_NUM_BYTES = 4096;
+
+    // number of bytes read at a time from the start of a spectrum
+    private static final int HEADER_NUM_BYTES = 4096;
+
+    // maximum number of bytes searched for a spectrum's ms level
+    private static final int MAX_HEADER_NUM_BYTES = 1 << 16;
+
+    private static final Pattern INDEX_LIST_OFFSET = Pattern.compile("<indexListOffset>\\s*(\\d+)\\s*</indexListOffset>");
+    private static final Pattern SPECTRUM_INDEX = Pattern.compile("<index\\s+name=\"spectrum\"\\s*>(.*?)</index>", Pattern.DOTALL);
+    private static final Pattern OFFSET = Pattern.compile("<offset[^>]*>\\s*(\\d+)\\s*</offset>");
+    private static final Pattern DEFAULT_ARRAY_LENGTH = Pattern.compile("\\sdefaultArrayLength\\s*=\\s*[\"'](\\d+)[\"']");
+
+    // ms level cvParam, its accession and value attributes in either order
+    private static final Pattern MS_LEVEL = Pattern.compile(
+            "<cvParam(?=[^>]*\\saccession\\s*=\\s*[\"']MS:1000511[\"'])[^>]*\\svalue\\s*=\\s*[\"'](\\d+)[\"']");
+
+    // path to the indexed mzML file
+    private final String mzmlFilePath;
+
+    // file offset of each spectrum element, in file order
+    private final long[] spectrumOffsets;
+
+    private MzmlIndex(String mzmlFilePath, long[] spectrumOffsets)
+    {
+        this.mzmlFilePath = mzmlFilePath;
+        this.spectrumOffsets = spectrumOffsets;
+    }
+
+    /**
+     * Reads the spectrum index of an indexedmzML file
+     * @param mzmlFilePath path to the mzML file
+     * @return the file's spectrum index, null if the file has no usable index
+     * @throws IOException
+     */
+    static MzmlIndex read(String mzmlFilePath) throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(mzmlFilePath, "r"))
+        {
+            // the indexListOffset element closes an indexedmzML file
+            long length = file.length();
+            int tailLength = (int) Math.min(TAIL_NUM_BYTES, length);
+            Matcher offsetMatcher = INDEX_LIST_OFFSET.matcher(readString(file, length - tailLength, tailLength));
+            if (!offsetMatcher.find())
+                return null;
+
+            long indexListOffset = Long.parseLong(offsetMatcher.group(1));
+            if (indexListOffset <= 0 || indexListOffset >= length || length - indexListOffset > Integer.MAX_VALUE)
+                return null;
+
+            // collect the offsets listed by the spectrum index
+            String indexList = readString(file, indexListOffset, (int) (length - indexListOffset));
+            if (!indexList.startsWith("<indexList"))
+                return null;
+
+            Matcher indexMatcher = SPECTRUM_INDEX.matcher(indexList);
+            if (!indexMatcher.find())
+                return null;
+
+            Matcher entryMatcher = OFFSET.matcher(indexMatcher.group(1));
+            long[] offsets = new long[64];
+            int numOffsets = 0;
+            while (entryMatcher.find()) {
+                if (numOffsets == offsets.length)
+                    offsets = Arrays.copyOf(offsets, numOffsets * 2);
+                offsets[numOffsets++] = Long.parseLong(entryMatcher.group(1));
+            }
+
+            return new MzmlIndex(mzmlFilePath, Arrays.copyOf(offsets, numOffsets));
+        }
+        catch (NumberFormatException ex)
+        {
+            // malformed index
+            return null;
+        }
+    }
+
+    /**
+     * Number of spectra in the index
+     * @return number of indexed spectra
+     */
+    int numSpectra()
+    {
+        return this.spectrumOffsets.length;
+    }
+
+    /**
+     * Counts the points of the spectra at the given ms level by seeking to each
+     * spectrum and reading its defaultArrayLength. Points later dropped by the
+     * intensity threshold are included, so the count is an upper bound.
+     * A spectrum whose ms level is not found ahead of its binary data (or
+     * within MAX_HEADER_NUM_BYTES) makes the index unusable for counting,
+     * rather than risk an undercount
+     * @param msLevel ms level of the counted spectra
+     * @return upper bound on the number of points, null if an indexed spectrum could not be read
+     * @throws IOException
+     */
+    Integer countPointsUpperBound(int msLevel) throws IOException
+    {
+        long count = 0;
+
+        try (RandomAccessFile file = new RandomAccessFile(this.mzmlFilePath, "r"))
+        {
+            for (long offset : this.spectrumOffsets)
+            {
+                // read the spectrum header up to its ms level
+                String header = null;
+                Matcher levelMatcher = null;
+                for (int numBytes = HEADER_NUM_BYTES; numBytes <= MAX_HEADER_NUM_BYTES; numBytes *= 2) {
+                    header = readString(file, offset, (int) Math.min(numBytes, file.length() - offset));
+                    levelMatcher = MS_LEVEL.matcher(header);
+                    if (levelMatcher.find() || header.contains("<binaryDataArrayList") || header.length() < numBytes)
+                        break;
+                }
+
+                // the offset must point at a spectrum element
+                if (header == null || !header.startsWith("<spectrum"))
+                    return null;
+
+                Matcher lengthMatcher = DEFAULT_ARRAY_LENGTH.matcher(header.substring(0, header.indexOf('>') + 1));
+                if (!lengthMatcher.find())
+                    return null;
+
+                // a level cvParam beyond the binary data belongs to another element
+                int binaryStart = header.indexOf("<binaryDataArrayList");
+                boolean hasLevel = levelMatcher.find(0) && (binaryStart < 0 || levelMatcher.start() < binaryStart);
+                if (!hasLevel)
+                    return null;
+
+                if (Integer.parseInt(levelMatcher.group(1)) == msLevel)
+                    count += Long.parseLong(lengthMatcher.group(1));
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+
+        return (count > Integer.MAX_VALUE) ? null : (int) count;
+    }
+
+    /* Reads numBytes at the given file position as single byte characters */
+    private static String readString(RandomAccessFile file, long position, int numBytes) throws IOException
+    {
+        byte[] bytes = new byte[Math.max(0, numBytes)];
+        file.seek(position);
+        file.readFully(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -5,10 +5,9 @@
  */
 package edu.msViz.mzTree.IO;
 import edu.msViz.mzTree.MsDataPoint;
+import edu.msViz.mzTree.PointBlock;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.DataFormatException;
 
@@ -18,10 +17,11 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 /**
- *
+ * Reads the MS data points of an mzML file through a SpectrumPipeline:
+ * XML scanning, spectrum decoding and point collection run concurrently.
  * @author André
  */
-public class MzmlParser {
+public class MzmlParser implements AutoCloseable {
         
     /**
      * Accession values used by mzML to classify cvParam values
@@ -33,6 +33,12 @@ public class MzmlParser {
     private static final String ACCESSION_32_BIT_FLOAT = "MS:1000521"; // "32-bit float"
     private static final String ACCESSION_64_BIT_FLOAT = "MS:1000523"; // "64-bit float"
     private static final String ACCESSION_ZLIB_COMPRESSION = "MS:1000574"; // "zlib compression"
+    private static final String ACCESSION_NUMPRESS_LINEAR = "MS:1002312"; // "MS-Numpress linear prediction compression"
+    private static final String ACCESSION_NUMPRESS_PIC = "MS:1002313"; // "MS-Numpress positive integer compression"
+    private static final String ACCESSION_NUMPRESS_SLOF = "MS:1002314"; // "MS-Numpress short logged float compression"
+    private static final String ACCESSION_NUMPRESS_LINEAR_ZLIB = "MS:1002746"; // "MS-Numpress linear prediction compression followed by zlib compression"
+    private static final String ACCESSION_NUMPRESS_PIC_ZLIB = "MS:1002747"; // "MS-Numpress positive integer compression followed by zlib compression"
+    private static final String ACCESSION_NUMPRESS_SLOF_ZLIB = "MS:1002748"; // "MS-Numpress short logged float compression followed by zlib compression"
 	
     /**
      * Minimum intensity required for a point to be included in point retrieval
@@ -40,9 +46,14 @@ public class MzmlParser {
     private static final double MIN_INTENSITY_THRESHOLD = 1;
     
     /**
-     * XML stream reader (mzML is XML because... well who knows)
+     * Number of threads decoding spectra, the XML scan and the consumer use the others
      */
-    private XMLStreamReader reader;
+    private static final int NUM_DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    
+    /**
+     * Number of spectra parsed and decoded ahead of the consumer
+     */
+    private static final int PIPELINE_CAPACITY = 16 * NUM_DECODE_THREADS;
     
     /**
      * path to targeted mzml file
@@ -50,18 +61,22 @@ public class MzmlParser {
     private final String mzmlFilePath;
     
     /**
-     * Number of points in the mzml file
-     * Null implies no count has been performed yet
+     * Number of points in the mzml file, an upper bound when counted from the index
+     * -1 implies no count has been performed yet
      */
     private int numPoints = -1;
     
+    /**
+     * Pipeline feeding a partitioned read, kept open between partitions
+     */
+    private SpectrumPipeline partitionPipeline;
+    
     /**
      * When reading from mzml a chunk at a time the chunk will almost
-     * always terminate amidst a spectrum. Since XmlStreamReader cannot backtrack,
-     * we most preserve the paused spectrum in order to pick up where left off
-     * on the previous chunk.
+     * always terminate amidst a spectrum. The rest of the paused spectrum
+     * begins the next chunk.
      */
-    private SpectrumInformation pausedSpecInfo;
+    private DecodedSpectrum pausedSpectrum;
     
     /**
      * Index of point in paused spectrum from which to resume next partition
@@ -94,8 +109,11 @@ public class MzmlParser {
     }
     
     /**
-     * Counts the points in the targeted mzML file
-     * @return the number of points in the mzML file
+     * Counts the points in the targeted mzML file. An indexedmzML file is
+     * counted from its spectrum index and each spectrum's defaultArrayLength
+     * without decoding, giving an upper bound that includes points below the
+     * intensity threshold. Other files are decoded to count exactly
+     * @return the number of points in the mzML file, or an upper bound on it
      * @throws IOException
      * @throws XMLStreamException
      * @throws DataFormatException 
@@ -105,15 +123,26 @@ public class MzmlParser {
         // don't recount!
         if(this.numPoints == -1)
         {
-            // instantiate xml reader on mzmlFilePath
-            this.reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileInputStream(this.mzmlFilePath)); 
+            // seek to each indexed spectrum's array length
+            MzmlIndex index = MzmlIndex.read(this.mzmlFilePath);
+            Integer bound = (index == null) ? null : index.countPointsUpperBound(this.processMsLevel);
+            if(bound != null)
+            {
+                this.numPoints = bound;
+                return this.numPoints;
+            }
+            
+            int count = 0;
             
-            // count points
-            this.numPoints = 0;
-            this.getAllPoints(true);
+            // no usable index, count the points of each decoded spectrum
+            try(SpectrumPipeline pipeline = this.startPipeline())
+            {
+                DecodedSpectrum spectrum;
+                while((spectrum = pipeline.next()) != null)
+                    count += spectrum.size;
+            }
             
-            // close reader
-            this.reader.close();
+            this.numPoints = count;
         }
       
         return this.numPoints;
@@ -122,17 +151,15 @@ public class MzmlParser {
     /**
      * Initializes a partitioned read of the dataset
      * @param n partition size
-     * @throws XMLStreamException
-     * @throws FileNotFoundException 
      */
-    public void initPartitionedRead(int n) throws XMLStreamException, FileNotFoundException
+    public void initPartitionedRead(int n)
     {
         // retain the partition size
         this.partitionSize = n;
         
-        // instantiate xml reader on mzmlFilePath
-        this.reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileInputStream(this.mzmlFilePath));
-        
+        // start the pipeline over the whole file, partitions are cut from its output
+        this.close();
+        this.partitionPipeline = this.startPipeline();
     }
     
     /**
@@ -144,40 +171,73 @@ public class MzmlParser {
      */
     public List<MsDataPoint> readPartition() throws XMLStreamException, DataFormatException, IOException
     {
-        // points collection for this partition
-        List<MsDataPoint> results = new ArrayList<>();
+        return this.readPartitionColumns().toList();
+    }
+
+    /**
+     * Reads a partition of the dataset into a columnar block, without creating
+     * a point object per point. Must be preceded by call to this.beginPartitionedRead.
+     * The pipeline keeps parsing and decoding ahead while the partition is built
+     * @return A partition of the dataset
+     * @throws XMLStreamException
+     * @throws DataFormatException
+     * @throws IOException
+     */
+    public PointBlock readPartitionColumns() throws XMLStreamException, DataFormatException, IOException
+    {
+        // points collection for this partition, sized for a full partition
+        PointBlock results = new PointBlock(this.partitionSize);
         
-        // if the paused spectrum info isn't null then process it first
-        while(this.pausedSpecInfo != null)
+        while(results.size() < this.partitionSize)
         {
-            this.decodeAndCollectData(this.pausedSpecInfo, results, false, this.pauseIndex, this.partitionSize);
-        }
-
-        // parsing loop
-        while (this.reader.hasNext()) 
-        {    
-            // proceed cursor
-            this.reader.next();
-
-            // look for the start of a "spectrum" element
-            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("spectrum")) 
+            // take the next spectrum if the paused spectrum has been consumed
+            if(this.pausedSpectrum == null)
             {
+                this.pausedSpectrum = (this.partitionPipeline == null) ? null : this.partitionPipeline.next();
+                this.pauseIndex = 0;
                 
-                this.parseSpectrum(results, false, 0, this.partitionSize);
-                
-                if(results.size() == this.partitionSize)
-                    return results;
+                // if made it this far the partition size does not evenly divide the dataset
+                // and this is the final, reduced size partition
+                if(this.pausedSpectrum == null)
+                {
+                    this.close();
+                    break;
+                }
             }
+            
+            // collect points until the partition is full
+            this.pauseIndex = this.pausedSpectrum.collect(results, this.pauseIndex, this.partitionSize);
+            if(this.pauseIndex == this.pausedSpectrum.size)
+                this.pausedSpectrum = null;
         }
         
-        // if made it this far the partition size does not evenly divide the dataset
-        // and this is the final, reduced size partition
-        
-        // close reader and return current result set
-        this.reader.close();
         return results;
     }
     
+    /**
+     * Checks whether a partitioned read has points left after the partitions
+     * read so far, reading ahead through empty spectra. A counted upper bound
+     * that undercounts leaves points behind the last partition
+     * @return true if points remain to be read
+     * @throws XMLStreamException
+     * @throws DataFormatException
+     * @throws IOException
+     */
+    public boolean hasRemainingPoints() throws XMLStreamException, DataFormatException, IOException
+    {
+        while(this.pausedSpectrum == null || this.pauseIndex == this.pausedSpectrum.size)
+        {
+            this.pausedSpectrum = (this.partitionPipeline == null) ? null : this.partitionPipeline.next();
+            this.pauseIndex = 0;
+            if(this.pausedSpectrum == null)
+            {
+                this.close();
+                return false;
+            }
+        }
+        return true;
+    }
+    
     
     /**
      * Reads the MS data points contained within the mzML file specified by filepath
@@ -188,83 +248,127 @@ public class MzmlParser {
      */
     public List<MsDataPoint> readAllData() throws IOException, XMLStreamException, DataFormatException 
     {
-        return this.getAllPoints(false);
+        return this.readAllColumns().toList();
+    }
+
+    /**
+     * Reads the MS data points contained within the mzML file specified by filepath
+     * into a columnar block, without creating a point object per point
+     * @return block of the points found in file
+     * @throws javax.xml.stream.XMLStreamException
+     * @throws DataFormatException
+     * @throws IOException
+     */
+    public PointBlock readAllColumns() throws IOException, XMLStreamException, DataFormatException
+    {
+        // point results collection, sized by a previous count if there was one
+        PointBlock results = (this.numPoints <= 0) ? new PointBlock() : new PointBlock(this.numPoints);
+        
+        // collect the points of each decoded spectrum in file order
+        try(SpectrumPipeline pipeline = this.startPipeline())
+        {
+            DecodedSpectrum spectrum;
+            while((spectrum = pipeline.next()) != null)
+                spectrum.collect(results, 0, Integer.MAX_VALUE);
+        }
+        
+        this.numPoints = results.size();
+        return results;
     }
     
     /**
-     * Gets all the data from the targeted mzml file, optionally counting the data instead of collecting
-     * @param isCount if true this method merely accumulates a point count in numPoints member
-     * @return Array of MsDataPoints discovered in the mzml file (null if isCount set)
+     * Stops a partitioned read, releasing the pipeline and the file
+     */
+    @Override
+    public void close()
+    {
+        if(this.partitionPipeline != null)
+        {
+            this.partitionPipeline.close();
+            this.partitionPipeline = null;
+        }
+        this.pausedSpectrum = null;
+    }
+    
+    /**
+     * Starts a pipeline over the whole targeted mzml file
+     * @return pipeline producing the file's decoded spectra in order
+     */
+    private SpectrumPipeline startPipeline()
+    {
+        return new SpectrumPipeline(this::parseFile, MzmlParser::decodeSpectrum, NUM_DECODE_THREADS, PIPELINE_CAPACITY);
+    }
+    
+    /**
+     * Scans the targeted mzml file, handing each spectrum to the handler. Runs on the pipeline's parser thread
+     * @param handler receiver of the parsed spectra
      * @throws IOException
      * @throws XMLStreamException
      * @throws DataFormatException 
+     * @throws InterruptedException 
      */
-    private List<MsDataPoint> getAllPoints(boolean isCount) throws IOException, XMLStreamException, DataFormatException
+    private void parseFile(SpectrumPipeline.SpectrumHandler handler) throws IOException, XMLStreamException, DataFormatException, InterruptedException
     {
         // instantiate xml reader on mzmlFilePath
-        this.reader = XMLInputFactory.newInstance().createXMLStreamReader(new FileInputStream(this.mzmlFilePath)); 
-        
-        // parsing loop
-        while (this.reader.hasNext()) 
-        {    
-            // proceed cursor
-            this.reader.next();
-
-            // look for the start of a "run" element
-            // Note: only one run element is allowed per mzML file
-            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("run")) 
+        try(FileInputStream input = new FileInputStream(this.mzmlFilePath))
+        {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+            try
             {
-                // returns all data points within a run
-                List<MsDataPoint> data = this.parseRun(isCount);
-                
-                if(!isCount)
-                {
-                    this.numPoints = data.size();
-                }
-        
-                this.reader.close();
+                // parsing loop
+                while (reader.hasNext()) 
+                {    
+                    // proceed cursor
+                    reader.next();
 
-                return data;
+                    // look for the start of a "run" element
+                    // Note: only one run element is allowed per mzML file
+                    if (reader.getEventType() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("run")) 
+                    {
+                        // hands off all spectra within a run
+                        this.parseRun(reader, handler);
+                        return;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
             }
         }
         
-        this.reader.close();
-        
         // if no run START_ELEMENT is found
         throw new DataFormatException("No run element found in mzML file: " + this.mzmlFilePath);
     }
     
     /**
-     * Parses a run element currently pointed to by reader, returning all contained MS datapoints
-     * @param isCount flag indicating the data should merely be counted
-     * @param count point count accumulator     
-     * @return Array of MSDataPoints found within the run
+     * Parses a run element currently pointed to by reader, handing off all contained spectra
+     * @param reader xml stream reader
+     * @param handler receiver of the parsed spectra
      * @throws XMLStreamException
      * @throws DataFormatException
-     * @throws IOException 
+     * @throws InterruptedException 
      */
-    private List<MsDataPoint> parseRun(boolean isCount) throws XMLStreamException, DataFormatException, IOException {
-        
-        List<MsDataPoint> runPoints = null;
+    private void parseRun(XMLStreamReader reader, SpectrumPipeline.SpectrumHandler handler) throws XMLStreamException, DataFormatException, InterruptedException {
         
         // parsing loop, return at end of run element
-        while (this.reader.hasNext()) 
+        while (reader.hasNext()) 
         {
             // proceed parser
-            this.reader.next();
+            reader.next();
             
             // wait for beginning of spectrumList tag
             // Note: only one spectrumList is allowed per run
-            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT && this.reader.getLocalName().equals("spectrumList")) 
+            if (reader.getEventType() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("spectrumList")) 
             {
                 // begin processing spectrumList
-                runPoints = this.parseSpectrumList(isCount);
+                this.parseSpectrumList(reader, handler);
             }
             
             // wait for end of run element to signal run is finished
-            if (this.reader.getEventType() == XMLStreamReader.END_ELEMENT && this.reader.getLocalName().equals("run")) 
+            if (reader.getEventType() == XMLStreamReader.END_ELEMENT && reader.getLocalName().equals("run")) 
             {
-                return runPoints;
+                return;
             }  
         }
        
@@ -274,18 +378,14 @@ public class MzmlParser {
     }
     
     /**
-     * Parses the contents of the spectrumList currently pointed to by reader, returns all contained MsDataPoints
-     * @param isCount flag indicating the data should merely be counted
-     * @param count point count accumulator
-     * @return Array of MsDatapoints contained within the spectrum list
+     * Parses the contents of the spectrumList currently pointed to by reader, handing off all contained spectra
+     * @param reader xml stream reader
+     * @param handler receiver of the parsed spectra
      * @throws XMLStreamException
      * @throws DataFormatException
-     * @throws IOException 
+     * @throws InterruptedException 
      */
-    private List<MsDataPoint> parseSpectrumList(boolean isCount) throws XMLStreamException, DataFormatException, IOException {
-        
-        // point results collection
-        ArrayList<MsDataPoint> pointResults = new ArrayList<>();
+    private void parseSpectrumList(XMLStreamReader reader, SpectrumPipeline.SpectrumHandler handler) throws XMLStreamException, DataFormatException, InterruptedException {
         
         // parsing loop
         while (reader.hasNext()) 
@@ -293,16 +393,16 @@ public class MzmlParser {
             // proceed cursor
             reader.next();
             
-            // parse discovered spectrums, collect contained points
+            // parse discovered spectrums
             if (reader.getEventType() == XMLStreamReader.START_ELEMENT && reader.getLocalName().equals("spectrum")) 
             {
-                this.parseSpectrum(pointResults, isCount, 0, Integer.MAX_VALUE);
+                this.parseSpectrum(reader, handler);
             }
             
-            // return points at end of spectrumlist
+            // return at end of spectrumlist
             if (reader.getEventType() == XMLStreamReader.END_ELEMENT && reader.getLocalName().equals("spectrumList")) 
             {
-                return pointResults;
+                return;
             }
         }
         
@@ -311,15 +411,13 @@ public class MzmlParser {
     }
     
     /**
-     * Parses a spectrum element, storing all discovered points in pointCollection
-     * @param pointCollection collection to store all discovered points
-     * @param isCount flag indicating data should only be counted
-     * @param count data count accumulator
+     * Parses a spectrum element, handing it off for decoding if it has the processed ms level
+     * @param reader xml stream reader
+     * @param handler receiver of the parsed spectrum
      * @throws XMLStreamException
-     * @throws DataFormatException
-     * @throws IOException 
+     * @throws InterruptedException 
      */
-    private void parseSpectrum(List<MsDataPoint> pointCollection, boolean isCount, int startIndex, int pointLimit) throws XMLStreamException, DataFormatException, IOException {
+    private void parseSpectrum(XMLStreamReader reader, SpectrumPipeline.SpectrumHandler handler) throws XMLStreamException, InterruptedException {
        
         // a new SpectrumInformation object is created, this stores all the relevant data in cvParams for one spectrum
         SpectrumInformation spectrumInfo = new SpectrumInformation();
@@ -334,46 +432,54 @@ public class MzmlParser {
         // exception.
         
         // parsing loop
-        while (this.reader.hasNext()) 
+        while (reader.hasNext()) 
         {
             // proceed cursor
-            this.reader.next();
+            reader.next();
             
             // START_ELEMENT events to handle
-            if (this.reader.getEventType() == XMLStreamReader.START_ELEMENT) 
+            if (reader.getEventType() == XMLStreamReader.START_ELEMENT) 
             {
                 // cvParam element
-                if (this.reader.getLocalName().equals("cvParam")) 
+                if (reader.getLocalName().equals("cvParam")) 
                 {
-                    String[] cvParam = examineCVParam(this.reader);
+                    String[] cvParam = examineCVParam(reader);
                     this.updateSpectrumInformation(cvParam, spectrumInfo, currentEncoding);
                 }
                 
+                // presize the decoded bytes from the encoded length
+                if (reader.getLocalName().equals("binaryDataArray")) 
+                {
+                    String encodedLength = reader.getAttributeValue(null, "encodedLength");
+                    if (encodedLength != null)
+                        currentEncoding.binary.ensureEncodedCapacity(Integer.parseInt(encodedLength));
+                }
+                
                 // 64-bit encoded binary data
-                if (this.reader.getLocalName().equals("binary")) 
+                if (reader.getLocalName().equals("binary")) 
                 {
-                    currentEncoding.encoding = reader.getElementText();
+                    readBinary(reader, currentEncoding.binary);
                     if(currentEncoding.isMz) spectrumInfo.mzEncoding = currentEncoding; 
                     else spectrumInfo.intensityEncoding = currentEncoding;
                 }
             }
             
             // END_ELEMENT events to handle
-            if (this.reader.getEventType() == XMLStreamReader.END_ELEMENT) 
+            if (reader.getEventType() == XMLStreamReader.END_ELEMENT) 
             {
                 // finish 64-bit encoded data array
-                if (this.reader.getLocalName().equals("binaryDataArray")) 
+                if (reader.getLocalName().equals("binaryDataArray")) 
                 { 
                     // reinstantiate currentEncoding for potential additional encoding 
                     currentEncoding = new EncodedData();
                 }
                 
                 // spectrum finish
-                if (this.reader.getLocalName().equals("spectrum")) 
+                if (reader.getLocalName().equals("spectrum")) 
                 {
                     if (spectrumInfo.msLevel == this.processMsLevel) {
-                        // decode 64-bit encoded data, collect data points 
-                        this.decodeAndCollectData(spectrumInfo, pointCollection, isCount, startIndex, pointLimit);
+                        // hand off the encoded data for decoding
+                        handler.accept(spectrumInfo);
                     }
                     return;
                 }
@@ -383,59 +489,80 @@ public class MzmlParser {
     }
     
     /**
-     * Decodes the encoded spectrum data, packages as MsDataPoints and inserts points into pointCollection
+     * Base64 decodes the text of the binary element pointed to by reader
+     * straight from the reader's character buffer, leaving the reader at
+     * the element's end
+     * @param reader xml stream reader
+     * @param binary receiver of the decoded bytes
+     * @throws XMLStreamException 
+     */
+    private static void readBinary(XMLStreamReader reader, SpectrumDecoder.EncodedArray binary) throws XMLStreamException
+    {
+        while (reader.next() != XMLStreamReader.END_ELEMENT)
+        {
+            int event = reader.getEventType();
+            if (event == XMLStreamReader.CHARACTERS || event == XMLStreamReader.CDATA || event == XMLStreamReader.SPACE)
+                binary.appendBase64(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+        }
+        binary.finishBase64();
+    }
+    
+    /**
+     * Decodes the encoded spectrum data, keeping the points above the intensity
+     * threshold. Runs on the pipeline's decoder threads, each reusing its own decoder
      * @param currentSpecInfo spectrum bundle to process
-     * @param pointCollection container to place discovered MsDataPoints
-     * @param isCount flag indicating the data should merely be counted
-     * @param count point count accumulator
+     * @return the spectrum's decoded points
      * @throws DataFormatException
-     * @throws IOException 
      */
-    private void decodeAndCollectData(SpectrumInformation currentSpecInfo, List<MsDataPoint> pointCollection, boolean isCount, int startIndex, int pointLimit) throws DataFormatException, IOException 
+    private static DecodedSpectrum decodeSpectrum(SpectrumInformation currentSpecInfo) throws DataFormatException
     {
-        // the paused spectrum (if one existed) is no longer paused
-        this.pausedSpecInfo = null;
+        SpectrumDecoder decoder = SpectrumDecoder.forCurrentThread();
         
-        // decode (and if necessary decompress) mz data encoding
-        double[] mzArrayDoubles;
-        if (currentSpecInfo.mzEncoding.isCompressed) 
-            mzArrayDoubles = Decoder.decodeCompressed(currentSpecInfo.mzEncoding.encoding, currentSpecInfo.mzEncoding.bits == 64); 
-        else
-            mzArrayDoubles = Decoder.decodeUncompressed(currentSpecInfo.mzEncoding.encoding, currentSpecInfo.mzEncoding.bits == 64);
-
-        // decode (and if necessary decompress) intensity data encoding
-        double[] intensityArrayDoubles;
-        if (currentSpecInfo.intensityEncoding.isCompressed)
-            intensityArrayDoubles = Decoder.decodeCompressed(currentSpecInfo.intensityEncoding.encoding, currentSpecInfo.intensityEncoding.bits == 64);
-        else
-            intensityArrayDoubles = Decoder.decodeUncompressed(currentSpecInfo.intensityEncoding.encoding, currentSpecInfo.intensityEncoding.bits == 64);
+        // decode (and if necessary decompress) mz and intensity data in place
+        EncodedData mzEncoding = currentSpecInfo.mzEncoding;
+        EncodedData intensityEncoding = currentSpecInfo.intensityEncoding;
+        SpectrumDecoder.ArrayView mzValues = decoder.decodeMz(mzEncoding.binary, mzEncoding.isCompressed, mzEncoding.bits == 64, mzEncoding.numpress);
+        SpectrumDecoder.ArrayView intensityValues = decoder.decodeIntensity(intensityEncoding.binary, intensityEncoding.isCompressed, intensityEncoding.bits == 64, intensityEncoding.numpress);
+        int numValues = Math.min(mzValues.size(), intensityValues.size());
 
-        // creates a MsDataPoint for each (mz,rt,int) point and adds to the arrayList
-        // terminates if pointCollection reaches pointLimit
-        for (int i = startIndex; i < mzArrayDoubles.length; i++) 
+        // if the data point's intensity is below the min threshold then THROW IT OUT
+        int size = 0;
+        for (int i = 0; i < numValues; i++) 
+            if (intensityValues.get(i) >= MIN_INTENSITY_THRESHOLD) 
+                size++;
+        
+        // copy the kept points out of the decoder's buffers
+        // 32-bit intensities are kept as floats rather than widened
+        double[] mzArray = new double[size];
+        if (intensityValues.isFloat())
         {
-            // stop collection if pointCollection reaches limit
-            if(pointCollection.size() == pointLimit)
-            {
-                this.pauseIndex = i;
-                this.pausedSpecInfo = currentSpecInfo;
-                break;
-            }
-            
-            // if the data point's intensity is below the min threshold then THROW IT OUT
-            if (intensityArrayDoubles[i] >= MIN_INTENSITY_THRESHOLD) 
+            float[] intensityArray = new float[size];
+            for (int i = 0, k = 0; k < size; i++) 
             {
-                if(isCount)
-                    this.numPoints++;
-                else
+                float intensity = intensityValues.getFloat(i);
+                if (intensity >= MIN_INTENSITY_THRESHOLD) 
                 {
-                    // assign point an ID of 0
-                    // its ID will be assigned when written to data store
-                    MsDataPoint myTuple = new MsDataPoint(0, mzArrayDoubles[i], (float)currentSpecInfo.scanStartTime, intensityArrayDoubles[i]);
-                    pointCollection.add(myTuple);
+                    mzArray[k] = mzValues.get(i);
+                    intensityArray[k] = intensity;
+                    k++;
                 }
             }
-        }           
+            return new DecodedSpectrum(currentSpecInfo.scanStartTime, mzArray, intensityArray, size);
+        }
+        
+        double[] intensityArray = new double[size];
+        for (int i = 0, k = 0; k < size; i++) 
+        {
+            double intensity = intensityValues.get(i);
+            if (intensity >= MIN_INTENSITY_THRESHOLD) 
+            {
+                mzArray[k] = mzValues.get(i);
+                intensityArray[k] = intensity;
+                k++;
+            }
+        }
+        
+        return new DecodedSpectrum(currentSpecInfo.scanStartTime, mzArray, intensityArray, size);
     }
     
     /**
@@ -482,6 +609,33 @@ public class MzmlParser {
                 currentEncoding.isCompressed = true;
                 break;
                 
+            case MzmlParser.ACCESSION_NUMPRESS_LINEAR: // "MS-Numpress linear prediction compression"
+                currentEncoding.numpress = Numpress.LINEAR;
+                break;
+                
+            case MzmlParser.ACCESSION_NUMPRESS_PIC: // "MS-Numpress positive integer compression"
+                currentEncoding.numpress = Numpress.PIC;
+                break;
+                
+            case MzmlParser.ACCESSION_NUMPRESS_SLOF: // "MS-Numpress short logged float compression"
+                currentEncoding.numpress = Numpress.SLOF;
+                break;
+                
+            case MzmlParser.ACCESSION_NUMPRESS_LINEAR_ZLIB: // "MS-Numpress linear prediction compression followed by zlib compression"
+                currentEncoding.numpress = Numpress.LINEAR;
+                currentEncoding.isCompressed = true;
+                break;
+                
+            case MzmlParser.ACCESSION_NUMPRESS_PIC_ZLIB: // "MS-Numpress positive integer compression followed by zlib compression"
+                currentEncoding.numpress = Numpress.PIC;
+                currentEncoding.isCompressed = true;
+                break;
+                
+            case MzmlParser.ACCESSION_NUMPRESS_SLOF_ZLIB: // "MS-Numpress short logged float compression followed by zlib compression"
+                currentEncoding.numpress = Numpress.SLOF;
+                currentEncoding.isCompressed = true;
+                break;
+                
             default:
         }
                 
@@ -500,15 +654,6 @@ public class MzmlParser {
         return new String[] {accession, value};
     }  
     
-    /**
-     * Override Object.finalize to include closing the reader on GC
-     * @throws Throwable 
-     */
-    @Override
-    protected void finalize() throws Throwable{
-        super.finalize();
-        this.reader.close();
-    }
        
 }
 
@@ -555,15 +700,99 @@ class EncodedData {
      */
     public boolean isCompressed = false;
     
+    /**
+     * MS-Numpress compression of the data, null if none
+     */
+    public Numpress numpress;
+    
     /**
      * flag to signal that this struct contains mz data
      */
     public boolean isMz;
     
     /**
-     * 64-bit encoded data
+     * base64 decoded bytes of the data
      */
-    public String encoding;
+    public final SpectrumDecoder.EncodedArray binary = new SpectrumDecoder.EncodedArray();
 }
 
-
+/**
+ * Decoded points of a spectrum, those below the intensity threshold removed
+ */
+class DecodedSpectrum
+{
+    /**
+     * Spectrum's start time (RT)
+     */
+    public final float scanStartTime;
+    
+    /**
+     * Decoded mz values, valid up to size
+     */
+    public final double[] mz;
+    
+    /**
+     * Decoded 64-bit intensity values, valid up to size
+     * Null if the intensities were 32-bit
+     */
+    public final double[] intensity;
+    
+    /**
+     * Decoded 32-bit intensity values as stored, valid up to size
+     * Null if the intensities were 64-bit
+     */
+    public final float[] floatIntensity;
+    
+    /**
+     * Number of points in the spectrum
+     */
+    public final int size;
+    
+    public DecodedSpectrum(float scanStartTime, double[] mz, double[] intensity, int size)
+    {
+        this.scanStartTime = scanStartTime;
+        this.mz = mz;
+        this.intensity = intensity;
+        this.floatIntensity = null;
+        this.size = size;
+    }
+    
+    public DecodedSpectrum(float scanStartTime, double[] mz, float[] floatIntensity, int size)
+    {
+        this.scanStartTime = scanStartTime;
+        this.mz = mz;
+        this.intensity = null;
+        this.floatIntensity = floatIntensity;
+        this.size = size;
+    }
+    
+    /**
+     * Intensity of the point at index i
+     * @param i index of the point
+     * @return the point's intensity
+     */
+    public double intensity(int i)
+    {
+        return (this.intensity != null) ? this.intensity[i] : this.floatIntensity[i];
+    }
+    
+    /**
+     * Appends the spectrum's points from startIndex to the block, stopping
+     * once the block holds pointLimit points
+     * @param block block to append the points to
+     * @param startIndex index of the first point to append
+     * @param pointLimit number of points at which the block is full
+     * @return index of the first point not appended
+     */
+    public int collect(PointBlock block, int startIndex, int pointLimit)
+    {
+        int i = startIndex;
+        for (; i < this.size && block.size() < pointLimit; i++)
+        {
+            // assign point an ID of 0
+            // its ID will be assigned when the tree is built
+            block.add(0, this.mz[i], this.scanStartTime, this.intensity(i), 0);
+        }
+        return i;
+    }
+}
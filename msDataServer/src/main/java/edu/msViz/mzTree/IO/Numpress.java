@@ -0,0 +1,190 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.IO;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * MS-Numpress compression schemes of mzML binary data arrays
+ * (Teleman et al., Numerical compression schemes for proteomics mass spectrometry data).
+ * Decodes the numpress bytes of an array, after any zlib compression has been inflated
+ */
+public enum Numpress
+{
+    /**
+     * Linear prediction, used for mz and rt arrays
+     */
+    LINEAR {
+        @Override
+        public int maxNumValues(int numBytes)
+        {
+            // two full values, then at least one half byte per value
+            return (numBytes <= 16) ? 2 : 2 + 2 * (numBytes - 16);
+        }
+
+        @Override
+        public int decode(byte[] data, int numBytes, double[] result) throws DataFormatException
+        {
+            if (numBytes == 8)
+                return 0;
+            if (numBytes < 12)
+                throw new DataFormatException("Corrupt MS-Numpress linear data: missing first value");
+
+            double fixedPoint = readFixedPoint(data);
+            long previous = readInt32(data, 8);
+            result[0] = previous / fixedPoint;
+            if (numBytes == 12)
+                return 1;
+            if (numBytes < 16)
+                throw new DataFormatException("Corrupt MS-Numpress linear data: missing second value");
+
+            long current = readInt32(data, 12);
+            result[1] = current / fixedPoint;
+
+            // each value is the linear extrapolation of the previous two plus a residual
+            int numValues = 2;
+            int nibble = 32;
+            while ((nibble >> 1) < numBytes && !isPadding(data, numBytes, nibble))
+            {
+                long packed = readPackedInt(data, numBytes, nibble);
+                nibble = (int) (packed >>> 32);
+                long value = 2 * current - previous + (int) packed;
+                result[numValues++] = value / fixedPoint;
+                previous = current;
+                current = value;
+            }
+            return numValues;
+        }
+    },
+
+    /**
+     * Positive integer compression, used for ion counts
+     */
+    PIC {
+        @Override
+        public int maxNumValues(int numBytes)
+        {
+            return 2 * numBytes;
+        }
+
+        @Override
+        public int decode(byte[] data, int numBytes, double[] result) throws DataFormatException
+        {
+            int numValues = 0;
+            int nibble = 0;
+            while ((nibble >> 1) < numBytes && !isPadding(data, numBytes, nibble))
+            {
+                long packed = readPackedInt(data, numBytes, nibble);
+                nibble = (int) (packed >>> 32);
+                result[numValues++] = (int) packed;
+            }
+            return numValues;
+        }
+    },
+
+    /**
+     * Short logged float, used for intensities
+     */
+    SLOF {
+        @Override
+        public int maxNumValues(int numBytes)
+        {
+            return Math.max(0, (numBytes - 8) / 2);
+        }
+
+        @Override
+        public int decode(byte[] data, int numBytes, double[] result) throws DataFormatException
+        {
+            if (numBytes < 8 || numBytes % 2 != 0)
+                throw new DataFormatException("Corrupt MS-Numpress slof data: " + numBytes + " bytes");
+
+            double fixedPoint = readFixedPoint(data);
+            int numValues = 0;
+            for (int i = 8; i < numBytes; i += 2)
+            {
+                // 16 bit little endian log value
+                int x = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8);
+                result[numValues++] = Math.exp(x / fixedPoint) - 1;
+            }
+            return numValues;
+        }
+    };
+
+    /**
+     * Upper bound on the number of values held by numBytes of numpress data
+     * @param numBytes number of numpress bytes
+     * @return maximum number of decoded values
+     */
+    public abstract int maxNumValues(int numBytes);
+
+    /**
+     * Decodes numpress data into result
+     * @param data numpress bytes
+     * @param numBytes number of bytes of data to decode
+     * @param result receives the values, at least maxNumValues(numBytes) long
+     * @return number of decoded values
+     * @throws DataFormatException if the data is truncated or malformed
+     */
+    public abstract int decode(byte[] data, int numBytes, double[] result) throws DataFormatException;
+
+    //**********************************************//
+    //                 BYTE READING                 //
+    //**********************************************//
+
+    /* Reads the 8 byte big endian fixed point double at the start of the data */
+    private static double readFixedPoint(byte[] data)
+    {
+        long bits = 0;
+        for (int i = 0; i < 8; i++)
+            bits = (bits << 8) | (data[i] & 0xff);
+        return Double.longBitsToDouble(bits);
+    }
+
+    /* Reads a 4 byte little endian integer */
+    private static long readInt32(byte[] data, int offset)
+    {
+        return (data[offset] & 0xffL) | ((data[offset + 1] & 0xffL) << 8)
+                | ((data[offset + 2] & 0xffL) << 16) | ((data[offset + 3] & 0xffL) << 24);
+    }
+
+    /* Reads the half byte at a nibble position, high half first */
+    private static int readNibble(byte[] data, int nibble)
+    {
+        int b = data[nibble >> 1] & 0xff;
+        return ((nibble & 1) == 0) ? b >> 4 : b & 0xf;
+    }
+
+    /* A trailing low half byte other than a zero integer pads the last byte */
+    private static boolean isPadding(byte[] data, int numBytes, int nibble)
+    {
+        return (nibble >> 1) == numBytes - 1 && (nibble & 1) == 1 && (data[nibble >> 1] & 0xf) != 0x8;
+    }
+
+    /**
+     * Reads a half byte encoded integer. The head half byte gives the number of
+     * leading zero (0-8) or, less 8, leading 0xf (9-15) half bytes omitted;
+     * the remaining half bytes follow least significant first
+     * @return the next nibble position in the high word, the integer in the low word
+     */
+    private static long readPackedInt(byte[] data, int numBytes, int nibble) throws DataFormatException
+    {
+        int head = readNibble(data, nibble++);
+        int numOmitted = (head <= 8) ? head : head - 8;
+
+        int value = 0;
+        if (head > 8)
+            for (int i = 0; i < numOmitted; i++)
+                value |= 0xf << (28 - 4 * i);
+
+        if (nibble + (8 - numOmitted) > 2 * numBytes)
+            throw new DataFormatException("Corrupt MS-Numpress data: truncated integer");
+
+        for (int i = 0; i < 8 - numOmitted; i++)
+            value |= readNibble(data, nibble++) << (4 * i);
+
+        return ((long) nibble << 32) | (value & 0xffffffffL);
+    }
+}
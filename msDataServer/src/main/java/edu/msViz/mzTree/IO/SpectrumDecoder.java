@@ -0,0 +1,416 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.IO;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reusable decoder of mzML binary data arrays, optionally zlib and/or
+ * MS-Numpress compressed. Each thread has its own
+ * decoder holding an Inflater and growable scratch buffers, so decoding
+ * a spectrum allocates nothing once the buffers have grown to fit.
+ * Decoded values are read in place through little endian array views.
+ */
+public class SpectrumDecoder
+{
+    // one decoder per decoding thread
+    private static final ThreadLocal<SpectrumDecoder> DECODERS = ThreadLocal.withInitial(SpectrumDecoder::new);
+
+    // zlib decompressor, reset between arrays
+    private final Inflater inflater = new Inflater();
+
+    // view of the last decoded mz array
+    private final ArrayView mzView = new ArrayView();
+
+    // view of the last decoded intensity array
+    private final ArrayView intensityView = new ArrayView();
+
+    /**
+     * Returns the calling thread's decoder
+     * @return decoder owned by the current thread
+     */
+    public static SpectrumDecoder forCurrentThread()
+    {
+        return DECODERS.get();
+    }
+
+    /**
+     * Decodes an mz array. The returned view is valid until the next mz array is decoded
+     * @param encoded base64 decoded array bytes
+     * @param isCompressed flag to signal the bytes are zlib compressed
+     * @param isDouble flag to signal if data is 32 or 64 bit floating point
+     * @return view of the decoded values
+     * @throws DataFormatException
+     */
+    public ArrayView decodeMz(EncodedArray encoded, boolean isCompressed, boolean isDouble) throws DataFormatException
+    {
+        return this.decode(this.mzView, encoded, isCompressed, isDouble, null);
+    }
+
+    /**
+     * Decodes an mz array, numpress compressed if numpress is not null
+     * @param encoded base64 decoded array bytes
+     * @param isCompressed flag to signal the bytes are zlib compressed
+     * @param isDouble flag to signal if uncompressed data is 32 or 64 bit floating point
+     * @param numpress numpress compression of the data, null if none
+     * @return view of the decoded values, valid until the next mz array is decoded
+     * @throws DataFormatException
+     */
+    public ArrayView decodeMz(EncodedArray encoded, boolean isCompressed, boolean isDouble, Numpress numpress) throws DataFormatException
+    {
+        return this.decode(this.mzView, encoded, isCompressed, isDouble, numpress);
+    }
+
+    /**
+     * Decodes an intensity array. The returned view is valid until the next intensity array is decoded
+     * @param encoded base64 decoded array bytes
+     * @param isCompressed flag to signal the bytes are zlib compressed
+     * @param isDouble flag to signal if data is 32 or 64 bit floating point
+     * @return view of the decoded values
+     * @throws DataFormatException
+     */
+    public ArrayView decodeIntensity(EncodedArray encoded, boolean isCompressed, boolean isDouble) throws DataFormatException
+    {
+        return this.decode(this.intensityView, encoded, isCompressed, isDouble, null);
+    }
+
+    /**
+     * Decodes an intensity array, numpress compressed if numpress is not null
+     * @param encoded base64 decoded array bytes
+     * @param isCompressed flag to signal the bytes are zlib compressed
+     * @param isDouble flag to signal if uncompressed data is 32 or 64 bit floating point
+     * @param numpress numpress compression of the data, null if none
+     * @return view of the decoded values, valid until the next intensity array is decoded
+     * @throws DataFormatException
+     */
+    public ArrayView decodeIntensity(EncodedArray encoded, boolean isCompressed, boolean isDouble, Numpress numpress) throws DataFormatException
+    {
+        return this.decode(this.intensityView, encoded, isCompressed, isDouble, numpress);
+    }
+
+    /* Points the view at the array's values, inflating and numpress decoding them into the view's scratch buffers as needed */
+    private ArrayView decode(ArrayView view, EncodedArray encoded, boolean isCompressed, boolean isDouble, Numpress numpress) throws DataFormatException
+    {
+        // uncompressed values are read straight from the encoded bytes
+        byte[] bytes = encoded.bytes;
+        int numBytes = encoded.numBytes;
+        ByteBuffer buffer = encoded.buffer;
+
+        if (isCompressed) {
+            numBytes = this.inflate(view, encoded);
+            bytes = view.scratch;
+            buffer = view.scratchBuffer;
+        }
+
+        if (numpress != null) {
+            view.ensureDecodedCapacity(numpress.maxNumValues(numBytes));
+            view.pointDecoded(numpress.decode(bytes, numBytes, view.decoded));
+        }
+        else
+            view.point(buffer, numBytes, isDouble);
+
+        return view;
+    }
+
+    /* Inflates the zlib compressed array into the view's scratch buffer, growing it as needed */
+    private int inflate(ArrayView view, EncodedArray encoded) throws DataFormatException
+    {
+        this.inflater.reset();
+        this.inflater.setInput(encoded.bytes, 0, encoded.numBytes);
+
+        int numBytes = 0;
+        while (!this.inflater.finished())
+        {
+            if (numBytes == view.scratch.length)
+                view.growScratch(Math.max(encoded.numBytes * 2, 1024));
+
+            int count = this.inflater.inflate(view.scratch, numBytes, view.scratch.length - numBytes);
+            if (count == 0 && !this.inflater.finished() && (this.inflater.needsInput() || this.inflater.needsDictionary()))
+                throw new DataFormatException("Truncated zlib compressed binary data");
+            numBytes += count;
+        }
+        return numBytes;
+    }
+
+    //**********************************************//
+    //                 ENCODED ARRAY                //
+    //**********************************************//
+
+    /**
+     * Bytes of a binary data array, base64 decoded incrementally as the
+     * element's text is read
+     */
+    public static final class EncodedArray
+    {
+        // value of each base64 character, -1 for invalid and -2 for ignored whitespace
+        private static final byte[] BASE64_VALUES = new byte[128];
+
+        static {
+            Arrays.fill(BASE64_VALUES, (byte) -1);
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            for (int i = 0; i < alphabet.length(); i++)
+                BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+            BASE64_VALUES[' '] = BASE64_VALUES['\n'] = BASE64_VALUES['\r'] = BASE64_VALUES['\t'] = -2;
+        }
+
+        // decoded bytes, valid up to numBytes
+        private byte[] bytes = new byte[0];
+
+        // number of decoded bytes
+        private int numBytes = 0;
+
+        // little endian buffer over bytes, replaced when bytes grows
+        private ByteBuffer buffer = wrap(this.bytes);
+
+        // bits of the partially read base64 quantum
+        private int quantum = 0;
+
+        // number of characters in the partial quantum
+        private int numQuantumChars = 0;
+
+        // set once padding has been read
+        private boolean padded = false;
+
+        /**
+         * Number of decoded bytes
+         * @return number of bytes
+         */
+        public int size()
+        {
+            return this.numBytes;
+        }
+
+        /**
+         * Discards the decoded bytes, keeping the buffer for reuse
+         */
+        public void clear()
+        {
+            this.numBytes = 0;
+            this.quantum = 0;
+            this.numQuantumChars = 0;
+            this.padded = false;
+        }
+
+        /**
+         * Grows the buffer to hold the bytes of an encoded text of the given length
+         * @param encodedLength number of base64 characters expected
+         */
+        public void ensureEncodedCapacity(int encodedLength)
+        {
+            this.ensureCapacity((int) Math.min(Integer.MAX_VALUE, (encodedLength / 4L + 1) * 3));
+        }
+
+        /**
+         * Decodes base64 characters, appending the bytes. May be called once per
+         * text chunk of the element, quanta spanning chunks are carried over
+         * @param text character buffer holding the base64 text
+         * @param start index of the first character to decode
+         * @param length number of characters to decode
+         */
+        public void appendBase64(char[] text, int start, int length)
+        {
+            this.ensureCapacity(this.numBytes + (this.numQuantumChars + length) / 4 * 3 + 2);
+
+            byte[] out = this.bytes;
+            int n = this.numBytes;
+            int bits = this.quantum;
+            int numChars = this.numQuantumChars;
+
+            for (int i = start, end = start + length; i < end; i++)
+            {
+                char c = text[i];
+                int value = (c < 128) ? BASE64_VALUES[c] : -1;
+
+                if (value >= 0 && !this.padded) {
+                    bits = (bits << 6) | value;
+                    if (++numChars == 4) {
+                        out[n++] = (byte) (bits >> 16);
+                        out[n++] = (byte) (bits >> 8);
+                        out[n++] = (byte) bits;
+                        bits = 0;
+                        numChars = 0;
+                    }
+                } else if (c == '=') {
+                    // padding closes the final partial quantum
+                    if (!this.padded) {
+                        this.numBytes = n;
+                        this.quantum = bits;
+                        this.numQuantumChars = numChars;
+                        this.flushQuantum();
+                        n = this.numBytes;
+                        bits = 0;
+                        numChars = 0;
+                        this.padded = true;
+                    }
+                } else if (value != -2) {
+                    throw new IllegalArgumentException("Illegal base64 character " + (int) c + " in binary data");
+                }
+            }
+
+            this.numBytes = n;
+            this.quantum = bits;
+            this.numQuantumChars = numChars;
+        }
+
+        /**
+         * Completes the decoding of unpadded text, called after the last chunk
+         */
+        public void finishBase64()
+        {
+            this.flushQuantum();
+        }
+
+        /* Writes the bytes of a partial quantum */
+        private void flushQuantum()
+        {
+            switch (this.numQuantumChars)
+            {
+                case 0:
+                    break;
+                case 2:
+                    this.bytes[this.numBytes++] = (byte) (this.quantum >> 4);
+                    break;
+                case 3:
+                    this.bytes[this.numBytes++] = (byte) (this.quantum >> 10);
+                    this.bytes[this.numBytes++] = (byte) (this.quantum >> 2);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Truncated base64 binary data");
+            }
+            this.quantum = 0;
+            this.numQuantumChars = 0;
+        }
+
+        /* Grows the byte buffer to hold at least capacity bytes */
+        private void ensureCapacity(int capacity)
+        {
+            if (capacity <= this.bytes.length)
+                return;
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(capacity, this.bytes.length * 2));
+            this.buffer = wrap(this.bytes);
+        }
+
+    }
+
+    //**********************************************//
+    //                  ARRAY VIEW                  //
+    //**********************************************//
+
+    /**
+     * Little endian 32 or 64 bit floating point values read in place from a
+     * decoded byte buffer, or numpress decoded values
+     */
+    public static final class ArrayView
+    {
+        // inflated bytes of compressed arrays
+        private byte[] scratch = new byte[0];
+
+        // little endian buffer over scratch, replaced when scratch grows
+        private ByteBuffer scratchBuffer = wrap(this.scratch);
+
+        // numpress decoded values
+        private double[] decoded = new double[0];
+
+        // buffer holding the values, null if they are numpress decoded
+        private ByteBuffer values;
+
+        // number of values
+        private int size;
+
+        // flag to signal if values are 32 or 64 bit floating point
+        private boolean isDouble;
+
+        /**
+         * Number of values in the array
+         * @return number of values
+         */
+        public int size()
+        {
+            return this.size;
+        }
+
+        /**
+         * Reads the value at index i
+         * @param i index of the value
+         * @return value widened to double
+         */
+        public double get(int i)
+        {
+            if (this.values == null)
+                return this.decoded[i];
+            return this.isDouble ? this.values.getDouble(i << 3) : this.values.getFloat(i << 2);
+        }
+
+        /**
+         * Flag signalling the values are 32 bit floats, read without widening by getFloat
+         * @return true if the values are 32 bit floats
+         */
+        public boolean isFloat()
+        {
+            return this.values != null && !this.isDouble;
+        }
+
+        /**
+         * Reads the 32 bit float value at index i. Only valid if isFloat()
+         * @param i index of the value
+         * @return value as stored
+         */
+        public float getFloat(int i)
+        {
+            return this.values.getFloat(i << 2);
+        }
+
+        /**
+         * Copies every value into dest
+         * @param dest array receiving the values, at least size long
+         */
+        public void copyTo(double[] dest)
+        {
+            for (int i = 0; i < this.size; i++)
+                dest[i] = this.get(i);
+        }
+
+        /* Points the view at the values held by the first numBytes of the buffer */
+        private void point(ByteBuffer buffer, int numBytes, boolean isDouble)
+        {
+            this.values = buffer;
+            this.isDouble = isDouble;
+            this.size = numBytes / (isDouble ? 8 : 4);
+        }
+
+        /* Points the view at the first numValues numpress decoded values */
+        private void pointDecoded(int numValues)
+        {
+            this.values = null;
+            this.isDouble = true;
+            this.size = numValues;
+        }
+
+        /* Grows the numpress decoded value buffer to hold at least capacity values */
+        private void ensureDecodedCapacity(int capacity)
+        {
+            if (capacity > this.decoded.length)
+                this.decoded = new double[Math.max(capacity, this.decoded.length * 2)];
+        }
+
+        /* Grows the scratch buffer, keeping the bytes inflated so far */
+        private void growScratch(int minCapacity)
+        {
+            this.scratch = Arrays.copyOf(this.scratch, Math.max(minCapacity, this.scratch.length * 2));
+            this.scratchBuffer = wrap(this.scratch);
+        }
+    }
+
+    /* Wraps bytes in a little endian buffer */
+    private static ByteBuffer wrap(byte[] bytes)
+    {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
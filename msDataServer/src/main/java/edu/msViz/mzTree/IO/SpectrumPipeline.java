@@ -0,0 +1,152 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.IO;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Staged mzML reading pipeline. A single parser thread scans the XML and
+ * extracts each spectrum's encoded arrays, a pool of decoder threads decodes
+ * and inflates spectra in parallel, and the consumer takes decoded spectra in
+ * file order through a bounded queue. The parser blocks once the queue is
+ * full, so at most capacity spectra are held ahead of the consumer.
+ */
+class SpectrumPipeline implements AutoCloseable
+{
+    /**
+     * Scans the mzML file, handing each spectrum to be decoded to the handler
+     */
+    interface SpectrumSource {
+        void parse(SpectrumHandler handler) throws Exception;
+    }
+
+    /**
+     * Accepts a parsed spectrum, blocking while the pipeline is full
+     */
+    interface SpectrumHandler {
+        void accept(SpectrumInformation spectrum) throws InterruptedException;
+    }
+
+    /**
+     * Decodes the encoded arrays of a parsed spectrum
+     */
+    interface SpectrumDecoding {
+        DecodedSpectrum decode(SpectrumInformation spectrum) throws Exception;
+    }
+
+    // marks the end of the file in the queue
+    private static final Future<DecodedSpectrum> END = CompletableFuture.completedFuture(null);
+
+    // decoded (or decoding) spectra in file order
+    private final BlockingQueue<Future<DecodedSpectrum>> queue;
+
+    // spectrum decoding threads
+    private final ExecutorService decodePool;
+
+    // XML scanning thread
+    private final Thread parseThread;
+
+    // set once the end of the file or a failure has been consumed
+    private boolean finished = false;
+
+    /**
+     * Starts the parser thread and decoder pool
+     * @param source XML scan producing the spectra
+     * @param decoding spectrum decoding run on the decoder threads
+     * @param numDecodeThreads number of decoder threads
+     * @param capacity number of spectra held ahead of the consumer
+     */
+    SpectrumPipeline(SpectrumSource source, SpectrumDecoding decoding, int numDecodeThreads, int capacity)
+    {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.decodePool = Executors.newFixedThreadPool(numDecodeThreads, r -> {
+            Thread thread = new Thread(r, "mzML decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.parseThread = new Thread(() -> {
+            try {
+                source.parse(spectrum -> this.queue.put(this.decodePool.submit(() -> decoding.decode(spectrum))));
+                this.queue.put(END);
+            } catch (InterruptedException ex) {
+                // pipeline closed by the consumer
+            } catch (Exception ex) {
+                // hand the failure to the consumer in file order
+                CompletableFuture<DecodedSpectrum> failure = new CompletableFuture<>();
+                failure.completeExceptionally(ex);
+                try {
+                    this.queue.put(failure);
+                } catch (InterruptedException iex) {
+                    // pipeline closed by the consumer
+                }
+            }
+        }, "mzML parser");
+        this.parseThread.setDaemon(true);
+        this.parseThread.start();
+    }
+
+    /**
+     * Takes the next spectrum in file order, waiting for it to be decoded
+     * @return the next decoded spectrum, null at the end of the file
+     * @throws IOException
+     * @throws XMLStreamException
+     * @throws DataFormatException
+     */
+    DecodedSpectrum next() throws IOException, XMLStreamException, DataFormatException
+    {
+        if (this.finished)
+            return null;
+
+        try {
+            DecodedSpectrum spectrum = this.queue.take().get();
+            if (spectrum == null)
+                this.finished = true;
+            return spectrum;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading mzML spectra");
+        } catch (ExecutionException ex) {
+            this.finished = true;
+
+            // rethrow the parse or decode failure as thrown
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof XMLStreamException)
+                throw (XMLStreamException) cause;
+            if (cause instanceof DataFormatException)
+                throw (DataFormatException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops the parser thread and decoder pool, discarding unconsumed spectra
+     */
+    @Override
+    public void close()
+    {
+        this.finished = true;
+        this.parseThread.interrupt();
+        this.decodePool.shutdownNow();
+        this.queue.clear();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sparse index of the scans of a leaf whose points are stored in (rt, mz)
+ * order. Each entry holds the rt of a scan and the position within the leaf
+ * of the scan's first point, for at most MAX_NUM_ENTRIES evenly spaced scans.
+ * A query binary searches the entries for the range of points that can lie
+ * within its rt bounds, and decodes only that range
+ */
+public class LeafScanIndex
+{
+    // maximum number of entries per leaf, bounding the index's size in memory
+    public static final int MAX_NUM_ENTRIES = 32;
+
+    // number of bytes per serialized entry (rt float, position int)
+    private static final int ENTRY_NUM_BYTES = 4 + 4;
+
+    // rt of each indexed scan, ascending
+    private final float[] rts;
+
+    // position within the leaf of each indexed scan's first point
+    private final int[] positions;
+
+    private LeafScanIndex(float[] rts, int[] positions)
+    {
+        this.rts = rts;
+        this.positions = positions;
+    }
+
+    /**
+     * Builds the scan index of a leaf's points
+     * @param points the leaf's points in storage order
+     * @return scan index, null if the points are not sorted by rt
+     */
+    public static LeafScanIndex build(PointBlock points)
+    {
+        int numPoints = points.size();
+        if (numPoints == 0)
+            return null;
+
+        // space the entries evenly over the leaf's points
+        int spacing = Math.max(1, numPoints / MAX_NUM_ENTRIES);
+
+        float[] rts = new float[MAX_NUM_ENTRIES + 1];
+        int[] positions = new int[MAX_NUM_ENTRIES + 1];
+        int numEntries = 0;
+        int nextPosition = 0;
+
+        for (int i = 0; i < numPoints; i++)
+        {
+            // unsorted leaves cannot be indexed
+            if (i > 0 && !(points.rt[i] >= points.rt[i - 1]))
+                return null;
+
+            // an entry starts at the first point of a scan
+            boolean scanStart = i == 0 || points.rt[i] != points.rt[i - 1];
+            if (scanStart && i >= nextPosition && numEntries < rts.length) {
+                rts[numEntries] = points.rt[i];
+                positions[numEntries] = i;
+                numEntries++;
+                nextPosition = i + spacing;
+            }
+        }
+
+        return new LeafScanIndex(Arrays.copyOf(rts, numEntries), Arrays.copyOf(positions, numEntries));
+    }
+
+    /**
+     * Position of the first point that can lie at or above rtmin. Points
+     * before it precede an indexed scan whose rt is at most rtmin
+     * @param rtmin lower rt bound
+     * @return position within the leaf
+     */
+    public int start(float rtmin)
+    {
+        // last entry with rt <= rtmin
+        int k = this.upperBound(rtmin) - 1;
+        return (k < 0) ? 0 : this.positions[k];
+    }
+
+    /**
+     * Position following the last point that can lie at or below rtmax. Points
+     * from it on begin with an indexed scan whose rt exceeds rtmax
+     * @param rtmax upper rt bound
+     * @param numPoints number of points in the leaf
+     * @return position within the leaf
+     */
+    public int end(float rtmax, int numPoints)
+    {
+        // first entry with rt > rtmax
+        int k = this.upperBound(rtmax);
+        return (k == this.rts.length) ? numPoints : this.positions[k];
+    }
+
+    /* Index of the first entry whose rt exceeds the given rt */
+    private int upperBound(float rt)
+    {
+        int low = 0, high = this.rts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.rts[mid] <= rt)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Serializes the index for the Node table
+     * @return serialized entries
+     */
+    public byte[] toBytes()
+    {
+        ByteBuffer data = ByteBuffer.allocate(this.rts.length * ENTRY_NUM_BYTES);
+        for (int k = 0; k < this.rts.length; k++)
+            data.putFloat(this.rts[k]).putInt(this.positions[k]);
+        return data.array();
+    }
+
+    /**
+     * Deserializes an index read from the Node table
+     * @param bytes serialized entries
+     * @return scan index, null if bytes is null
+     */
+    public static LeafScanIndex fromBytes(byte[] bytes)
+    {
+        if (bytes == null)
+            return null;
+
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        int numEntries = bytes.length / ENTRY_NUM_BYTES;
+        float[] rts = new float[numEntries];
+        int[] positions = new int[numEntries];
+        for (int k = 0; k < numEntries; k++) {
+            rts[k] = data.getFloat();
+            positions[k] = data.getInt();
+        }
+        return new LeafScanIndex(rts, positions);
+    }
+}
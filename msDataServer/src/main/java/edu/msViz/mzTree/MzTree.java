@@ -11,6 +11,8 @@ import com.opencsv.CSVReader;
 import edu.msViz.mzTree.ImportState.ImportStatus;
 import edu.msViz.mzTree.storage.IntensityTracker;
 import edu.msViz.mzTree.storage.StorageFacade;
+import edu.msViz.mzTree.storage.BlockCodec;
+import edu.msViz.mzTree.storage.PointFormat;
 import edu.msViz.mzTree.storage.StorageFacadeFactory;
 import edu.msViz.mzTree.summarization.SummarizationStrategy;
 import edu.msViz.mzTree.summarization.SummarizationStrategyFactory;
@@ -22,9 +24,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
 import javax.xml.stream.XMLStreamException;
 import edu.msViz.mzTree.IO.MsDataRange;
@@ -60,9 +70,12 @@ public final class MzTree
     // a very tall tree (such as 2...)
     private static final int MINIMUM_BRANCHING_FACTOR = 4;
 
-    // fraction of heap alloted for MsDataPoints
+    // fraction of heap alloted for the points being built
     private static final float HEAP_FRACTION = .5f;
 
+    // maximum number of leaves sorted but not yet written during a build
+    private static final int MAX_PENDING_LEAF_WRITES = 64;
+
     // the branching factor of the tree (number of children per root/hidden node)
     public int branchingFactor;
 
@@ -79,9 +92,18 @@ public final class MzTree
     // point map, keyed by pointID for unified point storage
     public PointCache pointCache;
 
+    // decoded node points, keyed by nodeID for summary level queries
+    public NodeSummaryCache summaryCache;
+
     // mapping of traceIDs to envelopeIDs
     public Map<Integer,Integer> traceMap;
 
+    // compiled values of each trace, kept up to date by segmentation edits
+    public TraceAggregates traceAggregates;
+
+    // increased by every change to the segmentation (traces, envelopes)
+    private final AtomicLong segmentationVersion = new AtomicLong();
+
     // disk storage implementation
     public StorageFacade dataStorage;
 
@@ -89,12 +111,26 @@ public final class MzTree
     public boolean trackIntensity = true;
     public IntensityTracker intensityTracker;
 
-    // static storage interface choice
-    private static final StorageFacadeFactory.Facades STORAGE_INTERFACE_CHOICE = StorageFacadeFactory.Facades.Hybrid;
+    // storage interface choice
+    private StorageFacadeFactory.Facades storageInterfaceChoice = StorageFacadeFactory.Facades.Hybrid;
+
+    // point file format and leaf block codec of subsequent conversions
+    private PointFormat pointFormat = PointFormat.Record;
+    private BlockCodec blockCodec = BlockCodec.None;
+
+    // off-heap byte budget of the point cache, null for the default budget
+    private Long pointCacheBudget = null;
 
     // import progress monitor
     private ImportState importState;
 
+    // single thread writing leaf points during a build, and its pending writes
+    private ExecutorService leafWriter;
+    private Queue<Future<?>> leafWrites;
+
+    // bounds the leaf writes queued ahead of the leaf writer
+    private Semaphore leafWritePermits;
+
     /**
      * No argument constructor for basic initialization
      * @param importMonitor import progress monitor
@@ -117,6 +153,29 @@ public final class MzTree
         this.convertDestinationProvider = convertDestinationProvider;
     }
 
+    // The storage implementation used for subsequent loads, e.g. HybridMapped
+    // to access the point file through memory mappings
+    public void setStorageInterfaceChoice(StorageFacadeFactory.Facades storageInterfaceChoice) {
+        this.storageInterfaceChoice = storageInterfaceChoice;
+    }
+
+    // The point file format of subsequent conversions, e.g. Compact for
+    // smaller point files. Loaded files keep the format they were converted with
+    public void setPointFormat(PointFormat pointFormat) {
+        this.pointFormat = pointFormat;
+    }
+
+    // The codec of the leaf blocks of subsequent Compact conversions, e.g. Deflate
+    // for archives where disk bandwidth dominates full resolution queries
+    public void setBlockCodec(BlockCodec blockCodec) {
+        this.blockCodec = blockCodec;
+    }
+
+    // The number of off-heap bytes the point cache of subsequent loads may use
+    public void setPointCacheBudget(long numBytes) {
+        this.pointCacheBudget = numBytes;
+    }
+
     //***********************************************//
     //                     LOAD                      //
     //***********************************************//
@@ -194,7 +253,7 @@ public final class MzTree
             this.traceMap = HashIntIntMaps.newMutableMap();
 
             // initialize data storage on mzTree file
-            this.initDataStorage(STORAGE_INTERFACE_CHOICE, filePath, null);
+            this.initDataStorage(this.storageInterfaceChoice, filePath, null);
 
             // inform the importState of an .mzTree load
             this.importState.setImportStatus(ImportStatus.LOADING_MZTREE);
@@ -210,7 +269,7 @@ public final class MzTree
 
             // load intensity tracking data
             if (new File(filePath + "-intensity").exists()) {
-                this.intensityTracker = new IntensityTracker(filePath + "-intensity", pointCache);
+                this.intensityTracker = new IntensityTracker(filePath + "-intensity", pointCache, dataStorage);
             }
 
             // inform importState that mzTree load has finished
@@ -261,7 +320,7 @@ public final class MzTree
         this.head = new MzTreeNode(this.branchingFactor);
 
         if (trackIntensity) {
-            this.intensityTracker = new IntensityTracker(dataStorage.getFilePath() + "-intensity", pointCache);
+            this.intensityTracker = new IntensityTracker(dataStorage.getFilePath() + "-intensity", pointCache, dataStorage);
             this.intensityTracker.setRunCount(this.branchingFactor);
             importState.setImportStatus(ImportStatus.INDEXING);
         }
@@ -269,34 +328,56 @@ public final class MzTree
         // iterate through each level 1 node, loading partition and
         // constructing separately
 
+        // ID of the first point of the next partition
+        int firstPointID = 0;
+
+        // number of points storage was reserved for, an upper bound on the points read
+        int numPoints = mzmlParser.countPoints();
+
         for(int i = 0; i < this.branchingFactor; i++)
         {
             // current level 1 node
             MzTreeNode curL1Node = new MzTreeNode(this.branchingFactor);
 
             // load level 1 node's partition
-            List<MsDataPoint> curPartition = mzmlParser.readPartition();
+            PointBlock curPartition = mzmlParser.readPartitionColumns();
+
+            // an undercount would write past the reserved points
+            if(firstPointID + curPartition.size() > numPoints)
+                throw new IOException("mzML file holds more points than the " + numPoints + " counted, partition " + i + " would exceed them");
 
-            // recursively construct level 1 node
-            this.divide(true, curPartition, curL1Node , 1);
+            // the point count may be an upper bound, leaving trailing partitions empty
+            if(curPartition.size() > 0)
+            {
+                // recursively construct level 1 node
+                this.divide(true, curPartition, curL1Node , 1, firstPointID);
+                firstPointID += curPartition.size();
 
-            // add the level 1 node to the root node
-            this.head.addChildGetBounds(curL1Node);
+                // add the level 1 node to the root node
+                this.head.addChildGetBounds(curL1Node);
+            }
 
             if (trackIntensity) {
-                curPartition.sort(Comparator.comparingDouble((MsDataPoint p) -> p.intensity).reversed());
-                intensityTracker.addRun(curPartition.stream().mapToInt(p -> p.pointID).toArray(), this.importState, this.branchingFactor);
+                intensityTracker.addRun(curPartition.idsByIntensityDescending(), this.importState, this.branchingFactor);
             }
 
             LOGGER.log(Level.INFO, "Completed partition " + i);
         }
 
+        // every point must have been read into a partition
+        if(mzmlParser.hasRemainingPoints())
+            throw new IOException("mzML file holds more points than the " + numPoints + " counted, points remain after the last partition");
+
+        // release the parser's pipeline
+        mzmlParser.close();
+
         if (trackIntensity) {
             intensityTracker.finishAdding();
         }
 
         // root node summarization!!!!!!
         this.head.summarizeFromChildren(MzTree.NUM_POINTS_PER_NODE, this.summarizer, this.pointCache);
+        this.saveNodeSummary(this.head);
 
         // recursively save node information (only points are saved during construction)
         this.recursiveNodeSave(this.head, 0);
@@ -320,7 +401,7 @@ public final class MzTree
     {
         importState.setImportStatus(ImportStatus.PARSING);
 
-        List<MsDataPoint> dataset = mzmlParser.readAllData();
+        PointBlock dataset = mzmlParser.readAllColumns();
 
         this.buildTreeFromRoot(dataset, Paths.get(filePath));
     }
@@ -336,7 +417,7 @@ public final class MzTree
     {
         this.importState.setImportStatus(ImportStatus.PARSING);
 
-        ArrayList<MsDataPoint> points = new ArrayList<>();
+        PointBlock points = new PointBlock();
 
         // temporary trace map
         Map<Integer,Integer> tempTraceMap = HashIntIntMaps.newMutableMap();
@@ -390,7 +471,7 @@ public final class MzTree
      * Constructs an MzTree from the dataset, starting at the root node (so no partitioned load)
      * @param dataset
      */
-    private void buildTreeFromRoot(List<MsDataPoint> dataset, Path sourceFilePath) throws Exception
+    private void buildTreeFromRoot(PointBlock dataset, Path sourceFilePath) throws Exception
     {
         LOGGER.log(Level.INFO, "Building MzTree from " + dataset.size() + " points");
 
@@ -399,7 +480,7 @@ public final class MzTree
         this.importState.setTotalWork(numPointsToSave);
         this.importState.setImportStatus(ImportStatus.CONVERTING);
 
-        this.initDataStorage(STORAGE_INTERFACE_CHOICE, getConvertDestinationPath(sourceFilePath).toString(), dataset.size());
+        this.initDataStorage(this.storageInterfaceChoice, getConvertDestinationPath(sourceFilePath).toString(), dataset.size());
 
         // **************** STEP 1: CONFIGURE TREE ****************
 
@@ -418,16 +499,16 @@ public final class MzTree
         // **************** STEP 2: BUILD ****************
 
         // divide the head node, do not sort at start (null), mzML data already sorted by RT
-        this.divide(null, dataset, this.head, 0);
+        this.divide(null, dataset, this.head, 0, 0);
 
 
         if (trackIntensity) {
           importState.setImportStatus(ImportStatus.INDEXING);
-          this.intensityTracker = new IntensityTracker(dataStorage.getFilePath() + "-intensity", pointCache);
+          this.intensityTracker = new IntensityTracker(dataStorage.getFilePath() + "-intensity", pointCache, dataStorage);
           this.intensityTracker.setRunCount(1);
-          dataset.sort(Comparator.comparingDouble((MsDataPoint p) -> p.intensity).reversed()); // work point 1
+          int[] pointIDsByIntensity = dataset.idsByIntensityDescending(); // work point 1
 
-          this.intensityTracker.addRun(dataset.stream().mapToInt(p -> p.pointID).toArray(), this.importState, 1); // work point 2
+          this.intensityTracker.addRun(pointIDsByIntensity, this.importState, 1); // work point 2
 
           this.intensityTracker.finishAdding(); // work point 3, ignore for status update
         }
@@ -447,95 +528,190 @@ public final class MzTree
     }
 
     /**
-     * Recursively divides the dataset into the mzTree, a depth first construction
-     * starting with the head node.
+     * Divides the dataset into the mzTree starting with the head node. Sibling
+     * subtrees are divided and summarized in parallel on a fork-join pool,
+     * while leaves are written by a single writer thread. The dataset is sorted
+     * in place, each subtree owning a contiguous range of it, and point IDs are
+     * assigned depth first from firstPointID, so the file layout matches a
+     * sequential build. Leaves are written straight from their range, which is
+     * not modified again, with at most MAX_PENDING_LEAF_WRITES queued.
+     * Returns once every leaf has been written.
      * @param sort_by_rt sorting flag, rt or mz
-     * @param dataset The recursive call's data partition
-     * @param head The recursive call's top level node
+     * @param dataset The data partition of the head node
+     * @param head The top level node
      * @param curHeight current height in three (root is 0)
+     * @param firstPointID ID assigned to the first point of the partition
      */
-    private void divide(Boolean sort_by_rt, List<MsDataPoint> dataset, MzTreeNode head, int curHeight)
+    private void divide(Boolean sort_by_rt, PointBlock dataset, MzTreeNode head, int curHeight, int firstPointID)
     {
-        // leaf flag
-        boolean isLeaf = dataset.size() <= MzTree.NUM_POINTS_PER_NODE;
+        ForkJoinPool buildPool = new ForkJoinPool();
+        this.leafWriter = Executors.newSingleThreadExecutor();
+        this.leafWrites = new ConcurrentLinkedQueue<>();
+        this.leafWritePermits = new Semaphore(MAX_PENDING_LEAF_WRITES);
 
-        // LEAF: save points, get mins/maxes
-        if (isLeaf)
-        {
-            // leaf node submits its dataset to be written to data store
-            try{
-                this.dataStorage.savePoints(new StorageFacade.SavePointsTask(head,dataset), this.importState);
-            }
-            catch(Exception e)
-            {
-                LOGGER.log(Level.WARNING, "Could not save points to datastorage for leaf node: " + head.toString(), e);
-            }
+        try {
+            buildPool.invoke(new DivideTask(sort_by_rt, dataset, 0, dataset.size(), head, curHeight, firstPointID));
 
-            // collect point IDs, mz/rt/intensity min/max
-            head.initLeaf(dataset);
+            // wait for the leaf writer to finish
+            for(Future<?> leafWrite : this.leafWrites) {
+                try {
+                    leafWrite.get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Could not save points to datastorage", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while saving points to datastorage", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            buildPool.shutdown();
+            this.leafWriter.shutdown();
+            this.leafWriter = null;
+            this.leafWrites = null;
+            this.leafWritePermits = null;
+        }
+    }
 
-            dataset = null; // garbage collect away
+    /**
+     * Recursively divides a range of the dataset into a subtree, forking the
+     * subtrees of its children
+     */
+    private class DivideTask extends RecursiveAction
+    {
+        private final Boolean sort_by_rt;
+        private final PointBlock dataset;
+        private final int from;
+        private final int to;
+        private final MzTreeNode head;
+        private final int curHeight;
+        private final int firstPointID;
+
+        /**
+         * @param sort_by_rt sorting flag, rt or mz
+         * @param dataset The data partition of the build
+         * @param from index of the recursive call's first point in dataset
+         * @param to index following the recursive call's last point in dataset
+         * @param head The recursive call's top level node
+         * @param curHeight current height in three (root is 0)
+         * @param firstPointID ID assigned to the point at from
+         */
+        DivideTask(Boolean sort_by_rt, PointBlock dataset, int from, int to, MzTreeNode head, int curHeight, int firstPointID)
+        {
+            this.sort_by_rt = sort_by_rt;
+            this.dataset = dataset;
+            this.from = from;
+            this.to = to;
+            this.head = head;
+            this.curHeight = curHeight;
+            this.firstPointID = firstPointID;
         }
 
-        // ROOT/INTERMEDIATE: summarize, partition and recurse
-        else
+        @Override
+        protected void compute()
         {
+            // number of points in the recursive call's range
+            int numPoints = to - from;
 
-            // if sort_by_rt is null then don't sort, implies initial partition
-            // on mzml sourced data which is already sorted by RT
-            if(sort_by_rt != null)
+            // leaf flag
+            boolean isLeaf = numPoints <= MzTree.NUM_POINTS_PER_NODE;
+
+            // LEAF: assign IDs, get mins/maxes, save points
+            if (isLeaf)
             {
-                if (sort_by_rt)
-                    Collections.sort(dataset, Comparator.comparingDouble((MsDataPoint dataPoint) -> dataPoint.rt));
-                else
-                    Collections.sort(dataset, Comparator.comparingDouble((MsDataPoint dataPoint) -> dataPoint.mz));
+                // leaf points are stored in (rt, mz) order and occupy a contiguous range of IDs
+                dataset.sortByRtMz(from, to);
+                for(int i = from; i < to; i++)
+                    dataset.id[i] = firstPointID + (i - from);
+
+                // a copy of the leaf's points for the parent to summarize from memory
+                // (the write may not have happened yet), released once summarized
+                PointBlock leafPoints = dataset.copyRange(from, to);
+                head.summary = leafPoints;
+
+                // collect point IDs, mz/rt/intensity min/max, index the leaf's scans
+                head.initLeaf(leafPoints);
+                head.scanIndex = LeafScanIndex.build(leafPoints);
+
+                // leaf node submits its range to the leaf writer, waiting while
+                // the writer is too far behind
+                leafWritePermits.acquireUninterruptibly();
+                final StorageFacade.SavePointsTask task = new StorageFacade.SavePointsTask(head, dataset, from, to);
+                leafWrites.add(leafWriter.submit(() -> {
+                    try {
+                        dataStorage.savePoints(task, importState);
+                    } finally {
+                        leafWritePermits.release();
+                    }
+                    return null;
+                }));
             }
 
-            // the partition size is the subset length divided by the numChildrenPerNode
-            int partitionSize = (int) Math.ceil((double) dataset.size() / (double) this.branchingFactor);
-
-            // split the dataset into partitions
-            List<List<MsDataPoint>> partitions = new ArrayList<>();
-            int i = 0;
-            while(i < dataset.size())
+            // ROOT/INTERMEDIATE: summarize, partition and recurse
+            else
             {
-                // populate partition
-                final List<MsDataPoint> partition = dataset.subList(i, Math.min(i + partitionSize, dataset.size()));
-                i += partition.size();
 
-                // collect partition
-                partitions.add(partition);
-            }
-
-            // free dataset for GC
-            dataset = null;
+                // if sort_by_rt is null then don't sort, implies initial partition
+                // on mzml sourced data which is already sorted by RT
+                if(sort_by_rt != null)
+                {
+                    if (sort_by_rt)
+                        dataset.sortByRt(from, to);
+                    else
+                        dataset.sortByMz(from, to);
+                }
 
-            // distribute the partitions to child nodes
-            for(List<MsDataPoint> partition : partitions)
-            {
-                // instantiate child node
-                MzTreeNode child = new MzTreeNode(this.branchingFactor);
+                // the partition size is the subset length divided by the numChildrenPerNode
+                int partitionSize = (int) Math.ceil((double) numPoints / (double) branchingFactor);
 
-                // resolve sort_by_rt
+                // resolve sort_by_rt, if null (initial call mzML) set to true
                 Boolean my_sort_by_rt = sort_by_rt;
-
-                // if null (initial call mzML) set to true
                 if(my_sort_by_rt == null)
                     my_sort_by_rt = true;
 
-                // recursively divide child node (depth first)
-                this.divide(!my_sort_by_rt, partition, child, curHeight + 1);
+                // split the range into partitions, one child subtree each
+                List<DivideTask> childTasks = new ArrayList<>();
+                int i = from;
+                while(i < to)
+                {
+                    int partitionEnd = Math.min(i + partitionSize, to);
 
-                // collect child node
-                head.addChildGetBounds(child);
-            }
+                    // instantiate child node, its IDs follow those of its preceding siblings
+                    MzTreeNode child = new MzTreeNode(branchingFactor);
+                    childTasks.add(new DivideTask(!my_sort_by_rt, dataset, i, partitionEnd, child, curHeight + 1, firstPointID + (i - from)));
+
+                    i = partitionEnd;
+                }
+
+                // divide the child subtrees in parallel
+                invokeAll(childTasks);
+
+                // collect child nodes in partition order
+                for(DivideTask childTask : childTasks)
+                    head.addChildGetBounds(childTask.head);
 
-            // collect summary of points from child nodes (additionally saves pointIDs)
-            head.summarizeFromChildren(MzTree.NUM_POINTS_PER_NODE, this.summarizer, this.pointCache);
-            pointCache.clear();
+                // collect summary of points from child nodes (additionally saves pointIDs)
+                head.summarizeFromChildren(MzTree.NUM_POINTS_PER_NODE, summarizer, pointCache);
 
-        } // END ROOT/INTERMEDIATE NODE
+                // write the summary contiguously so queries read it in one pass
+                saveNodeSummary(head);
 
+            } // END ROOT/INTERMEDIATE NODE
+        }
+    }
+
+    /**
+     * Saves a contiguous copy of a node's summary to data storage
+     * @param node intermediate node that has summarized its children
+     */
+    private void saveNodeSummary(MzTreeNode node)
+    {
+        try{
+            this.dataStorage.saveNodeSummary(node);
+        }
+        catch(Exception e)
+        {
+            LOGGER.log(Level.WARNING, "Could not save summary to datastorage for node: " + node.toString(), e);
+        }
     }
 
     /**
@@ -560,6 +736,7 @@ public final class MzTree
         this.importState.setImportStatus(ImportStatus.PARSING);
 
         // count the number of points in the mzML file
+        // an indexed file gives an upper bound without decoding
         int numPoints = mzmlParser.countPoints();
 
         // number of available bytes in java heap
@@ -567,7 +744,8 @@ public final class MzTree
 
         // max allowed points to hold in memory at a time
         // = (heap size * FRACTION) / bytes per point
-        int maxPointsInRam = (int) Math.floor((numBytesInHeap * MzTree.HEAP_FRACTION) / (float)MsDataPoint.MEM_NUM_BYTES_PER_POINT);
+        // points are held as primitive columns during the build
+        int maxPointsInRam = (int) Math.floor((numBytesInHeap * MzTree.HEAP_FRACTION) / (float)PointBlock.NUM_BYTES_PER_POINT);
 
         // number of leafNodes = globalNumPoints / hdBlockTupleCapacity
         int numLeafNodes = (int) Math.ceil((float) numPoints / (float) MzTree.NUM_POINTS_PER_NODE);
@@ -587,15 +765,16 @@ public final class MzTree
             // cool logarithmic identity: logb(n) = log(n) / log(b)
             this.treeHeight = (short)(Math.ceil(Math.log(numLeafNodes) / Math.log(this.branchingFactor)));
 
-            // if branchingFactor unchanged by max call partitionSize == maxPointsInRam
+            // if branchingFactor unchanged by max call partitionSize <= maxPointsInRam
             // else partitionSize < maxPointsInRam -> SAFE
-            int partitionSize = (int) Math.floor( (float) numPoints / (float) this.branchingFactor);
+            // rounded up so the last partition reaches the end of the file
+            int partitionSize = (int) Math.ceil( (double) numPoints / (double) this.branchingFactor);
 
             // prepare parser for partitioned read
             // recalculate partition size
             mzmlParser.initPartitionedRead(partitionSize);
 
-            this.initDataStorage(STORAGE_INTERFACE_CHOICE, getConvertDestinationPath(sourceFilePath).toString(), numPoints);
+            this.initDataStorage(this.storageInterfaceChoice, getConvertDestinationPath(sourceFilePath).toString(), numPoints);
 
             // inform importState of the amount of work to do
             this.importState.setTotalWork(numPoints);
@@ -660,8 +839,14 @@ public final class MzTree
     {
         // init data storage module
         this.dataStorage = StorageFacadeFactory.create(storageChoice);
+        this.dataStorage.setPointFormat(this.pointFormat);
+        this.dataStorage.setBlockCodec(this.blockCodec);
         this.dataStorage.init(filePath, numPoints);
-        this.pointCache = new PointCache(this.dataStorage);
+        this.pointCache = (this.pointCacheBudget == null)
+                ? new PointCache(this.dataStorage)
+                : new PointCache(this.dataStorage, this.pointCacheBudget);
+        this.summaryCache = new NodeSummaryCache(this.dataStorage);
+        this.traceAggregates = new TraceAggregates(this.dataStorage, this.pointCache);
 
         this.importState.setMzTreeFilePath(this.dataStorage.getFilePath());
     }
@@ -685,65 +870,230 @@ public final class MzTree
     {
         boolean useSummary = (numPoints > 0);
 
+        QueryTraversal traversal = this.traverse(mzMin, mzMax, rtMin, rtMax, numPoints);
+
+        if(useSummary) {
+            // when using summary, the points have been collected and need to be summarized
+            return this.summarizeTraversal(traversal, numPoints);
+        } else {
+            // when not using summary, the points must be loaded from the leaf level
+
+            try {
+                // populate each node's pointID array
+                for(MzTreeNode node : traversal.nodes)
+                    ensurePointIDs(node);
+
+                // use the leaf-node optimized query
+                return this.dataStorage.loadLeavesPointsInBounds(traversal.nodes, traversal.mzMin, traversal.mzMax, traversal.rtMin, traversal.rtMax);
+            } catch(Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to load points from the leaf level", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Queries the MzTree for points contained with the mz, rt bounds, returning
+     * the points as a columnar block. Leaf level queries decode straight into
+     * the block without creating a point object per point.
+     *
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param numPoints number of points to be returned; 0 to return all points possible from the leaf depth and not use the cache
+     * @return block of points within the bounds, null if the leaf level could not be loaded
+     */
+    public PointBlock queryColumns(double mzMin, double mzMax,
+                                   float rtMin, float rtMax, int numPoints)
+    {
+        return this.queryColumns(mzMin, mzMax, rtMin, rtMax, numPoints, false);
+    }
+
+    /**
+     * Queries the MzTree for points contained with the mz, rt bounds, returning
+     * the points as a columnar block. Leaf level queries may read their leaves
+     * in parallel, for batch callers reading large areas (export, segmentation)
+     *
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param numPoints number of points to be returned; 0 to return all points possible from the leaf depth and not use the cache
+     * @param parallel if true a leaf level query fetches and decodes its leaves in parallel
+     * @return block of points within the bounds, null if the leaf level could not be loaded
+     */
+    public PointBlock queryColumns(double mzMin, double mzMax,
+                                   float rtMin, float rtMax, int numPoints, boolean parallel)
+    {
+        boolean useSummary = (numPoints > 0);
+
+        QueryTraversal traversal = this.traverse(mzMin, mzMax, rtMin, rtMax, numPoints);
+
+        if(useSummary) {
+            // return all points if there are not enough to summarize
+            if(traversal.points.size() <= numPoints)
+                return traversal.points;
+
+            // summary results are bounded by numPoints, copy into a block
+            return PointBlock.fromPoints(this.summarizer.summarize(traversal.points.toList(), numPoints));
+        } else {
+            try {
+                // populate each node's pointID array, sizing the block for the worst case
+                int capacity = 0;
+                for(MzTreeNode node : traversal.nodes) {
+                    ensurePointIDs(node);
+                    if(node.numSavedPoints != null)
+                        capacity += node.numSavedPoints;
+                    else if(node.pointIDs != null)
+                        capacity += node.pointIDs.length;
+                }
+
+                // use the leaf-node optimized query
+                PointBlock results = new PointBlock(capacity);
+                this.dataStorage.loadLeavesPointsInBounds(traversal.nodes, traversal.mzMin, traversal.mzMax, traversal.rtMin, traversal.rtMax, results, parallel);
+                return results;
+            } catch(Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to load points from the leaf level", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Opens a cursor over the points within the mz, rt bounds at the leaf
+     * level. Unlike a leaf level query, the points are loaded block by block
+     * as the cursor advances, so memory use does not grow with the range
+     *
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @return cursor positioned before the first block, to be closed by the caller
+     */
+    public PointCursor stream(double mzMin, double mzMax, float rtMin, float rtMax)
+    {
+        return this.stream(mzMin, mzMax, rtMin, rtMax, false);
+    }
+
+    /**
+     * Opens a cursor over the points within the mz, rt bounds at the leaf
+     * level, optionally reading the leaves of each block in parallel
+     *
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param parallel if true each block's leaves are fetched and decoded in parallel
+     * @return cursor positioned before the first block, to be closed by the caller
+     */
+    public PointCursor stream(double mzMin, double mzMax, float rtMin, float rtMax, boolean parallel)
+    {
+        QueryTraversal traversal = this.traverse(mzMin, mzMax, rtMin, rtMax, 0);
+        return new PointCursor(this, traversal.nodes, traversal.mzMin, traversal.mzMax, traversal.rtMin, traversal.rtMax, parallel);
+    }
+
+    /**
+     * Loads the points within bounds of a batch of leaves, for a PointCursor
+     * @param leaves leaf nodes whose points are loaded
+     * @param mzMin mz lower bound
+     * @param mzMax mz upper bound
+     * @param rtMin rt lower bound
+     * @param rtMax rt upper bound
+     * @param results block the points within bounds are appended to
+     * @param parallel if true the leaves are fetched and decoded in parallel
+     * @throws Exception
+     */
+    void loadLeavesPoints(List<MzTreeNode> leaves, double mzMin, double mzMax, float rtMin, float rtMax,
+                          PointBlock results, boolean parallel) throws Exception
+    {
+        // populate each node's pointID array
+        for(MzTreeNode node : leaves)
+            ensurePointIDs(node);
+
+        this.dataStorage.loadLeavesPointsInBounds(leaves, mzMin, mzMax, rtMin, rtMax, results, parallel);
+    }
+
+    /**
+     * State reached by descending the tree for a query: the effective query bounds,
+     * the deepest nodes visited and (when summarizing) the points collected there
+     */
+    private static class QueryTraversal
+    {
+        double mzMin, mzMax;
+        float rtMin, rtMax;
+
+        // all nodes in the final level of tree within the query bounds
+        ArrayList<MzTreeNode> nodes = new ArrayList<>();
+
+        // the points in the final level that are within the query bounds
+        PointBlock points = new PointBlock();
+    }
+
+    /**
+     * Follows down the tree all nodes within the query bounds. When numPoints
+     * is positive, stops at the first level holding at least numPoints points
+     * within bounds; otherwise continues to the leaf level
+     *
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param numPoints number of points to be returned; 0 to descend to the leaf level
+     * @return state of the traversal
+     */
+    private QueryTraversal traverse(double mzMin, double mzMax,
+                                    float rtMin, float rtMax, int numPoints)
+    {
+        boolean useSummary = (numPoints > 0);
+        QueryTraversal traversal = new QueryTraversal();
+
         // if zero passed for any query bound use global min/max
-        mzMin = (mzMin == 0) ? this.head.mzMin : mzMin;
-        mzMax = (mzMax == 0) ? this.head.mzMax : mzMax;
-        rtMin = (rtMin == 0) ? this.head.rtMin : rtMin;
-        rtMax = (rtMax == 0) ? this.head.rtMax : rtMax;
+        traversal.mzMin = (mzMin == 0) ? this.head.mzMin : mzMin;
+        traversal.mzMax = (mzMax == 0) ? this.head.mzMax : mzMax;
+        traversal.rtMin = (rtMin == 0) ? this.head.rtMin : rtMin;
+        traversal.rtMax = (rtMax == 0) ? this.head.rtMax : rtMax;
 
         // current level in tree
         int curLevel = 0;
 
-        // all nodes in current level of tree within the query bounds
-        ArrayList<MzTreeNode> curLevelNodesInBounds = new ArrayList<>();
-
-        // IDs the points in the current level that are within the query bounds
-        ArrayList<MsDataPoint> curLevelPointsInBounds = new ArrayList<>();
-
         // follow down the tree all nodes within the query bounds
         // base case: curLevel is the leaf level
         while(curLevel != this.treeHeight + 1){
 
-            // populates curLevelNodesInBounds with the children of the current curLevelNodesInBounds
+            // populates the traversal's nodes with the children of the current nodes
             // that are within the query's bounds
-            curLevelNodesInBounds = this.collectNextLevelNodesInBounds(curLevelNodesInBounds,mzMin,mzMax,rtMin,rtMax);
+            traversal.nodes = this.collectNextLevelNodesInBounds(traversal.nodes,traversal.mzMin,traversal.mzMax,traversal.rtMin,traversal.rtMax);
             curLevel++;
 
             if (useSummary) {
                 // find candidate points at current level
-                curLevelPointsInBounds = this.collectPointsWithinBounds(curLevelNodesInBounds,mzMin,mzMax,rtMin,rtMax);
+                traversal.points = this.collectPointsWithinBounds(traversal.nodes,traversal.mzMin,traversal.mzMax,traversal.rtMin,traversal.rtMax);
 
                 // stop going down the tree early if enough points are found
-                if (curLevelPointsInBounds.size() >= numPoints) {
+                if (traversal.points.size() >= numPoints) {
                     break;
                 }
             }
         }
 
-        if(useSummary) {
-            // when using summary, the points have been collected and need to be summarized
+        return traversal;
+    }
 
-            if(curLevelPointsInBounds.size() <= numPoints) {
-                // return all points if there are not enough to summarize
-                return curLevelPointsInBounds;
-            } else {
-                // return points sampled down using a summary
-                return this.summarizer.summarize(curLevelPointsInBounds, numPoints);
-            }
+    /**
+     * Summarizes the points collected by a traversal down to numPoints
+     * @param traversal traversal that collected candidate points
+     * @param numPoints number of points to be returned
+     * @return summarized points
+     */
+    private List<MsDataPoint> summarizeTraversal(QueryTraversal traversal, int numPoints)
+    {
+        if(traversal.points.size() <= numPoints) {
+            // return all points if there are not enough to summarize
+            return traversal.points.toList();
         } else {
-            // when not using summary, the points must be loaded from the leaf level
-
-            try {
-                // populate each node's pointID array
-                for(MzTreeNode node : curLevelNodesInBounds)
-                    ensurePointIDs(node);
-
-                // use the leaf-node optimized query
-                return this.dataStorage.loadLeavesPointsInBounds(curLevelNodesInBounds, mzMin, mzMax, rtMin, rtMax);
-            } catch(Exception e) {
-                LOGGER.log(Level.WARNING, "Failed to load points from the leaf level", e);
-                return null;
-            }
+            // return points sampled down using a summary
+            return this.summarizer.summarize(traversal.points.toList(), numPoints);
         }
     }
 
@@ -800,38 +1150,35 @@ public final class MzTree
      * @param mzMax mz upper bound
      * @param rtMin rt lower bound
      * @param rtMax rt upper bound
-     * @return List of MsDataPoints belonging to the given nodes that are within the given bounds
+     * @return block of points belonging to the given nodes that are within the given bounds
      */
-    private ArrayList<MsDataPoint> collectPointsWithinBounds(ArrayList<MzTreeNode> nodes,
-                                                             double mzMin, double mzMax, float rtMin, float rtMax){
+    private PointBlock collectPointsWithinBounds(ArrayList<MzTreeNode> nodes,
+                                                 double mzMin, double mzMax, float rtMin, float rtMax){
+
+        // block for collecting points that fall within bounds
+        PointBlock pointsWithinBounds = new PointBlock();
 
-        // collect all point IDs from all nodes
-        ArrayList<Integer> allNodesPointIDs = new ArrayList<>();
         for(MzTreeNode node : nodes) {
             ensurePointIDs(node);
 
-            allNodesPointIDs.addAll(Arrays.stream(node.pointIDs).boxed().collect(Collectors.toList()));
-        }
-
-        // retrieve all points from pointCache
-        ArrayList<MsDataPoint> allNodesPoints = this.pointCache.retrievePoints(allNodesPointIDs);
-
-        // arraylist for collecting points that fall within bounds
-        ArrayList<MsDataPoint> pointsWithinBounds = new ArrayList<>();
+            // retrieve the node's points from the summary cache
+            PointBlock nodePoints = this.summaryCache.retrieve(node);
+            if(nodePoints == null)
+                continue;
 
-        // iterate through all nodes, checking to see if they fall within the bounds
-        for(MsDataPoint pointToCheck : allNodesPoints){
-
-            // if in bounds then collect
-            if(pointToCheck.isInBounds(mzMin, mzMax, rtMin, rtMax))
-                pointsWithinBounds.add(pointToCheck);
+            // scan the node's points, collecting those within bounds
+            for(int i = 0; i < nodePoints.size(); i++) {
+                if(nodePoints.isInBounds(i, mzMin, mzMax, rtMin, rtMax))
+                    pointsWithinBounds.add(nodePoints, i);
+            }
         }
 
         return pointsWithinBounds;
     }
 
     private void ensurePointIDs(MzTreeNode node) {
-        if (node.pointIDs == null) {
+        // leaves and summary copies are read by location, without pointIDs
+        if (node.pointIDs == null && node.fileIndex == null && node.summaryIndex == null) {
             // node.pointIDs is lazy loaded on first access, not on file open
             try {
                 node.pointIDs = this.dataStorage.getNodePointIDs(node.nodeID);
@@ -870,13 +1217,112 @@ public final class MzTree
      */
     public void updateTraces(int traceID, Integer[] pointIDs) throws Exception
     {
+        // move the points' previous values between the trace aggregates
+        this.traceAggregates.moveTo(traceID, pointIDs);
+
         // update the trace of each point specified in pointIDs
         for(int i = 0; i < pointIDs.length; i++)
             this.pointCache.shallowTraceUpdate(pointIDs[i], traceID);
 
-
         this.dataStorage.updateTraces(traceID, pointIDs);
 
+        // keep the traced points of intensity tracking in step
+        if(this.intensityTracker != null)
+            this.intensityTracker.updateTraces(traceID, pointIDs);
+
+        // update the points' copies in the summaries above them
+        for(Integer pointID : pointIDs)
+            this.updateSummaryTraces(pointID, traceID);
+
+        this.summaryCache.updateTraces(traceID, pointIDs);
+        this.segmentationVersion.incrementAndGet();
+
+        // wait for the edit to reach the journal
+        this.dataStorage.commitEdits();
+    }
+
+    /**
+     * Assigns the points of several traces at once, creating the traces that
+     * do not exist yet with no envelope. Storage is updated in a single
+     * transaction rather than one per trace
+     * @param traces IDs of the points to update, keyed by their new traceID
+     * @throws java.lang.Exception
+     */
+    public void updateTraces(Map<Integer, Integer[]> traces) throws Exception
+    {
+        // create the new traces
+        List<Integer> newTraceIDs = new ArrayList<>();
+        for(Integer traceID : traces.keySet())
+            if(traceID > 0 && !this.traceMap.containsKey(traceID))
+                newTraceIDs.add(traceID);
+        if(!newTraceIDs.isEmpty())
+        {
+            this.dataStorage.insertTraces(newTraceIDs, 0);
+            for(Integer traceID : newTraceIDs)
+                this.traceMap.put(traceID, 0);
+        }
+
+        for(Map.Entry<Integer, Integer[]> trace : traces.entrySet())
+        {
+            // move the points' previous values between the trace aggregates
+            this.traceAggregates.moveTo(trace.getKey(), trace.getValue());
+
+            for(Integer pointID : trace.getValue())
+                this.pointCache.shallowTraceUpdate(pointID, trace.getKey());
+        }
+
+        this.dataStorage.updateTraces(traces);
+
+        // keep the traced points of intensity tracking in step
+        if(this.intensityTracker != null)
+            for(Map.Entry<Integer, Integer[]> trace : traces.entrySet())
+                this.intensityTracker.updateTraces(trace.getKey(), trace.getValue());
+
+        // update the points' copies in the summaries above them
+        for(Map.Entry<Integer, Integer[]> trace : traces.entrySet())
+        {
+            for(Integer pointID : trace.getValue())
+                this.updateSummaryTraces(pointID, trace.getKey());
+            this.summaryCache.updateTraces(trace.getKey(), trace.getValue());
+        }
+
+        this.segmentationVersion.incrementAndGet();
+
+        // wait for the edits to reach the journal
+        this.dataStorage.commitEdits();
+    }
+
+    /**
+     * Updates a point's copies in the saved summaries of the nodes on its
+     * path from the root. Each subtree holds a contiguous range of pointIDs,
+     * so the path is found without a search
+     * @param pointID ID of the point to update
+     * @param traceID updated traceID value
+     * @throws Exception
+     */
+    private void updateSummaryTraces(int pointID, int traceID) throws Exception
+    {
+        MzTreeNode node = this.head;
+        while(node != null && !node.children.isEmpty())
+        {
+            if(node.summaryIndex != null) {
+                // summaries are sorted by pointID
+                PointBlock summary = this.summaryCache.retrieve(node);
+                int index = (summary == null) ? -1 : summary.indexOfSorted(pointID);
+                if(index >= 0)
+                    this.dataStorage.updateSummaryTrace(node, index, traceID);
+            }
+
+            // descend to the child holding the point
+            MzTreeNode next = null;
+            for(MzTreeNode child : node.children) {
+                if(child.containsPointID(pointID)) {
+                    next = child;
+                    break;
+                }
+            }
+            node = next;
+        }
     }
 
     /**
@@ -891,6 +1337,7 @@ public final class MzTree
         this.traceMap.put(traceID, envelopeID);
 
         this.dataStorage.insertTrace(traceID, envelopeID);
+        this.dataStorage.commitEdits();
     }
 
     /**
@@ -900,17 +1347,32 @@ public final class MzTree
      */
     public void deleteTrace(int traceID) throws Exception
     {
+        // unassign the trace's points, found through the trace index
+        int[] pointIDs = this.dataStorage.getTracePointIDs(traceID);
+        Integer[] boxedIDs = new Integer[pointIDs.length];
+        for(int i = 0; i < pointIDs.length; i++)
+            boxedIDs[i] = pointIDs[i];
+        this.updateTraces(0, boxedIDs);
+
         // delete trace from traceMap
         this.traceMap.remove(traceID);
 
         // delete trace from storage
         this.dataStorage.deleteTrace(traceID);
+        this.traceAggregates.remove(traceID);
     }
 
     public void deleteTraces() throws Exception
     {
         // delete trace from storage
         this.dataStorage.deleteTraces();
+        this.traceAggregates.clear();
+        if(this.intensityTracker != null)
+            this.intensityTracker.clearTraces();
+
+        // cached node points may reference the traces
+        this.summaryCache.clear();
+        this.segmentationVersion.incrementAndGet();
     }
     /**
      * Updates the envelopeID of the specified traces
@@ -927,6 +1389,18 @@ public final class MzTree
 
         // update traces in storage
         this.dataStorage.updateEnvelopes(envelopeID, traceIDs);
+        this.segmentationVersion.incrementAndGet();
+    }
+
+    /**
+     * Version of the segmentation, increased by every update to the traces or
+     * envelopes (segmentation commands, their undo/redo, automated tracing).
+     * Query results are unchanged while the version is unchanged
+     * @return current segmentation version
+     */
+    public long getSegmentationVersion()
+    {
+        return this.segmentationVersion.get();
     }
 
     //***********************************************//
@@ -950,7 +1424,7 @@ public final class MzTree
             // copy intensity tracking data
             Path newIntensityFile = Paths.get(targetFilepath + "-intensity");
             Files.copy(Paths.get(sourceFilepath + "-intensity"), newIntensityFile);
-            this.intensityTracker = new IntensityTracker(newIntensityFile.toString(), this.pointCache);
+            this.intensityTracker = new IntensityTracker(newIntensityFile.toString(), this.pointCache, this.dataStorage);
         }
         catch(Exception e){
             LOGGER.log(Level.WARNING, "Could not create copy at " + targetFilepath.toString(), e);
@@ -992,22 +1466,25 @@ public final class MzTree
     {
         TracesBundle tracesBundle = new TracesBundle();
 
-        // query through dataset with slices along mz axis
-        final double mzWindowWidth = 8.0;
-        for(double mzWindowStart = this.head.mzMin; mzWindowStart < this.head.mzMax; mzWindowStart += mzWindowWidth)
-        {
-            double mzWindowEnd = Math.min(mzWindowStart + mzWindowWidth, this.head.mzMax);
+        // load only the traced points, found through the trace index
+        PointBlock points = new PointBlock();
+        try {
+            this.dataStorage.loadTracedPoints(points);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to load traced points. Trace bundle may be incomplete.", e);
+        }
 
-            List<MsDataPoint> points = this.query(mzWindowStart, mzWindowEnd, this.head.rtMin, this.head.rtMax, 0);
+        // add each point to the bundle (filter out noise and unsegmented)
+        for (int i = 0; i < points.size(); i++) {
+            int traceID = points.traceID[i];
+            if (traceID == 0 || traceID == -1)
+                continue;
 
-            // add each point to the bundle (filter out noise and unsegmented)
-            points.stream().filter(point -> point.traceID != 0 && point.traceID != -1).forEach((point) -> {
-                Integer envelope = this.traceMap.get(point.traceID);
-                if (envelope == null) {
-                    envelope = 0;
-                }
-                tracesBundle.addPoint(point.traceID,point.mz,point.rt,point.intensity, envelope);
-            });
+            Integer envelope = this.traceMap.get(traceID);
+            if (envelope == null) {
+                envelope = 0;
+            }
+            tracesBundle.addPoint(traceID, points.mz[i], points.rt[i], points.intensity[i], envelope);
         }
 
         return tracesBundle;
@@ -1124,6 +1601,21 @@ public final class MzTree
             return false;
     }
 
+    /**
+     * Gets the compiled values (centroid mz, rt bounds, intensity sum, apex rt)
+     * of every trace with points, from the incrementally maintained aggregates.
+     * The traces have no arcs, use bundleTraces().synthesize() where arcs are needed
+     * @return precompiled traces with their envelope IDs
+     * @throws Exception
+     */
+    public List<IsotopeTrace> getCompiledTraces() throws Exception
+    {
+        List<IsotopeTrace> traces = this.traceAggregates.getTraces();
+        for(IsotopeTrace trace : traces)
+            trace.envelopeID = this.traceMap.getOrDefault(trace.traceID, 0);
+        return traces;
+    }
+
     public List<IsotopeTrace> recompileTraces() throws Exception {
         List<IsotopeTrace> traces = this.bundleTraces().synthesize();
         this.saveCompiledTraces(traces);
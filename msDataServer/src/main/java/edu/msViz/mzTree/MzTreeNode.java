@@ -7,6 +7,8 @@ package edu.msViz.mzTree;
 
 import edu.msViz.mzTree.summarization.SummarizationStrategy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -24,6 +26,28 @@ public class MzTreeNode {
     
     // number of points stored in point file (leaf nodes only)
     public Integer numSavedPoints;
+
+    // absolute index of the node's summary copy in the point file (intermediate nodes only)
+    public Long summaryIndex;
+
+    // number of points in the node's summary copy (intermediate nodes only)
+    public Integer numSummaryPoints;
+
+    // codec ID and number of stored bytes of the leaf's block (Compact point files only)
+    public Integer blockCodec;
+    public Integer blockLength;
+
+    // positions of the scans of a leaf stored in (rt, mz) order, null if unsorted
+    public LeafScanIndex scanIndex;
+
+    // range of pointIDs held by the leaves at this node and below
+    // (points are written depth first, so each subtree's IDs are contiguous)
+    public int pointIDMin = Integer.MAX_VALUE;
+    public int pointIDMax = Integer.MIN_VALUE;
+
+    // summary points sorted by pointID, held during the build until
+    // the parent node has summarized them
+    public PointBlock summary;
     
     //Child nodes
     public ArrayList<MzTreeNode> children;
@@ -99,31 +123,43 @@ public class MzTreeNode {
         this.keepSmallestRtMin(child.rtMin);
         this.keepLargestIntMax(child.intMax);
         this.keepSmallestIntMin(child.intMin);
+        this.keepPointIDRange(child.pointIDMin, child.pointIDMax);
+    }
+
+    /**
+     * Checks if a point belongs to the subtree rooted at this node
+     * @param pointID ID of the point
+     * @return true if the point is stored in a leaf at this node or below
+     */
+    public boolean containsPointID(int pointID)
+    {
+        return pointID >= this.pointIDMin && pointID <= this.pointIDMax;
     }
 
     /**
      * Collects pointIDs of a dataset and discovers min/max mz/rt/int
      * @param msData dataset to process
      */
-    public void initLeaf(List<MsDataPoint> msData) {
+    public void initLeaf(PointBlock msData) {
         
         // set pointIDs array
-        this.collectPointIDs(msData);
+        this.pointIDs = Arrays.copyOf(msData.id, msData.size());
         
         // discover the minimums and maximums for mz,rt,int
         for (int i = 0; i < msData.size(); i++) {
-            MsDataPoint curPoint = msData.get(i);
             
             // keep largest maxes, smallest mins
             // mz
-            mzMax = (curPoint.mz > mzMax) ? curPoint.mz : mzMax;
-            mzMin = (curPoint.mz < mzMin) ? curPoint.mz : mzMin;
+            mzMax = (msData.mz[i] > mzMax) ? msData.mz[i] : mzMax;
+            mzMin = (msData.mz[i] < mzMin) ? msData.mz[i] : mzMin;
             // rt
-            rtMax = (curPoint.rt > rtMax) ? (float)curPoint.rt : rtMax;
-            rtMin = (curPoint.rt < rtMin) ? (float)curPoint.rt : rtMin;
+            rtMax = (msData.rt[i] > rtMax) ? msData.rt[i] : rtMax;
+            rtMin = (msData.rt[i] < rtMin) ? msData.rt[i] : rtMin;
             // int
-            intMax = (curPoint.intensity > intMax) ? curPoint.intensity : intMax;
-            intMin = (curPoint.intensity < intMin) ? curPoint.intensity : intMin;
+            intMax = (msData.intensity[i] > intMax) ? msData.intensity[i] : intMax;
+            intMin = (msData.intensity[i] < intMin) ? msData.intensity[i] : intMin;
+            // pointID
+            this.keepPointIDRange(msData.id[i], msData.id[i]);
         }
     }
     
@@ -136,7 +172,9 @@ public class MzTreeNode {
     }
     
     /**
-     * Collects a summary from the set of all childrens' data points
+     * Collects a summary from the set of all childrens' data points.
+     * The summary is held in memory, sorted by pointID, until the parent
+     * node summarizes it. The children's summaries are released here
      * @param numPoints number of points to collect
      * @param summarizer summarization strategy to gather sample with
      * @param dataStorage
@@ -146,13 +184,22 @@ public class MzTreeNode {
         List<MsDataPoint> childrensPoints = new ArrayList<>();
         
         
-        // collect all childrens' MsDataPoints from cache
+        // collect all childrens' MsDataPoints, from memory for intermediate
+        // children and from cache for leaf children
         for(MzTreeNode childNode : this.children) {
-            childrensPoints.addAll(pointCache.retrievePoints(childNode.pointIDs));
+            if(childNode.summary != null) {
+                childrensPoints.addAll(childNode.summary.toList());
+                childNode.summary = null;
+            }
+            else
+                childrensPoints.addAll(pointCache.retrievePoints(childNode.pointIDs));
         }
         
-        // summarize and collect point IDs
-        this.collectPointIDs(summarizer.summarize(childrensPoints, numPoints));
+        // summarize, order by pointID and collect point IDs
+        List<MsDataPoint> summaryPoints = new ArrayList<>(summarizer.summarize(childrensPoints, numPoints));
+        summaryPoints.sort(Comparator.comparingInt((MsDataPoint p) -> p.pointID));
+        this.summary = PointBlock.fromPoints(summaryPoints);
+        this.collectPointIDs(summaryPoints);
         
     }
     
@@ -183,4 +230,9 @@ public class MzTreeNode {
     public void keepSmallestIntMin(double _intMin) {
         if (_intMin < intMin) intMin = _intMin;
     }
+
+    public void keepPointIDRange(int _pointIDMin, int _pointIDMax) {
+        if (_pointIDMin < pointIDMin) pointIDMin = _pointIDMin;
+        if (_pointIDMax > pointIDMax) pointIDMax = _pointIDMax;
+    }
 }
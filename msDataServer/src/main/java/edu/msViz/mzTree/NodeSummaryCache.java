@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import edu.msViz.mzTree.storage.StorageFacade;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of decoded node points keyed by nodeID. Each entry holds all of a
+ * node's points (its summary, or its full contents for a leaf) as one
+ * PointBlock sorted by pointID, so a level of the tree is answered with a
+ * lookup per node and a bounds scan over primitive arrays.
+ * Least recently used nodes are evicted once the point budget is exceeded.
+ */
+public class NodeSummaryCache
+{
+    private static final Logger LOGGER = Logger.getLogger(NodeSummaryCache.class.getName());
+
+    // default byte budget as a fraction of the java heap size
+    private static final float DEFAULT_BUDGET_FRACTION = .125f;
+
+    // node blocks keyed by nodeID, in access order
+    private final LinkedHashMap<Integer, PointBlock> cache = new LinkedHashMap<>(16, .75f, true);
+
+    // limit on the number of points held by all cached blocks
+    private final long pointLimit;
+
+    // number of points held by all cached blocks
+    private long numPoints = 0;
+
+    // incremented by every trace update and clear, a block loaded while it
+    // changed may predate the update and is not cached
+    private long modCount = 0;
+
+    // StorageFacade object initialized by the mzTree
+    private final StorageFacade dataStorage;
+
+    /**
+     * Default constructor accepting data storage implementation, sizing the
+     * cache to a fraction of the heap size
+     * @param dataStorage data storage implementation
+     */
+    public NodeSummaryCache(StorageFacade dataStorage)
+    {
+        this(dataStorage, (long)(Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_FRACTION));
+    }
+
+    /**
+     * Constructor accepting data storage implementation and the number of
+     * heap bytes the cached blocks may use
+     * @param dataStorage data storage implementation
+     * @param numAllowedBytes byte budget for cached blocks
+     */
+    public NodeSummaryCache(StorageFacade dataStorage, long numAllowedBytes)
+    {
+        this.dataStorage = dataStorage;
+        this.pointLimit = Math.max(1, numAllowedBytes / PointBlock.NUM_BYTES_PER_POINT);
+    }
+
+    /**
+     * Retrieves the points of a node, loading them from storage if the node
+     * is not cached. The pointIDs of nodes without a leaf block or summary
+     * copy must already be populated.
+     * The returned block is shared and must not be modified.
+     * @param node node whose points are retrieved
+     * @return block of the node's points sorted by pointID, null if they could not be loaded
+     */
+    public PointBlock retrieve(MzTreeNode node)
+    {
+        PointBlock block;
+        long loadModCount;
+        synchronized (this) {
+            block = this.cache.get(node.nodeID);
+            loadModCount = this.modCount;
+        }
+        if (block != null)
+            return block;
+
+        try {
+            block = this.load(node);
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Unable to load points of node " + node.nodeID + " from storage", ex);
+            return null;
+        }
+
+        synchronized (this) {
+            // an update made during the load may be missing from the block
+            if (this.modCount != loadModCount)
+                return block;
+
+            PointBlock previous = this.cache.put(node.nodeID, block);
+            if (previous != null)
+                this.numPoints -= previous.size();
+            this.numPoints += block.size();
+            this.evict();
+        }
+        return block;
+    }
+
+    /**
+     * Updates the trace ID of cached points
+     * @param traceID updated trace ID value
+     * @param pointIDs IDs of the points to update
+     */
+    public synchronized void updateTraces(int traceID, Integer[] pointIDs)
+    {
+        this.modCount++;
+        for (PointBlock block : this.cache.values()) {
+            for (Integer pointID : pointIDs) {
+                int index = block.indexOfSorted(pointID);
+                if (index >= 0)
+                    block.traceID[index] = traceID;
+            }
+        }
+    }
+
+    /**
+     * Clears the cache
+     */
+    public synchronized void clear()
+    {
+        this.modCount++;
+        this.cache.clear();
+        this.numPoints = 0;
+    }
+
+    /**
+     * Returns the number of cached nodes
+     * @return number of cached nodes
+     */
+    public synchronized int size()
+    {
+        return this.cache.size();
+    }
+
+    /* Loads a node's points from storage as a block sorted by pointID */
+    private PointBlock load(MzTreeNode node) throws Exception
+    {
+        PointBlock block;
+
+        if (node.fileIndex != null) {
+            // leaf block, stored contiguously in pointID order
+            block = new PointBlock(node.numSavedPoints);
+            this.dataStorage.loadLeavesPointsInBounds(Collections.singletonList(node),
+                    Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, block);
+        } else if (node.summaryIndex != null) {
+            // contiguous summary copy, saved in pointID order
+            block = new PointBlock(node.numSummaryPoints);
+            this.dataStorage.loadNodeSummary(node, block);
+        } else {
+            // summary points of a file without summary copies, read in file order
+            int[] sortedIDs = node.pointIDs.clone();
+            Arrays.sort(sortedIDs);
+            block = new PointBlock(sortedIDs.length);
+            this.dataStorage.loadPoints(sortedIDs, block);
+        }
+
+        return block;
+    }
+
+    /* Evicts least recently used blocks until within the point budget, keeping at least one */
+    private void evict()
+    {
+        Iterator<Map.Entry<Integer, PointBlock>> it = this.cache.entrySet().iterator();
+        while (this.numPoints > this.pointLimit && this.cache.size() > 1 && it.hasNext()) {
+            this.numPoints -= it.next().getValue().size();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar collection of Mass Spectrometry data points, backed by parallel
+ * primitive arrays. Point i is (id[i], mz[i], rt[i], intensity[i], traceID[i]).
+ * Avoids the per-point object and boxed ID overhead of List&lt;MsDataPoint&gt;
+ * for large query results.
+ */
+public class PointBlock
+{
+    // number of bytes of array space used by each point
+    // id (4) mz (8) rt (4) intensity (8) traceID (4)
+    public static final int NUM_BYTES_PER_POINT = 4 + 8 + 4 + 8 + 4;
+
+    // capacity used when none is given
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    // ranges at most this long are insertion sorted
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    // point IDs
+    public int[] id;
+
+    // point mz values
+    public double[] mz;
+
+    // point rt values
+    public float[] rt;
+
+    // point intensity values
+    public double[] intensity;
+
+    // point trace IDs
+    public int[] traceID;
+
+    // number of points in the block (arrays may be larger)
+    private int size;
+
+    /**
+     * Compares two points of a block by their indices
+     */
+    public interface IndexComparator {
+        int compare(int i, int j);
+    }
+
+    /**
+     * Sort keys of a set of entries and the swap that moves them
+     */
+    private interface SortTarget {
+        double key(int i);
+        void swap(int i, int j);
+    }
+
+    /**
+     * Default constructor, creates an empty block
+     */
+    public PointBlock()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty block able to hold capacity points before growing
+     * @param capacity initial number of points the block can hold
+     */
+    public PointBlock(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        this.id = new int[capacity];
+        this.mz = new double[capacity];
+        this.rt = new float[capacity];
+        this.intensity = new double[capacity];
+        this.traceID = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Creates a block holding the values of the given points
+     * @param points points to copy into the block
+     * @return block containing the points in list order
+     */
+    public static PointBlock fromPoints(List<MsDataPoint> points)
+    {
+        PointBlock block = new PointBlock(points.size());
+        for (MsDataPoint point : points)
+            block.add(point);
+        return block;
+    }
+
+    /**
+     * Number of points in the block
+     * @return number of points
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Empties the block, keeping its arrays for reuse
+     */
+    public void clear()
+    {
+        this.size = 0;
+    }
+
+    /**
+     * Grows the arrays to hold at least capacity points
+     * @param capacity required number of points
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity <= this.id.length)
+            return;
+
+        // grow by half again, at least to the required capacity
+        int newCapacity = Math.max(capacity, this.id.length + (this.id.length >> 1));
+        this.id = Arrays.copyOf(this.id, newCapacity);
+        this.mz = Arrays.copyOf(this.mz, newCapacity);
+        this.rt = Arrays.copyOf(this.rt, newCapacity);
+        this.intensity = Arrays.copyOf(this.intensity, newCapacity);
+        this.traceID = Arrays.copyOf(this.traceID, newCapacity);
+    }
+
+    /**
+     * Appends a point's values to the block
+     * @param pointID point's ID
+     * @param pointMz point's mz value
+     * @param pointRt point's rt value
+     * @param pointIntensity point's intensity value
+     * @param pointTraceID point's trace ID
+     */
+    public void add(int pointID, double pointMz, float pointRt, double pointIntensity, int pointTraceID)
+    {
+        this.ensureCapacity(this.size + 1);
+        this.id[this.size] = pointID;
+        this.mz[this.size] = pointMz;
+        this.rt[this.size] = pointRt;
+        this.intensity[this.size] = pointIntensity;
+        this.traceID[this.size] = pointTraceID;
+        this.size++;
+    }
+
+    /**
+     * Appends a point to the block
+     * @param point point to append
+     */
+    public void add(MsDataPoint point)
+    {
+        this.add(point.pointID, point.mz, point.rt, point.intensity, point.traceID);
+    }
+
+    /**
+     * Appends the point at index i of another block to this block
+     * @param source block holding the point
+     * @param i index of the point in the source block
+     */
+    public void add(PointBlock source, int i)
+    {
+        this.add(source.id[i], source.mz[i], source.rt[i], source.intensity[i], source.traceID[i]);
+    }
+
+    /**
+     * Appends every point of another block to this block
+     * @param source block holding the points
+     */
+    public void addAll(PointBlock source)
+    {
+        int count = source.size;
+        this.ensureCapacity(this.size + count);
+        System.arraycopy(source.id, 0, this.id, this.size, count);
+        System.arraycopy(source.mz, 0, this.mz, this.size, count);
+        System.arraycopy(source.rt, 0, this.rt, this.size, count);
+        System.arraycopy(source.intensity, 0, this.intensity, this.size, count);
+        System.arraycopy(source.traceID, 0, this.traceID, this.size, count);
+        this.size += count;
+    }
+
+    /**
+     * Creates an MsDataPoint from the values at index i
+     * @param i index of the point in the block
+     * @return MsDataPoint holding the point's values
+     */
+    public MsDataPoint get(int i)
+    {
+        if (i < 0 || i >= this.size)
+            throw new IndexOutOfBoundsException("index");
+
+        MsDataPoint point = new MsDataPoint(this.id[i], this.mz[i], this.rt[i], this.intensity[i]);
+        point.traceID = this.traceID[i];
+        return point;
+    }
+
+    /**
+     * Creates MsDataPoints from every point in the block
+     * @return list of points in block order
+     */
+    public List<MsDataPoint> toList()
+    {
+        List<MsDataPoint> points = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++)
+            points.add(this.get(i));
+        return points;
+    }
+
+    /**
+     * Finds the index of a point by its ID. The block must be sorted by ID
+     * @param pointID ID of the point to find
+     * @return index of the point, negative if not in the block
+     */
+    public int indexOfSorted(int pointID)
+    {
+        if (this.size == 0 || pointID < this.id[0] || pointID > this.id[this.size - 1])
+            return -1;
+        return Arrays.binarySearch(this.id, 0, this.size, pointID);
+    }
+
+    /**
+     * Checks if the point at index i is within the bounds of the query
+     * @param i index of the point in the block
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @return true if the point is within query bounds, false otherwise
+     */
+    public boolean isInBounds(int i, double mzMin, double mzMax, float rtMin, float rtMax)
+    {
+        return (this.mz[i] <= mzMax && this.mz[i] >= mzMin
+                && this.rt[i] <= rtMax && this.rt[i] >= rtMin);
+    }
+
+    /**
+     * Creates a block holding a copy of the points in [from, to)
+     * @param from index of the first point to copy
+     * @param to index following the last point to copy
+     * @return block containing the points in block order
+     */
+    public PointBlock copyRange(int from, int to)
+    {
+        PointBlock block = new PointBlock(to - from);
+        System.arraycopy(this.id, from, block.id, 0, to - from);
+        System.arraycopy(this.mz, from, block.mz, 0, to - from);
+        System.arraycopy(this.rt, from, block.rt, 0, to - from);
+        System.arraycopy(this.intensity, from, block.intensity, 0, to - from);
+        System.arraycopy(this.traceID, from, block.traceID, 0, to - from);
+        block.size = to - from;
+        return block;
+    }
+
+    /**
+     * Sorts the points in [from, to) by mz, in place. The sort is not stable
+     * @param from index of the first point to sort
+     * @param to index following the last point to sort
+     */
+    public void sortByMz(int from, int to)
+    {
+        quickSort(new SortTarget() {
+            @Override public double key(int i) { return mz[i]; }
+            @Override public void swap(int i, int j) { swapPoints(i, j); }
+        }, from, to);
+    }
+
+    /**
+     * Sorts the points in [from, to) by rt, in place. The sort is not stable
+     * @param from index of the first point to sort
+     * @param to index following the last point to sort
+     */
+    public void sortByRt(int from, int to)
+    {
+        quickSort(new SortTarget() {
+            @Override public double key(int i) { return rt[i]; }
+            @Override public void swap(int i, int j) { swapPoints(i, j); }
+        }, from, to);
+    }
+
+    /**
+     * Sorts the points in [from, to) by rt, then the points of each rt by mz, in place
+     * @param from index of the first point to sort
+     * @param to index following the last point to sort
+     */
+    public void sortByRtMz(int from, int to)
+    {
+        this.sortByRt(from, to);
+
+        // sort each run of points sharing an rt (a scan) by mz
+        int runStart = from;
+        for (int i = from + 1; i <= to; i++) {
+            if (i == to || this.rt[i] != this.rt[runStart]) {
+                if (i - runStart > 1)
+                    this.sortByMz(runStart, i);
+                runStart = i;
+            }
+        }
+    }
+
+    /**
+     * Collects the IDs of the block's points ordered by descending intensity,
+     * leaving the block unchanged
+     * @return point IDs, most intense first
+     */
+    public int[] idsByIntensityDescending()
+    {
+        final double[] keys = new double[this.size];
+        final int[] ids = Arrays.copyOf(this.id, this.size);
+        for (int i = 0; i < this.size; i++)
+            keys[i] = -this.intensity[i];
+
+        quickSort(new SortTarget() {
+            @Override public double key(int i) { return keys[i]; }
+            @Override public void swap(int i, int j) {
+                double k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+                int t = ids[i]; ids[i] = ids[j]; ids[j] = t;
+            }
+        }, 0, this.size);
+        return ids;
+    }
+
+    /* Swaps every column of the points at indices i and j */
+    private void swapPoints(int i, int j)
+    {
+        int pointID = this.id[i]; this.id[i] = this.id[j]; this.id[j] = pointID;
+        double pointMz = this.mz[i]; this.mz[i] = this.mz[j]; this.mz[j] = pointMz;
+        float pointRt = this.rt[i]; this.rt[i] = this.rt[j]; this.rt[j] = pointRt;
+        double pointIntensity = this.intensity[i]; this.intensity[i] = this.intensity[j]; this.intensity[j] = pointIntensity;
+        int pointTraceID = this.traceID[i]; this.traceID[i] = this.traceID[j]; this.traceID[j] = pointTraceID;
+    }
+
+    /**
+     * Three-way quicksort of [from, to) by key. Runs of equal keys (such as the
+     * points of one spectrum sharing an rt) are partitioned out in a single pass.
+     * Recurses on the smaller side, so the stack depth is logarithmic
+     */
+    private static void quickSort(SortTarget target, int from, int to)
+    {
+        while (to - from > INSERTION_SORT_THRESHOLD)
+        {
+            // median of three pivot, a key within the range
+            double a = target.key(from), b = target.key((from + to) >>> 1), c = target.key(to - 1);
+            double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+            // [from, lt) < pivot, [lt, i) == pivot, (gt, to) > pivot
+            int lt = from, i = from, gt = to - 1;
+            while (i <= gt) {
+                double key = target.key(i);
+                if (key < pivot)
+                    target.swap(lt++, i++);
+                else if (key > pivot)
+                    target.swap(i, gt--);
+                else
+                    i++;
+            }
+
+            if (lt - from < to - gt - 1) {
+                quickSort(target, from, lt);
+                from = gt + 1;
+            } else {
+                quickSort(target, gt + 1, to);
+                to = lt;
+            }
+        }
+
+        // insertion sort the remaining short range
+        for (int i = from + 1; i < to; i++)
+            for (int j = i; j > from && target.key(j - 1) > target.key(j); j--)
+                target.swap(j - 1, j);
+    }
+
+    /**
+     * Computes the order of the block's points under the given comparator
+     * without moving any values. The sort is stable.
+     * @param comparator comparison of two point indices
+     * @return point indices in sorted order
+     */
+    public int[] sortedIndices(IndexComparator comparator)
+    {
+        int[] order = new int[this.size];
+        for (int i = 0; i < this.size; i++)
+            order[i] = i;
+
+        mergeSort(order, new int[this.size], 0, this.size, comparator);
+        return order;
+    }
+
+    /* Stable merge sort of indices[from, to) using scratch as merge space */
+    private static void mergeSort(int[] indices, int[] scratch, int from, int to, IndexComparator comparator)
+    {
+        if (to - from < 2)
+            return;
+
+        int mid = (from + to) >>> 1;
+        mergeSort(indices, scratch, from, mid, comparator);
+        mergeSort(indices, scratch, mid, to, comparator);
+
+        // already ordered, nothing to merge
+        if (comparator.compare(indices[mid - 1], indices[mid]) <= 0)
+            return;
+
+        System.arraycopy(indices, from, scratch, from, to - from);
+        int left = from, right = mid;
+        for (int k = from; k < to; k++) {
+            if (right >= to || (left < mid && comparator.compare(scratch[left], scratch[right]) <= 0))
+                indices[k] = scratch[left++];
+            else
+                indices[k] = scratch[right++];
+        }
+    }
+}
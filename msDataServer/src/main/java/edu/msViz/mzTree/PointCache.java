@@ -5,86 +5,153 @@
  */
 package edu.msViz.mzTree;
 
+import com.koloboke.collect.map.hash.HashIntIntMap;
+import com.koloboke.collect.map.hash.HashIntIntMaps;
 import edu.msViz.mzTree.storage.StorageFacade;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
- * Encapsulates a pointID -> MsDataPoint map, augmenting with data storage interaction
+ * Fixed-size, off-heap cache of point values keyed by pointID, augmented with
+ * data storage interaction. Point values are held in fixed slots of direct
+ * ByteBuffers and located through a pointID -> slot map. When full, slots are
+ * reclaimed one at a time using the CLOCK (second chance) policy.
  * @author kyle
  */
-public class PointCache 
+public class PointCache
 {
     private static final Logger LOGGER = Logger.getLogger(PointCache.class.getName());
-    
-    // cache containing msDataPoints keyed by their IDs
-    private Map<Integer,MsDataPoint> cache = new ConcurrentHashMap<>();
-    
-    // limit on the number of entries allowed in the cache
-    // estimated according to the java heap size
-    private final long sizeLimit;
-    
+
+    // default byte budget as a fraction of the java heap size
+    // (direct memory is capped at the heap size unless configured otherwise)
+    private static final float DEFAULT_BUDGET_FRACTION = .25f;
+
+    // slot layout: mz (8) rt (4) intensity (8) traceID (4)
+    private static final int SLOT_NUM_BYTES = 8 + 4 + 8 + 4;
+    private static final int RT_OFFSET = 8;
+    private static final int INTENSITY_OFFSET = 8 + 4;
+    private static final int TRACE_OFFSET = 8 + 4 + 8;
+
+    // number of slots per direct buffer (keeps each buffer below 2GB)
+    private static final int SEGMENT_NUM_SLOTS = 1 << 24;
+
+    // value returned by the slot map for absent pointIDs
+    private static final int NO_SLOT = -1;
+
+    // direct buffers holding the slots
+    private final ByteBuffer[] segments;
+
+    // pointID held by each slot, NO_SLOT when empty
+    private final int[] slotPointIDs;
+
+    // CLOCK reference bit of each slot
+    private final boolean[] referenced;
+
+    // slot lookup keyed by pointID
+    private final HashIntIntMap slotMap;
+
+    // number of slots in the cache
+    private final int capacity;
+
+    // number of slots in use
+    private int numUsed = 0;
+
+    // CLOCK hand, next slot considered for eviction
+    private int hand = 0;
+
+    // guards the slot map and slot assignment
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // cache statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
     // StorageFacade object initialized by the mzTree
     private StorageFacade dataStorage;
 
     /**
-     * Default constructor accepting data storage implementation
+     * Default constructor accepting data storage implementation, sizing the
+     * cache to a fraction of the heap size
      * @param dataStorage data storage implementation
      */
     public PointCache(StorageFacade dataStorage)
+    {
+        this(dataStorage, (long)(Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_FRACTION));
+    }
+
+    /**
+     * Constructor accepting data storage implementation and the number of
+     * off-heap bytes the cache may use for point values
+     * @param dataStorage data storage implementation
+     * @param numAllowedBytes byte budget for cached point values
+     */
+    public PointCache(StorageFacade dataStorage, long numAllowedBytes)
     {
         // keep reference to data storage
         this.dataStorage = dataStorage;
-        
-        // cap to 80% of heap
-        float allowedRamPercentage = (float).8;
-        
-        // bytes in heap allowed for point cache
-        long numAllowedBytes = (long)(Runtime.getRuntime().maxMemory() * allowedRamPercentage);
-        
-        // sizeLimit = Heap Size * percentage / bytes per point
-        this.sizeLimit = numAllowedBytes / MsDataPoint.MEM_NUM_BYTES_PER_POINT;
-        
-    }
-    
+
+        // capacity = byte budget / bytes per slot
+        this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, numAllowedBytes / SLOT_NUM_BYTES));
+
+        // allocate the slot buffers
+        int numSegments = (this.capacity + SEGMENT_NUM_SLOTS - 1) / SEGMENT_NUM_SLOTS;
+        this.segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            int segmentSlots = Math.min(SEGMENT_NUM_SLOTS, this.capacity - i * SEGMENT_NUM_SLOTS);
+            this.segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_NUM_BYTES);
+        }
+
+        this.slotPointIDs = new int[this.capacity];
+        Arrays.fill(this.slotPointIDs, NO_SLOT);
+        this.referenced = new boolean[this.capacity];
+        this.slotMap = HashIntIntMaps.newMutableMap();
+    }
+
     /**
      * Retrieves the points referenced by pointIDs. First, the cache is queried
      * for any containing points. If the cache does not contain a requested point
      * the database is queried for the point.
      * @param pointIDs
-     * @return 
+     * @return
      */
     public ArrayList<MsDataPoint> retrievePoints(List<Integer> pointIDs)
     {
         // points found in cache
-        ArrayList<MsDataPoint> points = new ArrayList<>();
-        
+        ArrayList<MsDataPoint> points = new ArrayList<>(pointIDs.size());
+
         // points that cache missed
         ArrayList<Integer> missedPoints = new ArrayList<>();
-        
+
         // separate incoming IDs into hits/misses
-        for(int pointID : pointIDs){
-            MsDataPoint point;
-            if((point = this.cache.get(pointID)) != null)
-                points.add(point);
-            else
-                missedPoints.add(pointID);
+        this.lock.readLock().lock();
+        try {
+            for(int pointID : pointIDs){
+                int slot = this.slotMap.getOrDefault(pointID, NO_SLOT);
+                if(slot != NO_SLOT)
+                    points.add(this.readSlot(slot, pointID));
+                else
+                    missedPoints.add(pointID);
+            }
+        } finally {
+            this.lock.readLock().unlock();
         }
-        
-        // make room in the cache for the missed points
-        this.makeRoom(missedPoints.size());
-        
+
+        this.hits.addAndGet(points.size());
+        this.misses.addAndGet(missedPoints.size());
+
         // load points from storage if any to load
         if(missedPoints.size() > 0){
-            
+
             List<MsDataPoint> loadedPoints = null;
-            
+
             try{
                 loadedPoints = this.dataStorage.loadPoints(missedPoints);
             }
@@ -92,7 +159,7 @@ public class PointCache
                 LOGGER.log(Level.WARNING, "Unable to load points from database", ex);
             }
 
-            if(loadedPoints != null) 
+            if(loadedPoints != null)
             {
                 // cache the loaded points
                 this.putAll(loadedPoints);
@@ -108,78 +175,136 @@ public class PointCache
         return retrievePoints(Arrays.stream(pointIDs).boxed().collect(Collectors.toList()));
     }
 
-    /**
-     * Makes sure there is room in the cache for n more points
-     * @param n 
-     */
-    private void makeRoom(int n)
-    {
-        // the simple, brute force tactic for now
-        // if cache.size() + n > sizeLimit -> clear the cache
-        if(this.cache.size() + n > sizeLimit)
-            this.cache.clear();
-    }
-    
     /**
      * Clears the pointCache
      */
     public void clear() {
-        this.cache.clear();
+        this.lock.writeLock().lock();
+        try {
+            this.slotMap.clear();
+            Arrays.fill(this.slotPointIDs, NO_SLOT);
+            Arrays.fill(this.referenced, false);
+            this.numUsed = 0;
+            this.hand = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
-    
+
     /**
      * retrieves a single point from the point cache, retrieving from storage
      * if the point is not currently cached
      * @param pointID ID of point to retrieve
      * @return specified point
-     */ 
+     */
     public MsDataPoint get(int pointID)
     {
-        MsDataPoint point;
-        
+        MsDataPoint point = null;
+
         // attempt to retrieve MsDataPoint from cache
-        if( (point = this.cache.get(pointID)) == null)
+        this.lock.readLock().lock();
+        try {
+            int slot = this.slotMap.getOrDefault(pointID, NO_SLOT);
+            if(slot != NO_SLOT)
+                point = this.readSlot(slot, pointID);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        if(point != null)
+        {
+            this.hits.incrementAndGet();
+        }
+        else
         {
             // null point means not in cache, load from db
+            this.misses.incrementAndGet();
             try{
                 ArrayList<Integer> pointIDWrapper = new ArrayList<>();
                 pointIDWrapper.add(pointID);
-                this.makeRoom(1);
                 point = this.dataStorage.loadPoints( pointIDWrapper ).get(0);
+                this.put(point);
             }
             catch (Exception ex){
                 LOGGER.log(Level.WARNING, "Could not load point " + pointID + " from storage", ex);
             }
         }
-        
+
         return point;
     }
-    
+
     /**
      * Inserts a point into the point cache
-     * @param point 
+     * @param point
      */
     public void put(MsDataPoint point){
-        this.cache.put(point.pointID, point);
+        this.lock.writeLock().lock();
+        try {
+            this.putUnlocked(point);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
-    
+
     /**
      * Inserts a list of points into the point cache
      * @param points points to insert into cache
      */
     public void putAll(List<MsDataPoint> points){
-        for(MsDataPoint point : points)
-            this.cache.put(point.pointID, point);
+        this.lock.writeLock().lock();
+        try {
+            for(MsDataPoint point : points)
+                this.putUnlocked(point);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
-    
+
     /**
      * Returns the size of the point cache
      * @return Size of the cache
      */
     public int size(){
-        return this.cache.size();
+        this.lock.readLock().lock();
+        try {
+            return this.numUsed;
+        } finally {
+            this.lock.readLock().unlock();
+        }
     }
-    
+
+    /**
+     * Returns the number of points the cache can hold
+     * @return capacity of the cache in points
+     */
+    public int capacity(){
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of requested points that were found in the cache
+     * @return cache hit count
+     */
+    public long getHits(){
+        return this.hits.get();
+    }
+
+    /**
+     * Returns the number of requested points that had to be loaded from storage
+     * @return cache miss count
+     */
+    public long getMisses(){
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the number of points evicted to make room for others
+     * @return cache eviction count
+     */
+    public long getEvictions(){
+        return this.evictions.get();
+    }
+
     /**
      * Updates the trace ID of a point ONLY if it is cached
      * @param pointID ID of the point to update
@@ -187,8 +312,86 @@ public class PointCache
      */
     public void shallowTraceUpdate(int pointID, int traceID)
     {
-        if(this.cache.containsKey(pointID))
-            this.cache.get(pointID).traceID = traceID;
+        // a read lock suffices, the slot assignment is unchanged
+        this.lock.readLock().lock();
+        try {
+            int slot = this.slotMap.getOrDefault(pointID, NO_SLOT);
+            if(slot != NO_SLOT)
+                this.segmentOf(slot).putInt(this.offsetOf(slot) + TRACE_OFFSET, traceID);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /* Gets the buffer holding the given slot */
+    private ByteBuffer segmentOf(int slot)
+    {
+        return this.segments[slot / SEGMENT_NUM_SLOTS];
+    }
+
+    /* Gets the byte offset of the given slot within its buffer */
+    private int offsetOf(int slot)
+    {
+        return (slot % SEGMENT_NUM_SLOTS) * SLOT_NUM_BYTES;
+    }
+
+    /* Creates a point from a slot's values, marking the slot as referenced */
+    private MsDataPoint readSlot(int slot, int pointID)
+    {
+        ByteBuffer segment = this.segmentOf(slot);
+        int offset = this.offsetOf(slot);
+
+        MsDataPoint point = new MsDataPoint(pointID, segment.getDouble(offset),
+                segment.getFloat(offset + RT_OFFSET), segment.getDouble(offset + INTENSITY_OFFSET));
+        point.traceID = segment.getInt(offset + TRACE_OFFSET);
+
+        this.referenced[slot] = true;
+        return point;
+    }
+
+    /* Writes a point into its slot, claiming a slot if not yet cached. Write lock must be held */
+    private void putUnlocked(MsDataPoint point)
+    {
+        int slot = this.slotMap.getOrDefault(point.pointID, NO_SLOT);
+        if(slot == NO_SLOT)
+        {
+            slot = this.claimSlot();
+            this.slotPointIDs[slot] = point.pointID;
+            this.slotMap.put(point.pointID, slot);
+        }
+
+        ByteBuffer segment = this.segmentOf(slot);
+        int offset = this.offsetOf(slot);
+        segment.putDouble(offset, point.mz);
+        segment.putFloat(offset + RT_OFFSET, point.rt);
+        segment.putDouble(offset + INTENSITY_OFFSET, point.intensity);
+        segment.putInt(offset + TRACE_OFFSET, point.traceID);
+        this.referenced[slot] = false;
+    }
+
+    /**
+     * Finds a free slot, evicting with the CLOCK policy when the cache is full:
+     * the hand sweeps the slots, clearing reference bits, and evicts the first
+     * slot found unreferenced. Write lock must be held
+     * @return index of the claimed slot
+     */
+    private int claimSlot()
+    {
+        // slots are filled in order until the cache is first full
+        if(this.numUsed < this.capacity)
+            return this.numUsed++;
+
+        while(this.referenced[this.hand])
+        {
+            this.referenced[this.hand] = false;
+            this.hand = (this.hand + 1) % this.capacity;
+        }
+
+        int victim = this.hand;
+        this.hand = (this.hand + 1) % this.capacity;
+
+        this.slotMap.remove(this.slotPointIDs[victim]);
+        this.evictions.incrementAndGet();
+        return victim;
     }
-    
 }
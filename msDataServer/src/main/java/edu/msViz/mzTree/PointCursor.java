@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Forward only cursor over the points of a leaf level query. The leaves in
+ * the query bounds are found up front, but their points are loaded a few
+ * leaves at a time as the cursor advances, into a block reused between
+ * advances. Memory use is bounded by the block, whatever the size of the range
+ *
+ * Usage:
+ *     try (PointCursor cursor = mzTree.stream(mzMin, mzMax, rtMin, rtMax)) {
+ *         while (cursor.next()) {
+ *             PointBlock block = cursor.block();
+ *             ...
+ *         }
+ *     }
+ */
+public class PointCursor implements AutoCloseable
+{
+    // number of leaves loaded per block
+    public static final int LEAVES_PER_BLOCK = 16;
+
+    // tree the leaves belong to, loads their points
+    private final MzTree mzTree;
+
+    // leaf nodes within the query bounds, in traversal order
+    private final List<MzTreeNode> leaves;
+
+    // effective query bounds
+    private final double mzMin, mzMax;
+    private final float rtMin, rtMax;
+
+    // if true each block's leaves are read in parallel
+    private final boolean parallel;
+
+    // index of the next leaf to load
+    private int nextLeaf = 0;
+
+    // points of the current block, null once closed
+    private PointBlock block;
+
+    /**
+     * Creates a cursor over the given leaves, positioned before the first block
+     * @param mzTree tree the leaves belong to
+     * @param leaves leaf nodes within the query bounds
+     * @param mzMin query mz lower bound
+     * @param mzMax query mz upper bound
+     * @param rtMin query rt lower bound
+     * @param rtMax query rt upper bound
+     * @param parallel if true each block's leaves are read in parallel
+     */
+    PointCursor(MzTree mzTree, List<MzTreeNode> leaves, double mzMin, double mzMax, float rtMin, float rtMax, boolean parallel)
+    {
+        this.mzTree = mzTree;
+        this.leaves = leaves;
+        this.mzMin = mzMin;
+        this.mzMax = mzMax;
+        this.rtMin = rtMin;
+        this.rtMax = rtMax;
+        this.parallel = parallel;
+        this.block = new PointBlock();
+    }
+
+    /**
+     * Advances to the next block of points within the query bounds. Blocks are
+     * never empty; leaves without points in bounds are skipped
+     * @return true if the cursor holds a block, false once all leaves are read
+     * @throws IOException if the leaves' points could not be loaded
+     */
+    public boolean next() throws IOException
+    {
+        if (this.block == null)
+            throw new IllegalStateException("Cursor is closed");
+
+        this.block.clear();
+        while (this.block.size() == 0 && this.nextLeaf < this.leaves.size())
+        {
+            int end = Math.min(this.nextLeaf + LEAVES_PER_BLOCK, this.leaves.size());
+            List<MzTreeNode> batch = this.leaves.subList(this.nextLeaf, end);
+            this.nextLeaf = end;
+
+            try {
+                this.mzTree.loadLeavesPoints(batch, this.mzMin, this.mzMax, this.rtMin, this.rtMax, this.block, this.parallel);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Failed to load points from the leaf level", e);
+            }
+        }
+
+        return this.block.size() > 0;
+    }
+
+    /**
+     * The current block, valid until the next call to next() or close()
+     * @return points of the current block
+     */
+    public PointBlock block()
+    {
+        return this.block;
+    }
+
+    /**
+     * Releases the current block. Further calls to next() fail
+     */
+    @Override
+    public void close()
+    {
+        this.block = null;
+        this.nextLeaf = this.leaves.size();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import edu.msViz.mzTree.storage.StorageFacade;
+import edu.msViz.xnet.dataTypes.IsotopeTrace;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled values (centroid mz, rt bounds, intensity sum, apex) of every
+ * trace, kept up to date as points are assigned to and removed from traces.
+ * The aggregates are built from the traced points on first use, after which
+ * each segmentation edit costs time proportional to the points it changes.
+ * Sums are adjusted in place; an aggregate losing the point at one of its rt
+ * bounds or its apex is marked stale and rebuilt from the trace's points the
+ * next time it is read.
+ */
+public class TraceAggregates
+{
+    // aggregates keyed by traceID, null until built
+    private Map<Integer, Aggregate> aggregates = null;
+
+    // StorageFacade object initialized by the mzTree
+    private final StorageFacade dataStorage;
+
+    // point values prior to an edit are read through the point cache
+    private final PointCache pointCache;
+
+    /**
+     * Constructor accepting the data storage implementation and point cache
+     * @param dataStorage data storage implementation
+     * @param pointCache cache of the tree's points
+     */
+    public TraceAggregates(StorageFacade dataStorage, PointCache pointCache)
+    {
+        this.dataStorage = dataStorage;
+        this.pointCache = pointCache;
+    }
+
+    /**
+     * Moves points from their current traces to the given trace. Must be
+     * called before the points' traces are updated in the point cache.
+     * Does nothing until the aggregates are built
+     * @param traceID trace the points are assigned to (0 or -1 for none)
+     * @param pointIDs IDs of the points
+     */
+    public synchronized void moveTo(int traceID, Integer[] pointIDs)
+    {
+        if (this.aggregates == null)
+            return;
+
+        for (MsDataPoint point : this.pointCache.retrievePoints(Arrays.asList(pointIDs)))
+        {
+            if (point.traceID == traceID)
+                continue;
+
+            if (point.traceID > 0) {
+                Aggregate from = this.aggregates.get(point.traceID);
+                if (from != null)
+                    from.remove(point.mz, point.rt, point.intensity);
+            }
+            if (traceID > 0)
+                this.aggregates.computeIfAbsent(traceID, id -> new Aggregate())
+                        .add(point.mz, point.rt, point.intensity);
+        }
+    }
+
+    /**
+     * Drops the aggregate of a deleted trace
+     * @param traceID ID of the deleted trace
+     */
+    public synchronized void remove(int traceID)
+    {
+        if (this.aggregates != null)
+            this.aggregates.remove(traceID);
+    }
+
+    /**
+     * Drops every aggregate, all traces having been deleted
+     */
+    public synchronized void clear()
+    {
+        this.aggregates = new HashMap<>();
+    }
+
+    /**
+     * Gets the compiled values of every trace with points, building the
+     * aggregates on first use and rebuilding stale ones
+     * @return precompiled traces, without arcs
+     * @throws Exception if the traced points could not be loaded
+     */
+    public synchronized List<IsotopeTrace> getTraces() throws Exception
+    {
+        if (this.aggregates == null)
+            this.build();
+
+        List<IsotopeTrace> traces = new ArrayList<>(this.aggregates.size());
+        Iterator<Map.Entry<Integer, Aggregate>> entries = this.aggregates.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<Integer, Aggregate> entry = entries.next();
+            Aggregate aggregate = entry.getValue();
+            if (aggregate.stale)
+                this.rebuild(entry.getKey(), aggregate);
+
+            // traces emptied by edits have nothing to compile
+            if (aggregate.numPoints == 0) {
+                entries.remove();
+                continue;
+            }
+
+            traces.add(aggregate.toTrace(entry.getKey()));
+        }
+        return traces;
+    }
+
+    /* Aggregates every traced point, found through the trace index */
+    private void build() throws Exception
+    {
+        PointBlock points = new PointBlock();
+        this.dataStorage.loadTracedPoints(points);
+
+        this.aggregates = new HashMap<>();
+        for (int i = 0; i < points.size(); i++)
+            if (points.traceID[i] > 0)
+                this.aggregates.computeIfAbsent(points.traceID[i], id -> new Aggregate())
+                        .add(points.mz[i], points.rt[i], points.intensity[i]);
+    }
+
+    /* Recomputes an aggregate from its trace's points */
+    private void rebuild(int traceID, Aggregate aggregate) throws Exception
+    {
+        PointBlock points = new PointBlock();
+        this.dataStorage.loadPoints(this.dataStorage.getTracePointIDs(traceID), points);
+
+        aggregate.reset();
+        for (int i = 0; i < points.size(); i++)
+            aggregate.add(points.mz[i], points.rt[i], points.intensity[i]);
+    }
+
+    /**
+     * Running sums and extremes of one trace's points
+     */
+    private static class Aggregate
+    {
+        int numPoints;
+        double intensitySum;
+        double mzIntensitySum;
+        float minRT;
+        float maxRT;
+        double apexIntensity;
+        float apexRT;
+
+        // set when a removal invalidates the rt bounds or apex
+        boolean stale;
+
+        Aggregate()
+        {
+            this.reset();
+        }
+
+        void reset()
+        {
+            this.numPoints = 0;
+            this.intensitySum = 0;
+            this.mzIntensitySum = 0;
+            this.minRT = Float.POSITIVE_INFINITY;
+            this.maxRT = Float.NEGATIVE_INFINITY;
+            this.apexIntensity = Double.NEGATIVE_INFINITY;
+            this.apexRT = 0;
+            this.stale = false;
+        }
+
+        void add(double mz, float rt, double intensity)
+        {
+            this.numPoints++;
+            this.intensitySum += intensity;
+            this.mzIntensitySum += mz * intensity;
+            this.minRT = Math.min(this.minRT, rt);
+            this.maxRT = Math.max(this.maxRT, rt);
+            if (intensity > this.apexIntensity) {
+                this.apexIntensity = intensity;
+                this.apexRT = rt;
+            }
+        }
+
+        void remove(double mz, float rt, double intensity)
+        {
+            this.numPoints--;
+            this.intensitySum -= intensity;
+            this.mzIntensitySum -= mz * intensity;
+            if (rt <= this.minRT || rt >= this.maxRT || intensity >= this.apexIntensity)
+                this.stale = true;
+        }
+
+        IsotopeTrace toTrace(int traceID)
+        {
+            IsotopeTrace trace = new IsotopeTrace(traceID, this.mzIntensitySum / this.intensitySum,
+                    this.minRT, this.maxRT, this.intensitySum);
+            trace.apexRT = this.apexRT;
+            return trace;
+        }
+    }
+}
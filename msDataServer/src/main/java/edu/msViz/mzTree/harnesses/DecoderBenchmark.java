@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.harnesses;
+
+import edu.msViz.mzTree.IO.Decoder;
+import edu.msViz.mzTree.IO.SpectrumDecoder;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Compares the time and allocation of decoding synthetic mzML binary arrays
+ * with Decoder against the reusable SpectrumDecoder
+ */
+public class DecoderBenchmark
+{
+    // args [<numSpectra>] [<pointsPerSpectrum>] [<iterations>]
+    public static void main(String[] args) throws Exception
+    {
+        int numSpectra = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int pointsPerSpectrum = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+        // 64 bit mz and 32 bit intensity arrays, zlib compressed as most mzML writers do
+        Random random = new Random(0);
+        String[] mzStrings = new String[numSpectra];
+        String[] intensityStrings = new String[numSpectra];
+        for (int s = 0; s < numSpectra; s++) {
+            ByteBuffer mz = ByteBuffer.allocate(pointsPerSpectrum * 8).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer intensity = ByteBuffer.allocate(pointsPerSpectrum * 4).order(ByteOrder.LITTLE_ENDIAN);
+            double curMz = 100 + random.nextDouble();
+            for (int i = 0; i < pointsPerSpectrum; i++) {
+                curMz += random.nextDouble() * 0.5;
+                mz.putDouble(curMz);
+                intensity.putFloat((float) (random.nextDouble() * 1e6));
+            }
+            mzStrings[s] = Base64.getEncoder().encodeToString(compress(mz.array()));
+            intensityStrings[s] = Base64.getEncoder().encodeToString(compress(intensity.array()));
+        }
+
+        // the new decoder reads the parser's character buffer, the old one a String
+        char[][] mzChars = new char[numSpectra][];
+        char[][] intensityChars = new char[numSpectra][];
+        for (int s = 0; s < numSpectra; s++) {
+            mzChars[s] = mzStrings[s].toCharArray();
+            intensityChars[s] = intensityStrings[s].toCharArray();
+        }
+
+        System.out.println("decoder,iteration,ms,MB/s,bytesAllocatedPerSpectrum,checksum");
+        long numDecodedBytes = (long) numSpectra * pointsPerSpectrum * 12;
+
+        // warm up both decoders before the measured iterations
+        for (int it = -iterations; it < iterations; it++)
+        {
+            long allocated = allocatedBytes();
+            long time = System.nanoTime();
+            double checksum = 0;
+            for (int s = 0; s < numSpectra; s++) {
+                double[] mz = Decoder.decodeCompressed(mzStrings[s], true);
+                double[] intensity = Decoder.decodeCompressed(intensityStrings[s], false);
+                checksum += mz[mz.length - 1] + intensity[intensity.length - 1];
+            }
+            report("Decoder", it, time, allocated, numSpectra, numDecodedBytes, checksum);
+
+            allocated = allocatedBytes();
+            time = System.nanoTime();
+            checksum = 0;
+            SpectrumDecoder decoder = SpectrumDecoder.forCurrentThread();
+            SpectrumDecoder.EncodedArray mzEncoded = new SpectrumDecoder.EncodedArray();
+            SpectrumDecoder.EncodedArray intensityEncoded = new SpectrumDecoder.EncodedArray();
+            for (int s = 0; s < numSpectra; s++) {
+                mzEncoded.clear();
+                mzEncoded.appendBase64(mzChars[s], 0, mzChars[s].length);
+                mzEncoded.finishBase64();
+                intensityEncoded.clear();
+                intensityEncoded.appendBase64(intensityChars[s], 0, intensityChars[s].length);
+                intensityEncoded.finishBase64();
+
+                SpectrumDecoder.ArrayView mz = decoder.decodeMz(mzEncoded, true, true);
+                SpectrumDecoder.ArrayView intensity = decoder.decodeIntensity(intensityEncoded, true, false);
+                checksum += mz.get(mz.size() - 1) + intensity.get(intensity.size() - 1);
+            }
+            report("SpectrumDecoder", it, time, allocated, numSpectra, numDecodedBytes, checksum);
+        }
+    }
+
+    /* Prints a measured iteration, skipping warm up iterations */
+    private static void report(String decoder, int iteration, long startTime, long startAllocated,
+            int numSpectra, long numDecodedBytes, double checksum)
+    {
+        long nanos = System.nanoTime() - startTime;
+        long allocated = allocatedBytes() - startAllocated;
+        if (iteration < 0)
+            return;
+
+        double mbPerSecond = (numDecodedBytes / 1e6) / (nanos / 1e9);
+        long allocatedPerSpectrum = (startAllocated < 0) ? -1 : allocated / numSpectra;
+        System.out.println(decoder + "," + iteration + "," + nanos / 1000000 + "," + Math.round(mbPerSecond) + ","
+                + allocatedPerSpectrum + "," + checksum);
+    }
+
+    /* Bytes allocated by the current thread, -1 if the JVM cannot measure it */
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    /* zlib compresses bytes */
+    private static byte[] compress(byte[] bytes)
+    {
+        Deflater deflater = new Deflater();
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte[] out = new byte[bytes.length + bytes.length / 100 + 64];
+        int length = 0;
+        while (!deflater.finished())
+            length += deflater.deflate(out, length, out.length - length);
+        deflater.end();
+        return Arrays.copyOf(out, length);
+    }
+}
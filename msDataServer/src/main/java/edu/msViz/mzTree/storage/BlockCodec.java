@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs of the leaf blocks of a Compact point file. The codec of each
+ * block is recorded with its leaf in the Node table
+ */
+public enum BlockCodec
+{
+    /**
+     * Block stored as is
+     */
+    None(0) {
+        @Override
+        public int encode(byte[] data, int length, byte[] result)
+        {
+            if (length > result.length)
+                return -1;
+            System.arraycopy(data, 0, result, 0, length);
+            return length;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length, byte[] result, int resultLength) throws IOException
+        {
+            if (length > resultLength)
+                throw new IOException("Corrupt leaf block: stored length " + length + " exceeds " + resultLength + " bytes");
+            System.arraycopy(data, offset, result, 0, length);
+        }
+    },
+
+    /**
+     * Block compressed with zlib deflate
+     */
+    Deflate(1) {
+        @Override
+        public int encode(byte[] data, int length, byte[] result)
+        {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            int numBytes = 0;
+            while (!deflater.finished() && numBytes < result.length)
+                numBytes += deflater.deflate(result, numBytes, result.length - numBytes);
+
+            // incompressible, result is full
+            return deflater.finished() ? numBytes : -1;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length, byte[] result, int resultLength) throws IOException
+        {
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(data, offset, length);
+
+            try {
+                int numBytes = 0;
+                while (!inflater.finished() && numBytes < resultLength) {
+                    int count = inflater.inflate(result, numBytes, resultLength - numBytes);
+                    if (count == 0 && !inflater.finished() && inflater.needsInput())
+                        throw new IOException("Corrupt leaf block: truncated deflate stream");
+                    numBytes += count;
+                }
+                if (!inflater.finished())
+                    throw new IOException("Corrupt leaf block: inflates beyond " + resultLength + " bytes");
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt leaf block", ex);
+            }
+        }
+    };
+
+    // per thread compressors, reset for each block
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    // codec ID stored in the Node table
+    public final int id;
+
+    BlockCodec(int id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * Encodes the first length bytes of data
+     * @param data bytes to encode
+     * @param length number of bytes to encode
+     * @param result receives the encoded bytes
+     * @return number of encoded bytes, -1 if they do not fit in result
+     */
+    public abstract int encode(byte[] data, int length, byte[] result);
+
+    /**
+     * Decodes an encoded block
+     * @param data buffer holding the encoded block
+     * @param offset start of the encoded block in data
+     * @param length number of encoded bytes
+     * @param result receives the decoded bytes
+     * @param resultLength maximum number of decoded bytes
+     * @throws IOException if the encoded block is corrupt
+     */
+    public abstract void decode(byte[] data, int offset, int length, byte[] result, int resultLength) throws IOException;
+
+    /**
+     * Gets the codec with the given ID
+     * @param id stored codec ID
+     * @return matching codec
+     * @throws IllegalArgumentException if no codec has the ID
+     */
+    public static BlockCodec fromId(int id)
+    {
+        for (BlockCodec codec : BlockCodec.values())
+            if (codec.id == id)
+                return codec;
+        throw new IllegalArgumentException("Unsupported block codec " + id);
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import edu.msViz.mzTree.MsDataPoint;
+import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointBlock;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PointEngine for the Compact point format. Each leaf's points are written as
+ * one self-describing block, appended to the point file in the order leaves
+ * are saved. Points are located through a directory of blocks keyed by the
+ * block's first pointID, restored from the Node table when a file is opened
+ *
+ * BLOCK FORMAT
+ * HEADER     : 32 [INTEGER firstPointID, INTEGER numPoints, INTEGER numRts,
+ *                  INTEGER rtIndexBytes, DOUBLE mzBase, DOUBLE mzScale]
+ * RT DICT    : numRts * 4 [FLOAT], the distinct rt values of the block sorted ascending
+ * MZ         : numPoints * 4 [UNSIGNED INTEGER q], mz = mzBase + q * mzScale
+ * RT INDEX   : numPoints * rtIndexBytes [UNSIGNED BYTE or SHORT], index into the rt dictionary
+ * INTEN      : numPoints * 4 [FLOAT], starting on a 4 byte boundary
+ * TRACE      : numPoints * 4 [INTEGER]
+ *
+ * Quantizing mz over the block's mz range keeps every column fixed width, so a
+ * single point or trace can still be addressed directly. Leaves span at most a
+ * few mz units, where 32 bit quanta are far finer than instrument precision.
+ * Summary copies keep the Record summary format and are appended between blocks
+ *
+ * BLOCK CODECS
+ * Everything before the trace column is stored through the block's codec,
+ * the trace column follows it as is so traces can still be written in place.
+ * A block that does not compress is stored with the None codec. Compressed
+ * blocks are decoded whole, one read per block
+ */
+class CompactPointEngine extends FilePointEngine
+{
+    // number of bytes in a block header
+    private static final int HEADER_NUM_BYTES = 32;
+
+    // largest quantized mz value
+    private static final double MAX_QUANTUM = 0xFFFFFFFFL;
+
+    // blocks keyed by their first pointID
+    private final ConcurrentSkipListMap<Integer, LeafBlock> blocks = new ConcurrentSkipListMap<>();
+
+    // (index, number of points) of each summary copy, for trace rewrites
+    private final List<long[]> summaries = new ArrayList<>();
+
+    // end of the written data, where the next block or summary is appended
+    private long end = 0;
+
+    // codec of newly written blocks
+    private final BlockCodec codec;
+
+    /**
+     * Creates or opens the compact point storage file, storing new blocks as is
+     * @throws IOException
+     */
+    public CompactPointEngine(String pointFilePath) throws IOException
+    {
+        this(pointFilePath, BlockCodec.None);
+    }
+
+    /**
+     * Creates or opens the compact point storage file
+     * @param codec codec of newly written blocks
+     * @throws IOException
+     */
+    public CompactPointEngine(String pointFilePath, BlockCodec codec) throws IOException
+    {
+        super(pointFilePath);
+        this.codec = codec;
+    }
+
+    /**
+     * Location and column layout of a block within the point file
+     */
+    private static final class LeafBlock
+    {
+        final int firstPointID;
+        final int numPoints;
+        final long fileIndex;
+
+        // codec of the stored bytes before the trace column, and their number (-1 if unknown)
+        final BlockCodec codec;
+        final int storedLength;
+
+        // header values, numRts is -1 until the header has been read
+        final int numRts;
+        final int rtIndexBytes;
+        final double mzBase;
+        final double mzScale;
+
+        LeafBlock(int firstPointID, int numPoints, long fileIndex, BlockCodec codec, int storedLength)
+        {
+            this(firstPointID, numPoints, fileIndex, codec, storedLength, -1, 0, 0, 0);
+        }
+
+        LeafBlock(int firstPointID, int numPoints, long fileIndex, BlockCodec codec, int storedLength,
+                int numRts, int rtIndexBytes, double mzBase, double mzScale)
+        {
+            this.firstPointID = firstPointID;
+            this.numPoints = numPoints;
+            this.fileIndex = fileIndex;
+            this.codec = codec;
+            this.storedLength = storedLength;
+            this.numRts = numRts;
+            this.rtIndexBytes = rtIndexBytes;
+            this.mzBase = mzBase;
+            this.mzScale = mzScale;
+        }
+
+        boolean hasLayout()
+        {
+            return numRts >= 0;
+        }
+
+        boolean contains(int pointID)
+        {
+            return pointID >= firstPointID && pointID - firstPointID < numPoints;
+        }
+
+        int mzColumn()
+        {
+            return HEADER_NUM_BYTES + 4 * numRts;
+        }
+
+        int rtIndexColumn()
+        {
+            return mzColumn() + 4 * numPoints;
+        }
+
+        int intensityColumn()
+        {
+            // floats start on a 4 byte boundary
+            return (rtIndexColumn() + rtIndexBytes * numPoints + 3) & ~3;
+        }
+
+        int traceColumn()
+        {
+            return intensityColumn() + 4 * numPoints;
+        }
+
+        int length()
+        {
+            return traceColumn() + 4 * numPoints;
+        }
+
+        // upper bound on the decoded length, before the header is known
+        int maxLength()
+        {
+            return HEADER_NUM_BYTES + 4 * Math.min(numPoints, 0x10000) + 10 * numPoints + 3 + 4 * numPoints;
+        }
+
+        // the block with the layout given by its decoded header
+        LeafBlock withHeader(ByteBuffer header) throws IOException
+        {
+            if (header.limit() < HEADER_NUM_BYTES || header.getInt(0) != firstPointID || header.getInt(4) != numPoints)
+                throw new IOException("Corrupt compact point file: block header at " + fileIndex + " does not match its leaf");
+
+            int headerNumRts = header.getInt(8);
+            int headerRtIndexBytes = header.getInt(12);
+            if (headerNumRts < 0 || headerNumRts > 0x10000 || (headerRtIndexBytes != 1 && headerRtIndexBytes != 2))
+                throw new IOException("Corrupt compact point file: block header at " + fileIndex + " is invalid");
+
+            LeafBlock loaded = new LeafBlock(firstPointID, numPoints, fileIndex, codec, storedLength,
+                    headerNumRts, headerRtIndexBytes, header.getDouble(16), header.getDouble(24));
+            return (codec == BlockCodec.None) ? loaded.storedAsIs() : loaded;
+        }
+
+        // the block with the stored length of an uncompressed block
+        LeafBlock storedAsIs()
+        {
+            return new LeafBlock(firstPointID, numPoints, fileIndex, codec, traceColumn(), numRts, rtIndexBytes, mzBase, mzScale);
+        }
+    }
+
+    //**********************************************//
+    //                    LAYOUT                    //
+    //**********************************************//
+
+    @Override
+    public synchronized void reserveSpace(int numPoints) throws IOException
+    {
+        // blocks are appended, nothing is reserved
+        this.blocks.clear();
+        this.summaries.clear();
+        this.end = 0;
+
+        // truncate the file, summary copies have no section of their own
+        super.reserveSpace(0);
+        this.summaryStart = -1;
+        this.summaryEnd = -1;
+    }
+
+    @Override
+    public void restoreLayout(int numPoints, long summarySectionStart, long fileLength)
+    {
+        this.pointCount = numPoints;
+        synchronized (this) {
+            this.end = fileLength;
+        }
+    }
+
+    /**
+     * Restores a leaf block of an existing file into the block directory
+     * @param firstPointID ID of the block's first point
+     * @param numPoints number of points in the block
+     * @param fileIndex absolute index of the block in the point file
+     * @param blockCodec codec of the block
+     * @param storedLength number of stored bytes before the trace column, -1 if unknown
+     */
+    public void restoreLeaf(int firstPointID, int numPoints, long fileIndex, BlockCodec blockCodec, int storedLength)
+    {
+        if (blockCodec != BlockCodec.None && storedLength < 0)
+            throw new IllegalArgumentException("Encoded blocks need their stored length");
+        this.blocks.put(firstPointID, new LeafBlock(firstPointID, numPoints, fileIndex, blockCodec, storedLength));
+    }
+
+    /**
+     * Gets the codec a block was stored with
+     * @param firstPointID ID of the block's first point
+     * @return codec of the block
+     */
+    public BlockCodec codecOf(int firstPointID)
+    {
+        return this.blocks.get(firstPointID).codec;
+    }
+
+    /**
+     * Gets the number of bytes a block's codec stored, before its trace column
+     * @param firstPointID ID of the block's first point
+     * @return number of stored bytes
+     */
+    public int storedLengthOf(int firstPointID)
+    {
+        return this.blocks.get(firstPointID).storedLength;
+    }
+
+    /**
+     * Restores a summary copy of an existing file, for trace rewrites
+     * @param summaryIndex absolute index of the summary copy in the point file
+     * @param numPoints number of points in the summary copy
+     */
+    public synchronized void restoreSummary(long summaryIndex, int numPoints)
+    {
+        this.summaries.add(new long[] { summaryIndex, numPoints });
+    }
+
+    /* Claims length bytes at the end of the file */
+    private synchronized long allocate(int length)
+    {
+        long position = this.end;
+        this.end += length;
+        return position;
+    }
+
+    /**
+     * Gets the block containing a point
+     * @param pointID ID of a point in the block
+     * @return block holding the point
+     */
+    private LeafBlock blockOf(int pointID)
+    {
+        this.checkPointID(pointID);
+
+        Map.Entry<Integer, LeafBlock> entry = this.blocks.floorEntry(pointID);
+        if (entry == null || !entry.getValue().contains(pointID))
+            throw new IndexOutOfBoundsException("pointID " + pointID + " is not in a stored leaf block");
+
+        return entry.getValue();
+    }
+
+    /* Reads the header of a restored block, replacing its directory entry */
+    private LeafBlock withLayout(LeafBlock block) throws IOException
+    {
+        if (block.hasLayout())
+            return block;
+
+        LeafBlock loaded;
+        if (block.codec == BlockCodec.None) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_NUM_BYTES);
+            this.readFully(header, block.fileIndex);
+            loaded = block.withHeader(header);
+        }
+        else {
+            // the header is encoded with the block
+            loaded = block.withHeader(this.readBlock(block));
+        }
+
+        this.blocks.put(loaded.firstPointID, loaded);
+        return loaded;
+    }
+
+    /* Absolute index of a block's trace column in the point file */
+    private long traceColumnIndex(LeafBlock block) throws IOException
+    {
+        if (block.storedLength < 0)
+            block = this.withLayout(block);
+        return block.fileIndex + block.storedLength;
+    }
+
+    /**
+     * Reads a block with one positional read, decoding it to its uncompressed layout
+     * @param block block to read
+     * @return the block's header, columns and trace column
+     * @throws IOException
+     */
+    private ByteBuffer readBlock(LeafBlock block) throws IOException
+    {
+        if (block.codec == BlockCodec.None) {
+            block = this.withLayout(block);
+            ByteBuffer data = ByteBuffer.allocate(block.length());
+            this.readFully(data, block.fileIndex);
+            if (data.limit() < block.length())
+                throw new IOException("Corrupt compact point file: block at " + block.fileIndex + " is truncated");
+            return data;
+        }
+
+        // stored bytes followed by the trace column
+        int traceLength = 4 * block.numPoints;
+        ByteBuffer stored = ByteBuffer.allocate(block.storedLength + traceLength);
+        this.readFully(stored, block.fileIndex);
+        if (stored.limit() < block.storedLength + traceLength)
+            throw new IOException("Corrupt compact point file: block at " + block.fileIndex + " is truncated");
+
+        // decode in front of the trace column, whose position the header gives
+        byte[] decoded = new byte[block.maxLength()];
+        block.codec.decode(stored.array(), 0, block.storedLength, decoded, decoded.length - traceLength);
+        ByteBuffer data = ByteBuffer.wrap(decoded);
+        LeafBlock layout = block.hasLayout() ? block : block.withHeader(data);
+        System.arraycopy(stored.array(), block.storedLength, decoded, layout.traceColumn(), traceLength);
+        data.limit(layout.length());
+        return data;
+    }
+
+    //**********************************************//
+    //                    WRITES                    //
+    //**********************************************//
+
+    @Override
+    public void insert(MsDataPoint point) throws IOException
+    {
+        throw new UnsupportedOperationException("Compact point files are written one leaf block at a time");
+    }
+
+    @Override
+    public long insertBlock(PointBlock points, int from, int to) throws IOException
+    {
+        int numPoints = to - from;
+        if (numPoints == 0)
+            return 0;
+
+        // dictionary of the block's distinct rt values
+        float[] rts = Arrays.copyOfRange(points.rt, from, to);
+        Arrays.sort(rts);
+        int numRts = 0;
+        for (int i = 0; i < numPoints; i++)
+            if (numRts == 0 || Float.compare(rts[numRts - 1], rts[i]) != 0)
+                rts[numRts++] = rts[i];
+        int rtIndexBytes = (numRts <= 0x100) ? 1 : 2;
+        if (numRts > 0x10000)
+            throw new IllegalArgumentException("Leaf block has more than 65536 distinct retention times");
+
+        // quantize mz over the block's mz range
+        double mzMin = Double.POSITIVE_INFINITY;
+        double mzMax = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            mzMin = Math.min(mzMin, points.mz[i]);
+            mzMax = Math.max(mzMax, points.mz[i]);
+        }
+        double mzScale = (mzMax > mzMin) ? (mzMax - mzMin) / MAX_QUANTUM : 0;
+
+        int firstPointID = points.id[from];
+        LeafBlock layout = new LeafBlock(firstPointID, numPoints, 0, BlockCodec.None, -1, numRts, rtIndexBytes, mzMin, mzScale);
+
+        // encode the block
+        ByteBuffer data = ByteBuffer.allocate(layout.length());
+        data.putInt(firstPointID).putInt(numPoints).putInt(numRts).putInt(rtIndexBytes).putDouble(mzMin).putDouble(mzScale);
+        for (int i = 0; i < numRts; i++)
+            data.putFloat(rts[i]);
+
+        for (int i = from; i < to; i++) {
+            long q = (mzScale == 0) ? 0 : Math.round((points.mz[i] - mzMin) / mzScale);
+            data.putInt((int) Math.max(0, Math.min(q, (long) MAX_QUANTUM)));
+        }
+
+        for (int i = from; i < to; i++) {
+            int rtIndex = Arrays.binarySearch(rts, 0, numRts, points.rt[i]);
+            if (rtIndexBytes == 1)
+                data.put((byte) rtIndex);
+            else
+                data.putShort((short) rtIndex);
+        }
+
+        data.position(layout.intensityColumn());
+        for (int i = from; i < to; i++)
+            data.putFloat((float) points.intensity[i]);
+        for (int i = from; i < to; i++)
+            data.putInt(points.traceID[i]);
+        data.flip();
+
+        // encode everything before the trace column, keeping it as is unless it shrinks
+        BlockCodec blockCodec = BlockCodec.None;
+        int storedLength = layout.traceColumn();
+        if (this.codec != BlockCodec.None) {
+            byte[] encoded = new byte[storedLength - 1];
+            int encodedLength = this.codec.encode(data.array(), storedLength, encoded);
+            if (encodedLength >= 0) {
+                ByteBuffer stored = ByteBuffer.allocate(encodedLength + 4 * numPoints);
+                stored.put(encoded, 0, encodedLength);
+                stored.put(data.array(), layout.traceColumn(), 4 * numPoints);
+                stored.flip();
+                data = stored;
+                blockCodec = this.codec;
+                storedLength = encodedLength;
+            }
+        }
+
+        // append the block and publish it to readers once written
+        long fileIndex = this.allocate(data.limit());
+        this.writeFully(data, fileIndex);
+        this.blocks.put(firstPointID, new LeafBlock(firstPointID, numPoints, fileIndex, blockCodec, storedLength,
+                numRts, rtIndexBytes, mzMin, mzScale));
+        this.publishBlock(firstPointID + numPoints);
+        return fileIndex;
+    }
+
+    @Override
+    public long appendSummary(PointBlock summary) throws IOException
+    {
+        // summary copies keep the record format, appended between blocks
+        ByteBuffer data = summaryToBytes(summary);
+        long summaryIndex = this.allocate(data.limit());
+        this.writeFully(data, summaryIndex);
+
+        synchronized (this) {
+            this.summaries.add(new long[] { summaryIndex, summary.size() });
+        }
+        return summaryIndex;
+    }
+
+    @Override
+    public void updatePointTrace(int pointID, int traceID) throws IOException
+    {
+        LeafBlock block = this.blockOf(pointID);
+        long location = this.traceColumnIndex(block) + 4L * (pointID - block.firstPointID);
+
+        ByteBuffer data = ByteBuffer.allocate(4);
+        data.putInt(0, traceID);
+
+        ReentrantLock lock = this.traceLock(pointID);
+        lock.lock();
+        try {
+            this.writeFully(data, location);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clearTraces() throws IOException
+    {
+        this.lockAllTraces();
+        try {
+            for (LeafBlock block : this.blocks.values())
+                this.clearSectionTraces(this.traceColumnIndex(block), block.numPoints, 4, 0);
+
+            long[][] summaryCopies;
+            synchronized (this) {
+                summaryCopies = this.summaries.toArray(new long[0][]);
+            }
+            for (long[] copy : summaryCopies)
+                this.clearSectionTraces(copy[0], copy[1], SUMMARY_NUM_BYTES_PER_POINT, TRACE_OFFSET);
+        } finally {
+            this.unlockAllTraces();
+        }
+    }
+
+    //**********************************************//
+    //                    READS                     //
+    //**********************************************//
+
+    /**
+     * Decodes a block's points within bounds, in pointID order
+     * @param block stored block
+     * @param data the block's bytes in the uncompressed layout
+     * @param start position of the first point to decode
+     * @param end position following the last point to decode
+     * @param results block the points within bounds are appended to
+     * @throws IOException
+     */
+    private static void decodeBlock(LeafBlock block, ByteBuffer data, int start, int end,
+            double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws IOException
+    {
+        if (!block.hasLayout())
+            block = block.withHeader(data);
+
+        // test each distinct rt once
+        float[] rts = new float[block.numRts];
+        boolean[] rtInBounds = new boolean[block.numRts];
+        boolean anyRtInBounds = false;
+        for (int i = 0; i < block.numRts; i++) {
+            rts[i] = data.getFloat(HEADER_NUM_BYTES + 4 * i);
+            rtInBounds[i] = rts[i] >= rtmin && rts[i] <= rtmax;
+            anyRtInBounds |= rtInBounds[i];
+        }
+        if (!anyRtInBounds)
+            return;
+
+        int mzColumn = block.mzColumn();
+        int rtIndexColumn = block.rtIndexColumn();
+        int intensityColumn = block.intensityColumn();
+        int traceColumn = block.traceColumn();
+
+        for (int i = start; i < end; i++)
+        {
+            int rtIndex = (block.rtIndexBytes == 1)
+                    ? data.get(rtIndexColumn + i) & 0xFF
+                    : data.getShort(rtIndexColumn + 2 * i) & 0xFFFF;
+            if (!rtInBounds[rtIndex])
+                continue;
+
+            double mz = block.mzBase + (data.getInt(mzColumn + 4 * i) & 0xFFFFFFFFL) * block.mzScale;
+            if (mz >= mzmin && mz <= mzmax)
+                results.add(block.firstPointID + i, mz, rts[rtIndex],
+                        data.getFloat(intensityColumn + 4 * i), data.getInt(traceColumn + 4 * i));
+        }
+    }
+
+    @Override
+    public MsDataPoint selectPoint(int pointID) throws IOException
+    {
+        LeafBlock block = this.blockOf(pointID);
+        int i = pointID - block.firstPointID;
+
+        if (block.codec != BlockCodec.None) {
+            // encoded columns are only read whole
+            PointBlock decoded = new PointBlock(block.numPoints);
+            decodeBlock(block, this.readBlock(block), 0, block.numPoints, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, decoded);
+            return decoded.get(i);
+        }
+        block = this.withLayout(block);
+
+        // read each of the point's columns
+        ByteBuffer data = ByteBuffer.allocate(4);
+        this.readFully(data, block.fileIndex + block.mzColumn() + 4L * i);
+        double mz = block.mzBase + (data.getInt(0) & 0xFFFFFFFFL) * block.mzScale;
+
+        data.clear();
+        data.limit(block.rtIndexBytes);
+        this.readFully(data, block.fileIndex + block.rtIndexColumn() + (long) block.rtIndexBytes * i);
+        int rtIndex = (block.rtIndexBytes == 1) ? data.get(0) & 0xFF : data.getShort(0) & 0xFFFF;
+
+        data.clear();
+        this.readFully(data, block.fileIndex + HEADER_NUM_BYTES + 4L * rtIndex);
+        float rt = data.getFloat(0);
+
+        data.clear();
+        this.readFully(data, block.fileIndex + block.intensityColumn() + 4L * i);
+        float intensity = data.getFloat(0);
+
+        data.clear();
+        this.readFully(data, block.fileIndex + block.traceColumn() + 4L * i);
+
+        MsDataPoint point = new MsDataPoint(pointID, mz, rt, intensity);
+        point.traceID = data.getInt(0);
+        return point;
+    }
+
+    @Override
+    public List<MsDataPoint> selectPoints(List<Integer> pointIDs) throws IOException
+    {
+        PointBlock results = new PointBlock(pointIDs.size());
+        this.selectPoints(pointIDs.stream().mapToInt(Integer::intValue).toArray(), results);
+        return results.toList();
+    }
+
+    @Override
+    public void selectPoints(int[] pointIDs, PointBlock results) throws IOException
+    {
+        results.ensureCapacity(results.size() + pointIDs.length);
+
+        int i = 0;
+        while (i < pointIDs.length)
+        {
+            // run of requested points sharing a block
+            LeafBlock block = this.blockOf(pointIDs[i]);
+            int runEnd = i + 1;
+            while (runEnd < pointIDs.length && block.contains(pointIDs[runEnd]))
+                runEnd++;
+
+            if (runEnd - i == 1) {
+                results.add(this.selectPoint(pointIDs[i]));
+            }
+            else {
+                // decode the whole block once for the run
+                PointBlock decoded = new PointBlock(block.numPoints);
+                decodeBlock(block, this.readBlock(block), 0, block.numPoints, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                        Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, decoded);
+                for (int k = i; k < runEnd; k++) {
+                    int index = pointIDs[k] - block.firstPointID;
+                    results.add(pointIDs[k], decoded.mz[index], decoded.rt[index], decoded.intensity[index], decoded.traceID[index]);
+                }
+            }
+            i = runEnd;
+        }
+    }
+
+    @Override
+    public List<MsDataPoint> selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException
+    {
+        PointBlock results = new PointBlock();
+        this.selectLeafPointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, results);
+        return results.toList();
+    }
+
+    @Override
+    public void selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws IOException
+    {
+        if (leaf.fileIndex == null) {
+            // not a leaf node
+            this.selectNodePointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, results);
+            return;
+        }
+
+        // the range of the leaf's scans overlapping the rt bounds
+        int start = leafScanStart(leaf, rtmin);
+        int end = leafScanEnd(leaf, rtmax);
+        if (start >= end)
+            return;
+
+        // read the leaf's whole block with one positional read, decoding only the range
+        LeafBlock block = this.blockOf(leaf.pointIDMin);
+        decodeBlock(block, this.readBlock(block), start, end, mzmin, mzmax, rtmin, rtmax, results);
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the segmentation edits made since the last checkpoint
+ * of the database and point file. Each record is framed by its length and a
+ * CRC32 of its contents, a torn record at the tail is discarded on replay.
+ *
+ * Appends are buffered, sync() makes everything appended so far durable.
+ * The journal file is only accessed by a private writer thread, so an
+ * interrupted caller cannot close it. Syncs are group committed: while the
+ * writer is busy, syncing callers share a single queued write that takes
+ * every edit appended until it starts, with one fsync for all of them
+ */
+class EditJournal
+{
+    // bytes framing each record (length, crc)
+    private static final int FRAME_NUM_BYTES = 8;
+
+    /**
+     * Kinds of journaled edits
+     */
+    enum EditType
+    {
+        // points assigned to a trace (traceID, pointIDs)
+        SetTrace(1),
+
+        // trace of a point's copy in a node summary (summaryIndex, index, traceID)
+        SummaryTrace(2),
+
+        // trace created (traceID, envelopeID)
+        InsertTrace(3);
+
+        final byte id;
+
+        EditType(int id)
+        {
+            this.id = (byte) id;
+        }
+
+        static EditType fromId(byte id) throws IOException
+        {
+            for (EditType type : values())
+                if (type.id == id)
+                    return type;
+            throw new IOException("Unknown journal edit type " + id);
+        }
+    }
+
+    /**
+     * A journaled edit. Fields not used by the edit's type are left unset
+     */
+    static class Edit
+    {
+        final EditType type;
+        final int traceID;
+        Integer[] pointIDs;
+        long summaryIndex;
+        int index;
+        int envelopeID;
+
+        private Edit(EditType type, int traceID)
+        {
+            this.type = type;
+            this.traceID = traceID;
+        }
+
+        static Edit setTrace(int traceID, Integer[] pointIDs)
+        {
+            Edit edit = new Edit(EditType.SetTrace, traceID);
+            edit.pointIDs = pointIDs;
+            return edit;
+        }
+
+        static Edit summaryTrace(long summaryIndex, int index, int traceID)
+        {
+            Edit edit = new Edit(EditType.SummaryTrace, traceID);
+            edit.summaryIndex = summaryIndex;
+            edit.index = index;
+            return edit;
+        }
+
+        static Edit insertTrace(int traceID, int envelopeID)
+        {
+            Edit edit = new Edit(EditType.InsertTrace, traceID);
+            edit.envelopeID = envelopeID;
+            return edit;
+        }
+
+        /* Number of bytes of the edit's record, unframed */
+        int numBytes()
+        {
+            switch (this.type) {
+                case SetTrace: return 9 + 4 * this.pointIDs.length;
+                case SummaryTrace: return 17;
+                default: return 9;
+            }
+        }
+
+        void writeTo(ByteBuffer buffer)
+        {
+            buffer.put(this.type.id);
+            buffer.putInt(this.traceID);
+            switch (this.type) {
+                case SetTrace:
+                    buffer.putInt(this.pointIDs.length);
+                    for (Integer pointID : this.pointIDs)
+                        buffer.putInt(pointID);
+                    break;
+                case SummaryTrace:
+                    buffer.putLong(this.summaryIndex);
+                    buffer.putInt(this.index);
+                    break;
+                case InsertTrace:
+                    buffer.putInt(this.envelopeID);
+                    break;
+            }
+        }
+
+        static Edit readFrom(ByteBuffer buffer) throws IOException
+        {
+            EditType type = EditType.fromId(buffer.get());
+            int traceID = buffer.getInt();
+            switch (type) {
+                case SetTrace:
+                    Integer[] pointIDs = new Integer[buffer.getInt()];
+                    for (int i = 0; i < pointIDs.length; i++)
+                        pointIDs[i] = buffer.getInt();
+                    return setTrace(traceID, pointIDs);
+                case SummaryTrace:
+                    long summaryIndex = buffer.getLong();
+                    return summaryTrace(summaryIndex, buffer.getInt(), traceID);
+                default:
+                    return insertTrace(traceID, buffer.getInt());
+            }
+        }
+    }
+
+    // journal file, only accessed on the writer thread
+    private final FileChannel channel;
+
+    // performs every access to the journal file, in submission order
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "edit-journal-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // framed records appended but not yet written
+    private ByteBuffer buffer = newBuffer(64 * 1024);
+
+    // sequence number of the last appended record
+    private long appendedSeq = 0;
+
+    // sequence number of the last durable record
+    private long durableSeq = 0;
+
+    // group commit waiting for the writer, joined by every sync until it starts
+    private Future<?> queuedWrite = null;
+
+    // failure of the last group commit, and the records it covered
+    private IOException failure;
+    private long failedSeq = 0;
+
+    // number of bytes in the journal file
+    private long journalLength;
+
+    /**
+     * Opens (creating if missing) the journal at the given path
+     * @param journalFilePath location of the journal file
+     * @throws IOException
+     */
+    EditJournal(String journalFilePath) throws IOException
+    {
+        this.channel = FileChannel.open(Paths.get(journalFilePath),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.journalLength = this.channel.size();
+        this.channel.position(this.journalLength);
+    }
+
+    /**
+     * Reads the edits of the journal, in append order. A torn or corrupt
+     * record ends the journal and is truncated away with anything after it
+     * @return edits since the last checkpoint
+     * @throws IOException
+     */
+    List<Edit> replay() throws IOException
+    {
+        return this.execute(() -> {
+            List<Edit> edits = new ArrayList<>();
+
+            ByteBuffer contents = newBuffer((int) this.channel.size());
+            while (contents.hasRemaining())
+                if (this.channel.read(contents, contents.position()) < 0)
+                    break;
+            contents.flip();
+
+            CRC32 crc = new CRC32();
+            long validLength = 0;
+            while (contents.remaining() >= FRAME_NUM_BYTES)
+            {
+                int length = contents.getInt();
+                int checksum = contents.getInt();
+                if (length <= 0 || length > contents.remaining())
+                    break;
+
+                ByteBuffer record = contents.slice();
+                record.limit(length);
+                record.order(ByteOrder.LITTLE_ENDIAN);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                edits.add(Edit.readFrom(record));
+                contents.position(contents.position() + length);
+                validLength = contents.position();
+            }
+
+            this.channel.truncate(validLength);
+            this.channel.position(validLength);
+            synchronized (this) {
+                this.journalLength = validLength;
+            }
+            return edits;
+        });
+    }
+
+    /**
+     * Buffers an edit, durable once a subsequent sync() returns
+     * @param edit edit to append
+     */
+    synchronized void append(Edit edit)
+    {
+        int length = edit.numBytes();
+        if (this.buffer.remaining() < FRAME_NUM_BYTES + length)
+        {
+            ByteBuffer grown = newBuffer(Math.max(2 * this.buffer.capacity(), this.buffer.position() + FRAME_NUM_BYTES + length));
+            this.buffer.flip();
+            grown.put(this.buffer);
+            this.buffer = grown;
+        }
+
+        int start = this.buffer.position();
+        this.buffer.position(start + FRAME_NUM_BYTES);
+        edit.writeTo(this.buffer);
+
+        // checksum the record, then fill in its frame
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(start + FRAME_NUM_BYTES);
+        record.limit(start + FRAME_NUM_BYTES + length);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        this.buffer.putInt(start, length);
+        this.buffer.putInt(start + 4, (int) crc.getValue());
+
+        this.appendedSeq++;
+    }
+
+    /**
+     * Blocks until every edit appended so far is durable. Concurrent
+     * callers share a single write and fsync. An interrupt does not cut the
+     * wait short, the interrupt status is kept for the caller
+     * @throws IOException if the journal could not be written
+     */
+    void sync() throws IOException
+    {
+        long seq;
+        synchronized (this) {
+            seq = this.appendedSeq;
+        }
+
+        while (true)
+        {
+            Future<?> write;
+            synchronized (this)
+            {
+                if (this.durableSeq >= seq)
+                    return;
+                if (seq <= this.failedSeq)
+                    throw new IOException("Journal write failed", this.failure);
+
+                // join the queued group commit, or queue one behind the write in progress
+                if (this.queuedWrite == null)
+                    this.queuedWrite = this.submit(this::writeBatch);
+                write = this.queuedWrite;
+            }
+
+            // the edits are written by this or an earlier group commit
+            await(write);
+        }
+    }
+
+    /* Group commit, run on the writer thread: writes and forces every buffered record */
+    private Void writeBatch()
+    {
+        ByteBuffer batch;
+        long batchSeq;
+
+        synchronized (this)
+        {
+            // edits appended from here on need a later group commit
+            this.queuedWrite = null;
+            if (this.buffer.position() == 0)
+                return null;
+
+            batch = this.buffer;
+            batch.flip();
+            batchSeq = this.appendedSeq;
+            this.buffer = newBuffer(batch.capacity());
+        }
+
+        IOException error = null;
+        try {
+            while (batch.hasRemaining())
+                this.channel.write(batch);
+            this.channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this)
+        {
+            if (error == null) {
+                this.durableSeq = Math.max(this.durableSeq, batchSeq);
+                this.journalLength += batch.limit();
+            } else {
+                this.failure = error;
+                this.failedSeq = batchSeq;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Empties the journal once its edits are checkpointed into the database
+     * and point file. Buffered edits are dropped, they are checkpointed too.
+     * A group commit in progress lands before the journal is truncated
+     * @throws IOException
+     */
+    void reset() throws IOException
+    {
+        synchronized (this) {
+            this.buffer.clear();
+            this.durableSeq = this.appendedSeq;
+        }
+
+        this.execute(() -> {
+            this.channel.truncate(0);
+            this.channel.position(0);
+            this.channel.force(false);
+            synchronized (this) {
+                this.journalLength = 0;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return true if no edits are buffered or written since the last reset
+     */
+    synchronized boolean isEmpty()
+    {
+        return this.buffer.position() == 0 && this.journalLength == 0;
+    }
+
+    /**
+     * Closes the journal file once queued writes have landed. Edits appended
+     * but not synced are not written
+     * @throws IOException
+     */
+    void close() throws IOException
+    {
+        this.writer.shutdown();
+
+        boolean interrupted = false;
+        try {
+            while (!this.writer.isTerminated()) {
+                try {
+                    this.writer.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        this.channel.close();
+    }
+
+    //**********************************************//
+    //                WRITER THREAD                 //
+    //**********************************************//
+
+    /* Queues a task on the writer thread */
+    private <T> Future<T> submit(Callable<T> task) throws IOException
+    {
+        try {
+            return this.writer.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Journal is closed", e);
+        }
+    }
+
+    /* Runs a task on the writer thread and waits for its result */
+    private <T> T execute(Callable<T> task) throws IOException
+    {
+        return await(this.submit(task));
+    }
+
+    /**
+     * Waits for a writer task, uninterruptibly: the interrupt status of the
+     * caller is restored once the task is done
+     * @param result result of the task
+     * @return the task's result
+     * @throws IOException the task's exception
+     */
+    private static <T> T await(Future<T> result) throws IOException
+    {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ByteBuffer newBuffer(int capacity)
+    {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import edu.msViz.mzTree.MsDataPoint;
+import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointBlock;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * PointEngine implementation that accesses the point file through positional
+ * FileChannel reads and writes, so no file pointer is shared between threads.
+ *
+ * An interrupt during channel I/O closes the channel (and the file with it)
+ * for every thread. The I/O is then retried on a reopened file, with the
+ * interrupt status of the interrupted thread restored once it completes
+ */
+class FilePointEngine extends PointEngine {
+
+    // number of points processed at once when rewriting traces
+    private static final int TRACE_CHUNK_NUM_POINTS = 1000;
+
+    private final String pointFilePath;
+
+    // replaced together when an interrupt closes the channel
+    private volatile RandomAccessFile pointFile;
+    private volatile FileChannel pointChannel;
+
+    // guards reopening, set once the engine is closed
+    private final Object reopenLock = new Object();
+    private boolean closed = false;
+
+    /**
+     * Creates or opens the point storage file
+     * @throws IOException
+     */
+    public FilePointEngine(String pointFilePath) throws IOException {
+        this.pointFilePath = pointFilePath;
+        pointFile = new RandomAccessFile(pointFilePath, "rw");
+        pointChannel = pointFile.getChannel();
+        this.pointCount = 0;
+
+        if (pointFile.length() > 0) {
+            // existing file
+            pointCount = (int) (pointFile.length() / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        }
+
+    }
+
+    /* Decodes the point at the given offset of a buffer */
+    private static MsDataPoint pointAt(ByteBuffer buf, int offset, int id)
+    {
+        double mz = buf.getDouble(offset);
+        float rt = buf.getFloat(offset + 8);
+        double intensity = buf.getDouble(offset + 12);
+        int traceID = buf.getInt(offset + TRACE_OFFSET);
+
+        MsDataPoint pt = new MsDataPoint(id, mz, rt, intensity);
+        pt.traceID = traceID;
+        return pt;
+    }
+
+    /* Converts point data to a byte buffer ready for writing */
+    private static ByteBuffer pointToBytes(MsDataPoint point) {
+        ByteBuffer buf = ByteBuffer.allocate(MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        buf.putDouble(point.mz);
+        buf.putFloat(point.rt);
+        buf.putDouble(point.intensity);
+        buf.putInt(point.traceID);
+        buf.flip();
+        return buf;
+    }
+
+    /* Fills the buffer from the given file position, stopping early only at end of file */
+    protected void readFully(ByteBuffer buf, long position) throws IOException
+    {
+        boolean interrupted = false;
+        try {
+            while (buf.hasRemaining()) {
+                FileChannel channel = pointChannel;
+                int read;
+                try {
+                    read = channel.read(buf, position);
+                } catch (ClosedChannelException e) {
+                    // clear the interrupt so the retry is not closed again
+                    interrupted |= Thread.interrupted();
+                    this.reopen(channel, e);
+                    continue;
+                }
+                if (read < 0)
+                    break;
+                position += read;
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        buf.flip();
+    }
+
+    /* Writes the remainder of the buffer at the given file position */
+    protected void writeFully(ByteBuffer buf, long position) throws IOException
+    {
+        boolean interrupted = false;
+        try {
+            while (buf.hasRemaining()) {
+                FileChannel channel = pointChannel;
+                try {
+                    position += channel.write(buf, position);
+                } catch (ClosedChannelException e) {
+                    // positional writes are repeatable, resume from the last completed write
+                    interrupted |= Thread.interrupted();
+                    this.reopen(channel, e);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reopens the point file after its channel was closed by an interrupt,
+     * unless another thread already has
+     * @param failed channel the failed I/O was performed on
+     * @param cause exception of the failed I/O, rethrown if the engine was closed
+     * @throws IOException
+     */
+    private void reopen(FileChannel failed, ClosedChannelException cause) throws IOException
+    {
+        synchronized (reopenLock) {
+            if (closed || failed.isOpen())
+                throw cause;
+            if (pointChannel == failed) {
+                RandomAccessFile file = new RandomAccessFile(pointFilePath, "rw");
+                pointFile = file;
+                pointChannel = file.getChannel();
+            }
+        }
+    }
+
+    /* Gets the point file, reopened if an interrupt closed it */
+    private RandomAccessFile openFile() throws IOException
+    {
+        FileChannel channel = pointChannel;
+        if (!channel.isOpen())
+            this.reopen(channel, new ClosedChannelException());
+        return pointFile;
+    }
+
+    @Override
+    public synchronized void reserveSpace(int numPoints) throws IOException {
+        RandomAccessFile file = this.openFile();
+        file.setLength((long)(numPoints) * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+
+        // the summary section follows the reserved space
+        this.summaryStart = file.length();
+        this.summaryEnd = this.summaryStart;
+    }
+
+    @Override
+    public synchronized void insert(MsDataPoint point) throws IOException
+    {
+        // assign the point's ID
+        point.pointID = this.pointCount;
+
+        // write the point to the point file
+        writeFully(pointToBytes(point), (long)point.pointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+
+        // publish the point to readers once written
+        this.pointCount++;
+    }
+
+    @Override
+    public long insertBlock(PointBlock points, int from, int to) throws IOException
+    {
+        int numPoints = to - from;
+        if (numPoints == 0)
+            return 0;
+
+        // encode the block and write it with one positional write
+        ByteBuffer data = ByteBuffer.allocate(numPoints * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        for (int i = from; i < to; i++) {
+            data.putDouble(points.mz[i]);
+            data.putFloat(points.rt[i]);
+            data.putDouble(points.intensity[i]);
+            data.putInt(points.traceID[i]);
+        }
+        data.flip();
+
+        int firstPointID = points.id[from];
+        writeFully(data, (long)firstPointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+
+        // publish the points to readers once written
+        this.publishBlock(firstPointID + numPoints);
+        return (long)firstPointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+    }
+
+    @Override
+    public MsDataPoint selectPoint(int pointID) throws IOException
+    {
+        this.checkPointID(pointID);
+
+        // convert to long to avoid integer overflow
+        long pointLocation = (long)pointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+        ByteBuffer data = ByteBuffer.allocate(MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        this.readFully(data, pointLocation);
+        return pointAt(data, 0, pointID);
+    }
+
+    @Override
+    public List<MsDataPoint> selectPoints(List<Integer> pointIDs) throws IOException
+    {
+        // return list
+        ArrayList<MsDataPoint> points = new ArrayList<>(pointIDs.size());
+        for (Integer id : pointIDs) {
+            points.add(this.selectPoint(id));
+        }
+
+        return points;
+    }
+
+    @Override
+    public void selectPoints(int[] pointIDs, PointBlock results) throws IOException
+    {
+        results.ensureCapacity(results.size() + pointIDs.length);
+        ByteBuffer data = ByteBuffer.allocate(MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+
+        for (int pointID : pointIDs) {
+            this.checkPointID(pointID);
+
+            data.clear();
+            this.readFully(data, (long)pointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+            results.add(pointID, data.getDouble(0), data.getFloat(8), data.getDouble(12), data.getInt(TRACE_OFFSET));
+        }
+    }
+
+    /**
+     * Selects a leaf node's points from the point file by loading its entire block of points.
+     * Allows for accessing an entire leaf node's data points with only one positional read.
+     * Additionally trims the resulting list according to the given bounds
+     */
+    @Override
+    public List<MsDataPoint> selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException
+    {
+        // results list
+        List<MsDataPoint> results = new ArrayList<>();
+
+        if (leaf.fileIndex == null) {
+            // not a leaf node, or upgraded from a version without this optimization
+            return selectPoints(Arrays.stream(leaf.pointIDs).boxed().collect(Collectors.toList()))
+                    .stream().filter(p -> p.isInBounds(mzmin, mzmax, rtmin, rtmax)).collect(Collectors.toList());
+        }
+
+        // the range of the leaf's scans overlapping the rt bounds
+        int start = leafScanStart(leaf, rtmin);
+        int end = leafScanEnd(leaf, rtmax);
+        if (start >= end)
+            return results;
+
+        // allocated space for the range of the node block
+        ByteBuffer data = ByteBuffer.allocate((end - start) * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+
+        // read the range from its location in the point file
+        this.readFully(data, leaf.fileIndex + (long)start * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+
+        // leaf points are stored contiguously, in pointID order
+        int firstPoint = (int) (leaf.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT) + start;
+
+        // parse points from retrieved binary
+        for(int i = 0; i < end - start; i++)
+        {
+            int offset = i * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+
+            // include in result set if within bounds
+            double mz = data.getDouble(offset);
+            float rt = data.getFloat(offset + 8);
+            if(mz >= mzmin && mz <= mzmax && rt >= rtmin && rt <= rtmax)
+                results.add(pointAt(data, offset, firstPoint + i));
+        }
+        return results;
+    }
+
+    @Override
+    public void selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws IOException
+    {
+        if (leaf.fileIndex == null) {
+            // not a leaf node, or upgraded from a version without this optimization
+            this.selectNodePointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, results);
+            return;
+        }
+
+        // the range of the leaf's scans overlapping the rt bounds
+        int start = leafScanStart(leaf, rtmin);
+        int end = leafScanEnd(leaf, rtmax);
+        if (start >= end)
+            return;
+
+        // read the range of the node block with one positional read
+        ByteBuffer data = ByteBuffer.allocate((end - start) * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        this.readFully(data, leaf.fileIndex + (long)start * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+
+        // leaf points are stored contiguously, in pointID order
+        int firstPoint = (int) (leaf.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT) + start;
+
+        // decode points within bounds straight into the block
+        for(int i = 0; i < end - start; i++)
+        {
+            int offset = i * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+
+            double mz = data.getDouble(offset);
+            float rt = data.getFloat(offset + 8);
+            if(mz >= mzmin && mz <= mzmax && rt >= rtmin && rt <= rtmax)
+                results.add(firstPoint + i, mz, rt, data.getDouble(offset + 12), data.getInt(offset + TRACE_OFFSET));
+        }
+    }
+
+    /* Encodes summary points as summary section records */
+    protected static ByteBuffer summaryToBytes(PointBlock summary)
+    {
+        ByteBuffer data = ByteBuffer.allocate(summary.size() * SUMMARY_NUM_BYTES_PER_POINT);
+        for (int i = 0; i < summary.size(); i++) {
+            data.putDouble(summary.mz[i]);
+            data.putFloat(summary.rt[i]);
+            data.putDouble(summary.intensity[i]);
+            data.putInt(summary.traceID[i]);
+            data.putInt(summary.id[i]);
+        }
+        data.flip();
+        return data;
+    }
+
+    @Override
+    public synchronized long appendSummary(PointBlock summary) throws IOException
+    {
+        this.ensureSummarySection();
+
+        // encode the summary records
+        ByteBuffer data = summaryToBytes(summary);
+
+        // append to the summary section
+        long summaryIndex = this.summaryEnd;
+        this.writeFully(data, summaryIndex);
+        this.summaryEnd += (long)summary.size() * SUMMARY_NUM_BYTES_PER_POINT;
+        return summaryIndex;
+    }
+
+    @Override
+    public void selectSummary(long summaryIndex, int numPoints, PointBlock results) throws IOException
+    {
+        // read the node's summary copy in one read
+        ByteBuffer data = ByteBuffer.allocate(numPoints * SUMMARY_NUM_BYTES_PER_POINT);
+        this.readFully(data, summaryIndex);
+
+        results.ensureCapacity(results.size() + numPoints);
+        for (int i = 0; i < numPoints; i++)
+        {
+            int offset = i * SUMMARY_NUM_BYTES_PER_POINT;
+            results.add(data.getInt(offset + SUMMARY_ID_OFFSET), data.getDouble(offset), data.getFloat(offset + 8),
+                    data.getDouble(offset + 12), data.getInt(offset + TRACE_OFFSET));
+        }
+    }
+
+    @Override
+    public void updateSummaryTrace(long summaryIndex, int index, int traceID) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate(4);
+        data.putInt(0, traceID);
+
+        // any stripe excludes a concurrent trace clear
+        ReentrantLock lock = this.traceLock(index);
+        lock.lock();
+        try {
+            writeFully(data, summaryIndex + (long)index * SUMMARY_NUM_BYTES_PER_POINT + TRACE_OFFSET);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void updatePointTrace(int pointID, int traceID) throws IOException
+    {
+        long pointLocation = (long)pointID * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+
+        ByteBuffer data = ByteBuffer.allocate(4);
+        data.putInt(0, traceID);
+
+        ReentrantLock lock = this.traceLock(pointID);
+        lock.lock();
+        try {
+            writeFully(data, pointLocation + TRACE_OFFSET);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clearTraces() throws IOException {
+        this.lockAllTraces();
+        try {
+            this.clearSectionTraces(0, pointCount, MsDataPoint.DISK_NUM_BYTES_PER_POINT, TRACE_OFFSET);
+            this.clearSectionTraces(summaryStart, summaryRecordCount(), SUMMARY_NUM_BYTES_PER_POINT, TRACE_OFFSET);
+        } finally {
+            this.unlockAllTraces();
+        }
+    }
+
+    /**
+     * Sets the trace of a section's records to no-trace, one chunk of records at a time.
+     * Only chunks containing a traced record are written back. Every trace lock must be held
+     * @param start absolute index of the section's first record
+     * @param numRecords number of records in the section
+     * @param recordSize number of bytes per record
+     * @param traceOffset location of the trace within a record
+     * @throws IOException
+     */
+    protected void clearSectionTraces(long start, long numRecords, int recordSize, int traceOffset) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(TRACE_CHUNK_NUM_POINTS * recordSize);
+
+        for (long first = 0; first < numRecords; first += TRACE_CHUNK_NUM_POINTS) {
+            long position = start + first * recordSize;
+            int numPoints = (int) Math.min(TRACE_CHUNK_NUM_POINTS, numRecords - first);
+
+            buffer.clear();
+            buffer.limit(numPoints * recordSize);
+            this.readFully(buffer, position);
+
+            boolean changed = false;
+            for (int i = 0; i < numPoints; i++) {
+                int offset = i * recordSize + traceOffset;
+                if (buffer.getInt(offset) != 0) {
+                    buffer.putInt(offset, 0);
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                buffer.rewind();
+                this.writeFully(buffer, position);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.openFile().getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        synchronized (reopenLock) {
+            closed = true;
+            pointChannel.close();
+            pointFile.close();
+        }
+    }
+}
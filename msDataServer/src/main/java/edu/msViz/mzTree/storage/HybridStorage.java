@@ -8,8 +8,10 @@ package edu.msViz.mzTree.storage;
 import edu.msViz.xnet.dataTypes.IsotopeTrace;
 import edu.msViz.xnet.dataTypes.IsotopicEnvelope;
 import edu.msViz.mzTree.ImportState;
+import edu.msViz.mzTree.LeafScanIndex;
 import edu.msViz.mzTree.MsDataPoint;
 import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointBlock;
 
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -19,10 +21,19 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -38,6 +49,15 @@ public class HybridStorage implements StorageFacade
 {
     private static final Logger LOGGER = Logger.getLogger(HybridStorage.class.getName());
 
+    // number of threads reading leaves for parallel queries
+    private static final int NUM_LEAF_READERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // number of leaf reads in flight ahead of the merge of a parallel query
+    private static final int LEAF_READ_WINDOW = 4 * NUM_LEAF_READERS;
+
+    // time between background checkpoints of journaled edits
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
     // connection to the SQLite database
     private Connection dbConnection;
 
@@ -47,17 +67,77 @@ public class HybridStorage implements StorageFacade
     // point value access
     private PointEngine pointEngine;
 
-    // path to the database and point files
+    // whether the point file is accessed through memory mappings
+    private final boolean memoryMapped;
+
+    // format of the point file, recorded in new files and read from existing ones
+    private PointFormat pointFormat = PointFormat.Record;
+
+    // codec of the leaf blocks written to a new Compact point file
+    private BlockCodec blockCodec = BlockCodec.None;
+
+    // point engine of a Compact point file, null for Record point files
+    private CompactPointEngine compactEngine;
+
+    // bounded pool reading the leaves of parallel queries, created on first use
+    private ExecutorService leafReaders;
+
+    // traced points saved by savePoints (pointID -> traceID), indexed on flush
+    private final Map<Integer, Integer> pendingTracePoints = HashIntIntMaps.newMutableMap();
+
+    // durable log of the segmentation edits made since the last checkpoint
+    private EditJournal journal;
+
+    // journaled edits whose database updates wait for the next checkpoint
+    private final List<EditJournal.Edit> pendingEdits = new ArrayList<>();
+
+    // orders journal appends, deferred database updates and checkpoints
+    private final Object editLock = new Object();
+
+    // checkpoints journaled edits in the background
+    private ScheduledExecutorService checkpointer;
+
+    // path to the database, point and journal files
     private String filePath;
     private String pointFilePath;
+    private String journalFilePath;
 
     // work done counter (number of points || nodepoints saved)
     private int workDone = 0;
 
+    /**
+     * Default constructor, accesses the point file through a RandomAccessFile
+     */
+    public HybridStorage()
+    {
+        this(false);
+    }
+
+    /**
+     * Constructor allowing the point file access method to be chosen
+     * @param memoryMapped if true the point file is accessed through memory mappings
+     */
+    public HybridStorage(boolean memoryMapped)
+    {
+        this.memoryMapped = memoryMapped;
+    }
+
     //**********************************************//
     //                    INIT                      //
     //**********************************************//
 
+    @Override
+    public void setPointFormat(PointFormat format)
+    {
+        this.pointFormat = format;
+    }
+
+    @Override
+    public void setBlockCodec(BlockCodec codec)
+    {
+        this.blockCodec = codec;
+    }
+
     @Override
     public void init(String filePath, Integer numPoints) throws Exception
     {
@@ -70,6 +150,7 @@ public class HybridStorage implements StorageFacade
 
         this.filePath = filePath;
         this.pointFilePath = filePath + "-points";
+        this.journalFilePath = filePath + "-journal";
 
         try{
             // link the JDBC-sqlite class
@@ -87,14 +168,53 @@ public class HybridStorage implements StorageFacade
             // disable auto commit (enables user defined transactions)
             this.dbConnection.setAutoCommit(false);
 
-            // construct SQL Engine and Point Engine
+            // construct SQL Engine
             this.dbEngine = new SQLEngine();
-            this.pointEngine = new PointEngine(pointFilePath);
+
+            // new files record the requested point format, existing files keep their own
+            if(numPoints != null) {
+                this.dbEngine.savePointFormat(this.pointFormat);
+                this.dbEngine.saveTraceIndexBuilt();
+            }
+            else
+                this.pointFormat = this.dbEngine.selectPointFormat();
+
+            // construct the Point Engine for the file's point format
+            if(this.pointFormat == PointFormat.Compact)
+            {
+                if(this.memoryMapped)
+                    LOGGER.log(Level.INFO, "Compact point files are read through positional file access, not memory mappings");
+                this.compactEngine = new CompactPointEngine(pointFilePath, this.blockCodec);
+                this.pointEngine = this.compactEngine;
+            }
+            else if(numPoints != null && this.blockCodec != BlockCodec.None)
+            {
+                LOGGER.log(Level.WARNING, "Block codecs apply to Compact point files only, writing uncompressed Record points");
+                this.pointEngine = this.memoryMapped ? new MappedPointEngine(pointFilePath) : new FilePointEngine(pointFilePath);
+            }
+            else if(this.memoryMapped)
+                this.pointEngine = new MappedPointEngine(pointFilePath);
+            else
+                this.pointEngine = new FilePointEngine(pointFilePath);
 
             // reserve space for the number of incoming points
             if(numPoints != null)
                 this.pointEngine.reserveSpace(numPoints);
 
+            // otherwise restore the layout of an existing point file
+            else
+            {
+                this.dbEngine.restorePointLayout();
+                if(this.compactEngine != null)
+                    this.dbEngine.restoreCompactBlocks(this.compactEngine);
+
+                // files converted from version 9 index their traces once, on first open
+                if(!this.dbEngine.isTraceIndexBuilt())
+                    this.dbEngine.buildTraceIndex();
+            }
+
+            this.openJournal(numPoints == null);
+
         }
         catch(Exception e)
         {
@@ -139,6 +259,7 @@ public class HybridStorage implements StorageFacade
     @Override
     public Map<Integer, Integer> loadTraceMap() throws Exception
     {
+        this.applyPendingEdits();
         return dbEngine.loadTraceMap();
     }
 
@@ -149,24 +270,30 @@ public class HybridStorage implements StorageFacade
     @Override
     public void savePoints(SavePointsTask task, ImportState importState) throws IOException
     {
-        // inform the MzTreeNode of its position in the file and number of points
-        task.node.numSavedPoints = task.dataset.size();
-
-        // iterate through all points
-        for(MsDataPoint point : task.dataset)
-        {
-            // insert point into database
-            this.pointEngine.insert(point);
-
-            // a point is a single unit of work
-            this.workDone++;
+        // write the leaf's points as one block, then inform the MzTreeNode
+        // of its position in the file and number of points
+        int numPoints = task.to - task.from;
+        task.node.numSavedPoints = numPoints;
+        task.node.fileIndex = this.pointEngine.insertBlock(task.dataset, task.from, task.to);
+
+        // points imported with a trace (or as noise) are indexed on the next flush
+        PointBlock points = task.dataset;
+        synchronized (this.pendingTracePoints) {
+            for (int i = task.from; i < task.to; i++)
+                if (points.traceID[i] != 0)
+                    this.pendingTracePoints.put(points.id[i], points.traceID[i]);
+        }
 
-            // helps UI responsiveness
-            if(this.workDone % 1000 == 0){
-              importState.setWorkDone(this.workDone);
-            }
+        // compact blocks also record how they were stored
+        if (this.compactEngine != null && numPoints > 0) {
+            int firstPointID = points.id[task.from];
+            task.node.blockCodec = this.compactEngine.codecOf(firstPointID).id;
+            task.node.blockLength = this.compactEngine.storedLengthOf(firstPointID);
         }
-        task.node.fileIndex = (long)task.dataset.get(0).pointID * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+
+        // a point is a single unit of work
+        this.workDone += numPoints;
+        importState.setWorkDone(this.workDone);
     }
 
     @Override
@@ -203,6 +330,32 @@ public class HybridStorage implements StorageFacade
         node.rtMax = rs.getFloat(7);
         node.intMin = rs.getDouble(8);
         node.intMax = rs.getDouble(9);
+
+        node.summaryIndex = rs.getLong(12);
+        if (rs.wasNull())
+            node.summaryIndex = null;
+
+        node.numSummaryPoints = rs.getInt(13);
+        if (rs.wasNull())
+            node.numSummaryPoints = null;
+
+        node.blockCodec = rs.getInt(15);
+        if (rs.wasNull())
+            node.blockCodec = null;
+
+        node.blockLength = rs.getInt(16);
+        if (rs.wasNull())
+            node.blockLength = null;
+
+        node.scanIndex = LeafScanIndex.fromBytes(rs.getBytes(17));
+
+        // leaf points are contiguous, parents merge their children's ranges
+        if (node.fileIndex != null && node.numSavedPoints != null) {
+            int firstPoint = rs.getInt(14);
+            if (rs.wasNull())
+                firstPoint = (int) (node.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+            node.keepPointIDRange(firstPoint, firstPoint + node.numSavedPoints - 1);
+        }
     }
 
     //**********************************************//
@@ -212,26 +365,173 @@ public class HybridStorage implements StorageFacade
     @Override
     public void updateTraces(int traceID, Integer[] targets) throws SQLException, IOException
     {
-        // iterate through all pointID/traceID pairs
-        for (Integer pointID : targets) {
-            this.pointEngine.updatePointTrace(pointID, traceID);
-        }
+        this.journalEdit(EditJournal.Edit.setTrace(traceID, targets));
+    }
 
-        this.dbConnection.commit();
+    @Override
+    public void updateTraces(Map<Integer, Integer[]> traces) throws SQLException, IOException
+    {
+        for (Map.Entry<Integer, Integer[]> trace : traces.entrySet())
+            this.journalEdit(EditJournal.Edit.setTrace(trace.getKey(), trace.getValue()));
+    }
+
+    @Override
+    public int[] getTracePointIDs(int traceID) throws SQLException
+    {
+        this.applyPendingEdits();
+        return this.dbEngine.selectTracePointIDs(traceID);
+    }
+
+    @Override
+    public void loadTracedPoints(PointBlock results) throws SQLException, IOException
+    {
+        this.applyPendingEdits();
+
+        // sorted pointIDs let the point engine read neighbouring points together
+        this.pointEngine.selectPoints(this.dbEngine.selectTracedPointIDs(), results);
+    }
+
+    @Override
+    public int[] getAssignedPointIDs() throws SQLException
+    {
+        this.applyPendingEdits();
+        return this.dbEngine.selectAssignedPointIDs();
     }
 
     @Override
     public void updateTrace(int traceID, double centroidMZ, float minRT, float maxRT, double intensitySum) throws SQLException
     {
-        this.dbEngine.updateTrace(traceID, centroidMZ, minRT, maxRT, intensitySum);
+        synchronized (this.editLock) {
+            this.applyPendingEdits();
+            this.dbEngine.updateTrace(traceID, centroidMZ, minRT, maxRT, intensitySum);
+        }
     }
 
     @Override
-    public void insertTrace(int traceID, int envelopeID) throws SQLException
+    public void insertTrace(int traceID, int envelopeID) throws SQLException, IOException
     {
-        this.dbEngine.insertTrace(traceID, envelopeID);
+        this.journalEdit(EditJournal.Edit.insertTrace(traceID, envelopeID));
+    }
 
-        this.dbConnection.commit();
+    @Override
+    public void insertTraces(List<Integer> traceIDs, int envelopeID) throws SQLException, IOException
+    {
+        for (Integer traceID : traceIDs)
+            this.journalEdit(EditJournal.Edit.insertTrace(traceID, envelopeID));
+    }
+
+    @Override
+    public void commitEdits() throws IOException
+    {
+        this.journal.sync();
+    }
+
+    //**********************************************//
+    //                EDIT JOURNAL                  //
+    //**********************************************//
+
+    /**
+     * Opens the edit journal, replaying the edits of an existing file that
+     * were not checkpointed before it was last closed, and starts the
+     * background checkpoints
+     * @param existing true if the file existed, false for a new file
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void openJournal(boolean existing) throws SQLException, IOException
+    {
+        this.journal = new EditJournal(this.journalFilePath);
+
+        if (existing) {
+            List<EditJournal.Edit> edits = this.journal.replay();
+            if (!edits.isEmpty()) {
+                LOGGER.log(Level.INFO, "Replaying " + edits.size() + " journaled edits of " + this.filePath);
+                for (EditJournal.Edit edit : edits) {
+                    this.applyPointEdit(edit);
+                    this.applyDatabaseEdit(edit);
+                }
+                this.dbConnection.commit();
+                this.pointEngine.flush();
+            }
+        }
+        this.journal.reset();
+
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                if (!this.journal.isEmpty())
+                    this.flush();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not checkpoint journaled edits of " + this.filePath, e);
+            }
+        }, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Journals an edit and applies it to the point file, without syncing.
+     * Its database update is deferred to the next checkpoint, or to the next
+     * query that depends on it
+     * @param edit edit to journal
+     * @throws IOException
+     */
+    private void journalEdit(EditJournal.Edit edit) throws IOException
+    {
+        synchronized (this.editLock) {
+            this.journal.append(edit);
+            this.applyPointEdit(edit);
+            if (edit.type != EditJournal.EditType.SummaryTrace)
+                this.pendingEdits.add(edit);
+        }
+    }
+
+    /**
+     * Applies the deferred database updates of journaled edits, leaving them
+     * uncommitted. Queries on the connection see them from then on
+     * @throws SQLException
+     */
+    private void applyPendingEdits() throws SQLException
+    {
+        synchronized (this.editLock) {
+            for (EditJournal.Edit edit : this.pendingEdits)
+                this.applyDatabaseEdit(edit);
+            this.pendingEdits.clear();
+        }
+    }
+
+    /* Applies the point file part of a journaled edit */
+    private void applyPointEdit(EditJournal.Edit edit) throws IOException
+    {
+        switch (edit.type) {
+            case SetTrace:
+                for (Integer pointID : edit.pointIDs)
+                    this.pointEngine.updatePointTrace(pointID, edit.traceID);
+                break;
+            case SummaryTrace:
+                this.pointEngine.updateSummaryTrace(edit.summaryIndex, edit.index, edit.traceID);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /* Applies the database part of a journaled edit */
+    private void applyDatabaseEdit(EditJournal.Edit edit) throws SQLException
+    {
+        switch (edit.type) {
+            case SetTrace:
+                // keep the trace index in step
+                this.dbEngine.indexTracePoints(edit.traceID, edit.pointIDs);
+                break;
+            case InsertTrace:
+                this.dbEngine.insertTrace(edit.traceID, edit.envelopeID);
+                break;
+            default:
+                break;
+        }
     }
 
     //**********************************************//
@@ -241,6 +541,7 @@ public class HybridStorage implements StorageFacade
     @Override
     public List<IsotopeTrace> loadTraces(boolean single) throws SQLException
     {
+        this.applyPendingEdits();
         return this.dbEngine.loadTraces(single);
     }
 
@@ -276,10 +577,15 @@ public class HybridStorage implements StorageFacade
     @Override
     public void deleteTrace(int traceID) throws SQLException, IOException
     {
-        // update point's trace
-        this.dbEngine.deleteTrace(traceID);
+        synchronized (this.editLock) {
+            // deletes are not journaled, checkpoint the edits they follow
+            this.flush();
+
+            // update point's trace
+            this.dbEngine.deleteTrace(traceID);
 
-        this.dbConnection.commit();
+            this.dbConnection.commit();
+        }
     }
     //**********************************************//
     //               DELETE TRACEs                  //
@@ -288,10 +594,15 @@ public class HybridStorage implements StorageFacade
     @Override
     public void deleteTraces() throws SQLException, IOException
     {
-        // update point's trace
-        this.dbEngine.deleteTraces();
+        synchronized (this.editLock) {
+            // deletes are not journaled, checkpoint the edits they follow
+            this.flush();
 
-        this.dbConnection.commit();
+            // update point's trace
+            this.dbEngine.deleteTraces();
+
+            this.dbConnection.commit();
+        }
     }
 
     //**********************************************//
@@ -301,9 +612,12 @@ public class HybridStorage implements StorageFacade
     @Override
     public void insertEnvelope(IsotopicEnvelope envelope) throws SQLException
     {
-        this.dbEngine.insertOrIgnoreEnvelope(envelope.envelopeID, envelope.chargeState, envelope.monoisotopicMZ, envelope.intensitySum, envelope.relativeIntensities);
+        synchronized (this.editLock) {
+            this.applyPendingEdits();
+            this.dbEngine.insertOrIgnoreEnvelope(envelope.envelopeID, envelope.chargeState, envelope.monoisotopicMZ, envelope.intensitySum, envelope.relativeIntensities);
 
-        this.dbConnection.commit();
+            this.dbConnection.commit();
+        }
     }
 
     //**********************************************//
@@ -313,9 +627,12 @@ public class HybridStorage implements StorageFacade
     @Override
     public void deleteEnvelopes(int[] envelopeIDs) throws SQLException
     {
-        this.dbEngine.deleteEnvelopes(envelopeIDs);
+        synchronized (this.editLock) {
+            this.applyPendingEdits();
+            this.dbEngine.deleteEnvelopes(envelopeIDs);
 
-        this.dbConnection.commit();
+            this.dbConnection.commit();
+        }
     }
 
     //**********************************************//
@@ -325,12 +642,17 @@ public class HybridStorage implements StorageFacade
     @Override
     public void updateEnvelopes(int envelopeID, Integer[] targets) throws SQLException
     {
-        // iterate through all traceID,envelopeID pairs
-        for (Integer traceID : targets) {
-            this.dbEngine.updateTrace(traceID, envelopeID);
-        }
+        synchronized (this.editLock) {
+            // the traces may have been created by journaled edits
+            this.applyPendingEdits();
 
-        this.dbConnection.commit();
+            // iterate through all traceID,envelopeID pairs
+            for (Integer traceID : targets) {
+                this.dbEngine.updateTrace(traceID, envelopeID);
+            }
+
+            this.dbConnection.commit();
+        }
     }
 
     //**********************************************//
@@ -356,6 +678,29 @@ public class HybridStorage implements StorageFacade
         // node points are not significant work done
     }
 
+    //**********************************************//
+    //               NODE SUMMARIES                 //
+    //**********************************************//
+
+    @Override
+    public void saveNodeSummary(MzTreeNode node) throws IOException
+    {
+        node.summaryIndex = this.pointEngine.appendSummary(node.summary);
+        node.numSummaryPoints = node.summary.size();
+    }
+
+    @Override
+    public void loadNodeSummary(MzTreeNode node, PointBlock results) throws IOException
+    {
+        this.pointEngine.selectSummary(node.summaryIndex, node.numSummaryPoints, results);
+    }
+
+    @Override
+    public void updateSummaryTrace(MzTreeNode node, int index, int traceID) throws IOException
+    {
+        this.journalEdit(EditJournal.Edit.summaryTrace(node.summaryIndex, index, traceID));
+    }
+
     //**********************************************//
     //                  LOAD POINTS                 //
     //**********************************************//
@@ -366,6 +711,12 @@ public class HybridStorage implements StorageFacade
         return this.pointEngine.selectPoints(pointIDs);
     }
 
+    @Override
+    public void loadPoints(int[] pointIDs, PointBlock results) throws IOException
+    {
+        this.pointEngine.selectPoints(pointIDs, results);
+    }
+
     @Override
     public List<MsDataPoint> loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException
     {
@@ -379,6 +730,78 @@ public class HybridStorage implements StorageFacade
         return results;
     }
 
+    @Override
+    public void loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws IOException
+    {
+        this.loadLeavesPointsInBounds(leaves, mzmin, mzmax, rtmin, rtmax, results, false);
+    }
+
+    @Override
+    public void loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results, boolean parallel) throws IOException
+    {
+        if(!parallel || leaves.size() < 2)
+        {
+            for(MzTreeNode leaf : leaves)
+                this.pointEngine.selectLeafPointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, results);
+            return;
+        }
+
+        // each leaf decodes into its own block, merged in leaf order. A window of
+        // reads runs ahead of the merge so only a few leaf blocks are held at once
+        ExecutorService readers = this.leafReaders();
+        Deque<Future<PointBlock>> reads = new ArrayDeque<>();
+        int nextLeaf = 0;
+
+        try {
+            while(nextLeaf < leaves.size() || !reads.isEmpty())
+            {
+                while(nextLeaf < leaves.size() && reads.size() < LEAF_READ_WINDOW)
+                {
+                    final MzTreeNode leaf = leaves.get(nextLeaf++);
+                    reads.add(readers.submit(() -> {
+                        PointBlock leafResults = new PointBlock((leaf.numSavedPoints != null) ? leaf.numSavedPoints : 16);
+                        this.pointEngine.selectLeafPointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, leafResults);
+                        return leafResults;
+                    }));
+                }
+
+                results.addAll(reads.poll().get());
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading leaves");
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Could not read leaf points", e.getCause());
+        }
+        finally
+        {
+            // abandon reads still pending after a failure
+            for(Future<PointBlock> read : reads)
+                read.cancel(false);
+        }
+    }
+
+    /* Creates the leaf reader pool on first use, one daemon thread per processor */
+    private synchronized ExecutorService leafReaders()
+    {
+        if(this.leafReaders == null)
+        {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.leafReaders = Executors.newFixedThreadPool(NUM_LEAF_READERS, runnable -> {
+                Thread thread = new Thread(runnable, "leaf-reader-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.leafReaders;
+    }
+
     //**********************************************//
     //                    FLUSH                     //
     //**********************************************//
@@ -386,8 +809,22 @@ public class HybridStorage implements StorageFacade
     @Override
     public void flush() throws SQLException, IOException
     {
-        this.dbConnection.commit();
-        this.pointEngine.flush();
+        // index the traced points of a build
+        synchronized (this.pendingTracePoints) {
+            if (!this.pendingTracePoints.isEmpty()) {
+                this.dbEngine.insertTracePoints(this.pendingTracePoints);
+                this.pendingTracePoints.clear();
+            }
+        }
+
+        // checkpoint: once the database and point file hold every journaled edit the journal is emptied
+        synchronized (this.editLock) {
+            this.applyPendingEdits();
+            this.dbConnection.commit();
+            this.pointEngine.flush();
+            if (this.journal != null)
+                this.journal.reset();
+        }
     }
 
     //**********************************************//
@@ -408,14 +845,30 @@ public class HybridStorage implements StorageFacade
     public void close()
     {
         try {
+            if(this.checkpointer != null) {
+                this.checkpointer.shutdownNow();
+                this.checkpointer.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            this.checkpointer = null;
             this.flush();
+            synchronized(this) {
+                if(this.leafReaders != null)
+                    this.leafReaders.shutdownNow();
+                this.leafReaders = null;
+            }
             this.dbConnection.close();
-            this.pointEngine.pointFile.close();
+            this.pointEngine.close();
+
+            // every edit is checkpointed, the journal is no longer needed
+            if(this.journal != null)
+                this.journal.close();
+            Files.deleteIfExists(Paths.get(this.journalFilePath));
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Could not cleanly close storage", e);
         } finally {
             this.dbConnection = null;
             this.pointEngine = null;
+            this.journal = null;
         }
     }
 
@@ -436,29 +889,37 @@ public class HybridStorage implements StorageFacade
     private class SQLEngine{
 
         private static final int APPLICATION_ID = 223764262;
-        private static final int USER_VERSION = 5;
+        private static final int USER_VERSION = 10;
 
         // SQL statement for retrieiving root node
-        public final String selectRootNodeStatement = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points FROM Node WHERE parentId IS NULL;";
+        public final String selectRootNodeStatement = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points, summaryIndex, numSummaryPoints, firstPointId, blockCodec, blockLength, scanIndex FROM Node WHERE parentId IS NULL;";
 
         // ordered create table statements
         public final String[] orderedCreateTableStatements = {
-            "CREATE TABLE IF NOT EXISTS Node (nodeId INTEGER PRIMARY KEY, fileIndex INTEGER, numPoints INTEGER, mzMin DOUBLE NOT NULL, mzMax DOUBLE NOT NULL, rtMin FLOAT NOT NULL, rtMax FLOAT NOT NULL, intMin DOUBLE, intMax DOUBLE, parentId INTEGER, points BLOB, FOREIGN KEY(parentId) REFERENCES Node(nodeId));",
+            "CREATE TABLE IF NOT EXISTS Node (nodeId INTEGER PRIMARY KEY, fileIndex INTEGER, numPoints INTEGER, mzMin DOUBLE NOT NULL, mzMax DOUBLE NOT NULL, rtMin FLOAT NOT NULL, rtMax FLOAT NOT NULL, intMin DOUBLE, intMax DOUBLE, parentId INTEGER, points BLOB, summaryIndex INTEGER, numSummaryPoints INTEGER, firstPointId INTEGER, blockCodec INTEGER, blockLength INTEGER, scanIndex BLOB, FOREIGN KEY(parentId) REFERENCES Node(nodeId));",
             "CREATE INDEX IF NOT EXISTS Node_parentId ON Node (parentId);",
             "CREATE TABLE IF NOT EXISTS Trace (traceId INTEGER PRIMARY KEY, envelopeID INTEGER, centroidMZ DOUBLE, minRT FLOAT, maxRT FLOAT, intensitySum DOUBLE, FOREIGN KEY(envelopeID) REFERENCES Envelope(envelopeId));",
             "CREATE INDEX IF NOT EXISTS Trace_envelopeID ON Trace(envelopeID);",
             "CREATE TABLE IF NOT EXISTS Envelope (envelopeId INTEGER PRIMARY KEY, chargeState INTEGER, monoisotopicMZ DOUBLE, intensitySum DOUBLE, relativeIntensities TEXT);",
+            "CREATE TABLE IF NOT EXISTS Metadata (name TEXT PRIMARY KEY, value TEXT NOT NULL);",
+            "CREATE TABLE IF NOT EXISTS TracePoint (pointId INTEGER PRIMARY KEY, traceId INTEGER NOT NULL);",
+            "CREATE INDEX IF NOT EXISTS TracePoint_traceId ON TracePoint (traceId);",
         };
 
         // insert statements
         private final PreparedStatement insertNodeStatement;
+        private final PreparedStatement insertTracePointStatement;
         private final PreparedStatement insertTraceStatement;
         private PreparedStatement insertOrIgnoreEnvelopeStatement;
 
         // select statements
         private final String selectPointIDsByNodeSQL = "SELECT points FROM Node WHERE nodeId=?;";
-        private final String selectNodeByParentSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points FROM Node WHERE parentId=?;";
-        private final String selectNodeByIdSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points FROM Node WHERE nodeId=?;";
+        private final String selectNodeByParentSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points, summaryIndex, numSummaryPoints, firstPointId, blockCodec, blockLength, scanIndex FROM Node WHERE parentId=?;";
+        private final String selectNodeByIdSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points, summaryIndex, numSummaryPoints, firstPointId, blockCodec, blockLength, scanIndex FROM Node WHERE nodeId=?;";
+        private final String selectLeafNodesSQL = "SELECT nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points, summaryIndex, numSummaryPoints, firstPointId, blockCodec, blockLength, scanIndex FROM Node WHERE nodeId NOT IN (SELECT parentId FROM Node WHERE parentId IS NOT NULL);";
+        private final String selectTracePointIDsSQL = "SELECT pointId FROM TracePoint WHERE traceId=? ORDER BY pointId;";
+        private final String selectTracedPointIDsSQL = "SELECT pointId FROM TracePoint WHERE traceId > 0 ORDER BY pointId;";
+        private final String selectAssignedPointIDsSQL = "SELECT pointId FROM TracePoint ORDER BY pointId;";
         public final String selectAllTracesSQL = "SELECT traceId, envelopeID, centroidMZ, minRT, maxRT, intensitySum FROM Trace;";
         public final String selectSingleTraceSQL = "SELECT traceId, envelopeID, centroidMZ, minRT, maxRT, intensitySum FROM Trace LIMIT 1;";
 
@@ -470,6 +931,8 @@ public class HybridStorage implements StorageFacade
 
         // delete statements
         private final PreparedStatement deleteTraceStatement;
+        private final PreparedStatement deleteTracePointStatement;
+        private final PreparedStatement deleteTracePointsStatement;
         private final PreparedStatement deleteEnvelopeStatement;
 
 
@@ -536,9 +999,17 @@ public class HybridStorage implements StorageFacade
                 // commented-out examples below
                 switch(userVersion) {
                     case 5:
-                        //convert_v5_v6();
+                        this.convert_v5_v6();
                     case 6:
-                        //convert_v6_v7();
+                        this.convert_v6_v7();
+                    case 7:
+                        this.convert_v7_v8();
+                    case 8:
+                        this.convert_v8_v9();
+                    case 9:
+                        this.convert_v9_v10();
+                    case 10:
+                        //convert_v10_v11();
                         break;
                     default:
                         throw new SQLException("Unsupported mzTree file version.");
@@ -552,9 +1023,10 @@ public class HybridStorage implements StorageFacade
             }
 
             // init insert statements
-            this.insertNodeStatement = dbConnection.prepareStatement("INSERT INTO Node (nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points) VALUES (?,?,?,?,?,?,?,?,?,?,?);", Statement.RETURN_GENERATED_KEYS);
-            this.insertTraceStatement = dbConnection.prepareStatement("INSERT INTO Trace (traceId, envelopeID, centroidMZ, minRT, maxRT, intensitySum) VALUES (?,?,?,?,?,?);");
+            this.insertNodeStatement = dbConnection.prepareStatement("INSERT INTO Node (nodeId, fileIndex, numPoints, mzMin, mzMax, rtMin, rtMax, intMin, intMax, parentId, points, summaryIndex, numSummaryPoints, firstPointId, blockCodec, blockLength, scanIndex) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?);", Statement.RETURN_GENERATED_KEYS);
+            this.insertTraceStatement = dbConnection.prepareStatement("INSERT OR IGNORE INTO Trace (traceId, envelopeID, centroidMZ, minRT, maxRT, intensitySum) VALUES (?,?,?,?,?,?);");
             this.insertOrIgnoreEnvelopeStatement = dbConnection.prepareStatement("INSERT OR IGNORE INTO Envelope (envelopeId, chargeState, monoisotopicMZ, intensitySum, relativeIntensities) VALUES (?,?,?,?,?);");
+            this.insertTracePointStatement = dbConnection.prepareStatement("INSERT OR REPLACE INTO TracePoint (pointId, traceId) VALUES (?,?);");
 
             // init update statements
             this.setEnvelopeStatement = dbConnection.prepareStatement("UPDATE Trace SET envelopeId=? WHERE traceId=?;");
@@ -563,6 +1035,8 @@ public class HybridStorage implements StorageFacade
 
             // init delete statements
             this.deleteTraceStatement = dbConnection.prepareStatement("DELETE FROM Trace WHERE traceId=?;");
+            this.deleteTracePointStatement = dbConnection.prepareStatement("DELETE FROM TracePoint WHERE pointId=?;");
+            this.deleteTracePointsStatement = dbConnection.prepareStatement("DELETE FROM TracePoint WHERE traceId=?;");
             this.deleteEnvelopeStatement = dbConnection.prepareStatement("DELETE FROM Envelope WHERE envelopeId=?;");
         }
 
@@ -608,6 +1082,38 @@ public class HybridStorage implements StorageFacade
 
             this.insertNodeStatement.setNull(11, Types.BLOB);
 
+            // location of the summary copy in the point file (intermediate nodes only)
+            if(node.summaryIndex != null) {
+                this.insertNodeStatement.setLong(12, node.summaryIndex);
+                this.insertNodeStatement.setInt(13, node.numSummaryPoints);
+            }
+            else {
+                this.insertNodeStatement.setNull(12, Types.BIGINT);
+                this.insertNodeStatement.setNull(13, Types.INTEGER);
+            }
+
+            // first pointID of a leaf's block of points
+            if(node.fileIndex != null)
+                this.insertNodeStatement.setInt(14, node.pointIDMin);
+            else
+                this.insertNodeStatement.setNull(14, Types.INTEGER);
+
+            // codec and stored length of a leaf's block (Compact point files only)
+            if(node.blockCodec != null) {
+                this.insertNodeStatement.setInt(15, node.blockCodec);
+                this.insertNodeStatement.setInt(16, node.blockLength);
+            }
+            else {
+                this.insertNodeStatement.setNull(15, Types.INTEGER);
+                this.insertNodeStatement.setNull(16, Types.INTEGER);
+            }
+
+            // scan index of a leaf stored in (rt, mz) order
+            if(node.scanIndex != null)
+                this.insertNodeStatement.setBytes(17, node.scanIndex.toBytes());
+            else
+                this.insertNodeStatement.setNull(17, Types.BLOB);
+
             // execute insert
             this.insertNodeStatement.executeUpdate();
 
@@ -793,6 +1299,357 @@ public class HybridStorage implements StorageFacade
             }
         }
 
+        /**
+         * Restores the point file layout of an existing mzTree from the Node table.
+         * The point count is the number of points saved by leaves, the summary
+         * section starts at the first saved summary copy
+         * @throws SQLException
+         * @throws IOException
+         */
+        public void restorePointLayout() throws SQLException, IOException
+        {
+            try(Statement layoutStatement = dbConnection.createStatement())
+            {
+                ResultSet results = layoutStatement.executeQuery("SELECT count(*), SUM(numPoints), MIN(summaryIndex) FROM Node WHERE fileIndex IS NOT NULL OR summaryIndex IS NOT NULL;");
+                results.next();
+
+                // no nodes saved, keep the layout derived from the file
+                if (results.getInt(1) == 0)
+                    return;
+
+                int numPoints = results.getInt(2);
+                long summaryStart = results.getLong(3);
+                if (results.wasNull())
+                    summaryStart = -1;
+
+                pointEngine.restoreLayout(numPoints, summaryStart, Files.size(Paths.get(pointFilePath)));
+            }
+        }
+
+        /**
+         * Restores the block directory of a Compact point file from its leaves
+         * and summary copies
+         * @param compactEngine point engine of the Compact point file
+         * @throws SQLException
+         */
+        public void restoreCompactBlocks(CompactPointEngine compactEngine) throws SQLException
+        {
+            try(Statement blockStatement = dbConnection.createStatement())
+            {
+                ResultSet results = blockStatement.executeQuery("SELECT firstPointId, numPoints, fileIndex, blockCodec, blockLength FROM Node WHERE fileIndex IS NOT NULL;");
+                while (results.next())
+                {
+                    // blocks written before codecs were recorded are stored as is
+                    int codecId = results.getInt(4);
+                    BlockCodec codec = results.wasNull() ? BlockCodec.None : BlockCodec.fromId(codecId);
+                    int storedLength = results.getInt(5);
+                    if (results.wasNull())
+                        storedLength = -1;
+
+                    compactEngine.restoreLeaf(results.getInt(1), results.getInt(2), results.getLong(3), codec, storedLength);
+                }
+
+                results = blockStatement.executeQuery("SELECT summaryIndex, numSummaryPoints FROM Node WHERE summaryIndex IS NOT NULL;");
+                while (results.next())
+                    compactEngine.restoreSummary(results.getLong(1), results.getInt(2));
+            }
+        }
+
+        /**
+         * Records the format of the point file in the Metadata table
+         * @param format point format of the file
+         * @throws SQLException
+         */
+        public void savePointFormat(PointFormat format) throws SQLException
+        {
+            try(PreparedStatement formatStatement = dbConnection.prepareStatement("INSERT OR REPLACE INTO Metadata (name, value) VALUES ('pointFormat', ?);"))
+            {
+                formatStatement.setString(1, Integer.toString(format.version));
+                formatStatement.executeUpdate();
+            }
+            dbConnection.commit();
+        }
+
+        /**
+         * Reads the format of the point file from the Metadata table
+         * @return point format of the file
+         * @throws SQLException
+         */
+        public PointFormat selectPointFormat() throws SQLException
+        {
+            try(Statement formatStatement = dbConnection.createStatement())
+            {
+                ResultSet results = formatStatement.executeQuery("SELECT value FROM Metadata WHERE name='pointFormat';");
+                if (!results.next())
+                    return PointFormat.Record;
+
+                try {
+                    return PointFormat.fromVersion(Integer.parseInt(results.getString(1)));
+                } catch (IllegalArgumentException ex) {
+                    throw new SQLException("Unsupported point format " + results.getString(1), ex);
+                }
+            }
+        }
+
+        /**
+         * Adds the Metadata table, recording the Record point format of existing
+         * files, and the first pointID of each leaf, which the Compact point
+         * format cannot derive from the leaf's fileIndex
+         * @throws SQLException
+         */
+        private void convert_v6_v7() throws SQLException
+        {
+            try(Statement alterStatement = dbConnection.createStatement())
+            {
+                alterStatement.execute("CREATE TABLE IF NOT EXISTS Metadata (name TEXT PRIMARY KEY, value TEXT NOT NULL);");
+                alterStatement.execute("INSERT OR REPLACE INTO Metadata (name, value) VALUES ('pointFormat', '" + PointFormat.Record.version + "');");
+                alterStatement.execute("ALTER TABLE Node ADD COLUMN firstPointId INTEGER;");
+                alterStatement.execute("UPDATE Node SET firstPointId = fileIndex / " + MsDataPoint.DISK_NUM_BYTES_PER_POINT + " WHERE fileIndex IS NOT NULL;");
+            }
+            dbConnection.commit();
+        }
+
+        /**
+         * Adds the scan index of each leaf to the Node table. Leaves of existing
+         * files are not stored in (rt, mz) order and have none
+         * @throws SQLException
+         */
+        private void convert_v8_v9() throws SQLException
+        {
+            try(Statement alterStatement = dbConnection.createStatement())
+            {
+                alterStatement.execute("ALTER TABLE Node ADD COLUMN scanIndex BLOB;");
+            }
+            dbConnection.commit();
+        }
+
+        /**
+         * Adds the codec and stored length of each leaf's block to the Node table.
+         * Blocks of existing files are stored as is
+         * @throws SQLException
+         */
+        private void convert_v7_v8() throws SQLException
+        {
+            try(Statement alterStatement = dbConnection.createStatement())
+            {
+                alterStatement.execute("ALTER TABLE Node ADD COLUMN blockCodec INTEGER;");
+                alterStatement.execute("ALTER TABLE Node ADD COLUMN blockLength INTEGER;");
+            }
+            dbConnection.commit();
+        }
+
+        /**
+         * Adds the location of each node's summary copy to the Node table.
+         * Files converted from version 5 have no summary copies
+         * @throws SQLException
+         */
+        private void convert_v5_v6() throws SQLException
+        {
+            try(Statement alterStatement = dbConnection.createStatement())
+            {
+                alterStatement.execute("ALTER TABLE Node ADD COLUMN summaryIndex INTEGER;");
+                alterStatement.execute("ALTER TABLE Node ADD COLUMN numSummaryPoints INTEGER;");
+            }
+            dbConnection.commit();
+        }
+
+
+        /**
+         * Adds the trace index. It is filled from the point file by
+         * buildTraceIndex when the file is next opened
+         * @throws SQLException
+         */
+        private void convert_v9_v10() throws SQLException
+        {
+            try(Statement alterStatement = dbConnection.createStatement())
+            {
+                alterStatement.execute("CREATE TABLE IF NOT EXISTS TracePoint (pointId INTEGER PRIMARY KEY, traceId INTEGER NOT NULL);");
+                alterStatement.execute("CREATE INDEX IF NOT EXISTS TracePoint_traceId ON TracePoint (traceId);");
+            }
+            dbConnection.commit();
+        }
+
+        /**
+         * Records in the Metadata table that the trace index is complete
+         * @throws SQLException
+         */
+        public void saveTraceIndexBuilt() throws SQLException
+        {
+            try(Statement metadataStatement = dbConnection.createStatement())
+            {
+                metadataStatement.execute("INSERT OR REPLACE INTO Metadata (name, value) VALUES ('traceIndex', '1');");
+            }
+            dbConnection.commit();
+        }
+
+        /**
+         * Checks the Metadata table for a complete trace index
+         * @return true if the trace index is complete
+         * @throws SQLException
+         */
+        public boolean isTraceIndexBuilt() throws SQLException
+        {
+            try(Statement metadataStatement = dbConnection.createStatement())
+            {
+                ResultSet results = metadataStatement.executeQuery("SELECT value FROM Metadata WHERE name='traceIndex';");
+                return results.next();
+            }
+        }
+
+        /**
+         * Fills the trace index from the traces of the points in the point
+         * file, reading each leaf whole
+         * @throws SQLException
+         * @throws IOException
+         */
+        public void buildTraceIndex() throws SQLException, IOException
+        {
+            LOGGER.log(Level.INFO, "Building the trace index of " + filePath);
+
+            // every leaf of the tree
+            List<MzTreeNode> leaves = new ArrayList<>();
+            try(Statement leavesStatement = dbConnection.createStatement())
+            {
+                ResultSet results = leavesStatement.executeQuery(this.selectLeafNodesSQL);
+                while(results.next())
+                {
+                    MzTreeNode leaf = new MzTreeNode();
+                    HybridStorage.this.assignNodeValues(leaf, results);
+                    leaves.add(leaf);
+                }
+            }
+
+            try(Statement clearStatement = dbConnection.createStatement())
+            {
+                clearStatement.execute("DELETE FROM TracePoint;");
+            }
+
+            PointBlock points = new PointBlock();
+            for(MzTreeNode leaf : leaves)
+            {
+                // leaves not stored as a block are read through their pointIDs
+                if(leaf.fileIndex == null)
+                    leaf.pointIDs = this.selectPointIDsByNode(leaf.nodeID);
+
+                points.clear();
+                pointEngine.selectLeafPointsInBounds(leaf, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                        Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, points);
+
+                for(int i = 0; i < points.size(); i++)
+                {
+                    if(points.traceID[i] != 0)
+                    {
+                        this.insertTracePointStatement.setInt(1, points.id[i]);
+                        this.insertTracePointStatement.setInt(2, points.traceID[i]);
+                        this.insertTracePointStatement.addBatch();
+                    }
+                }
+                this.insertTracePointStatement.executeBatch();
+            }
+
+            this.saveTraceIndexBuilt();
+        }
+
+        /**
+         * Inserts points into the trace index
+         * @param tracePoints traces of the points, keyed by pointID
+         * @throws SQLException
+         */
+        public void insertTracePoints(Map<Integer, Integer> tracePoints) throws SQLException
+        {
+            for(Map.Entry<Integer, Integer> tracePoint : tracePoints.entrySet())
+            {
+                this.insertTracePointStatement.setInt(1, tracePoint.getKey());
+                this.insertTracePointStatement.setInt(2, tracePoint.getValue());
+                this.insertTracePointStatement.addBatch();
+            }
+            this.insertTracePointStatement.executeBatch();
+        }
+
+        /**
+         * Assigns points to a trace (or to noise, -1) in the trace index.
+         * Points set to no-trace (0) are removed from the index
+         * @param traceID trace the points are assigned to
+         * @param pointIDs IDs of the points
+         * @throws SQLException
+         */
+        public void indexTracePoints(int traceID, Integer[] pointIDs) throws SQLException
+        {
+            if(traceID != 0)
+            {
+                for(Integer pointID : pointIDs)
+                {
+                    this.insertTracePointStatement.setInt(1, pointID);
+                    this.insertTracePointStatement.setInt(2, traceID);
+                    this.insertTracePointStatement.addBatch();
+                }
+                this.insertTracePointStatement.executeBatch();
+            }
+            else
+            {
+                for(Integer pointID : pointIDs)
+                {
+                    this.deleteTracePointStatement.setInt(1, pointID);
+                    this.deleteTracePointStatement.addBatch();
+                }
+                this.deleteTracePointStatement.executeBatch();
+            }
+        }
+
+        /**
+         * Queries the trace index for the points of a trace
+         * @param traceID trace whose points are selected
+         * @return IDs of the trace's points, ascending
+         * @throws SQLException
+         */
+        public int[] selectTracePointIDs(int traceID) throws SQLException
+        {
+            try(PreparedStatement selectStatement = dbConnection.prepareStatement(this.selectTracePointIDsSQL))
+            {
+                selectStatement.setInt(1, traceID);
+                return this.collectPointIDs(selectStatement.executeQuery());
+            }
+        }
+
+        /**
+         * Queries the trace index for the points of every trace
+         * @return IDs of the traced points, ascending
+         * @throws SQLException
+         */
+        public int[] selectTracedPointIDs() throws SQLException
+        {
+            try(PreparedStatement selectStatement = dbConnection.prepareStatement(this.selectTracedPointIDsSQL))
+            {
+                return this.collectPointIDs(selectStatement.executeQuery());
+            }
+        }
+
+        /**
+         * Queries the trace index for the points assigned to a trace or to noise
+         * @return IDs of the assigned points, ascending
+         * @throws SQLException
+         */
+        public int[] selectAssignedPointIDs() throws SQLException
+        {
+            try(PreparedStatement selectStatement = dbConnection.prepareStatement(this.selectAssignedPointIDsSQL))
+            {
+                return this.collectPointIDs(selectStatement.executeQuery());
+            }
+        }
+
+        /* Collects the pointIDs in the first column of a result set */
+        private int[] collectPointIDs(ResultSet results) throws SQLException
+        {
+            int[] pointIDs = new int[1024];
+            int numPointIDs = 0;
+            while(results.next())
+            {
+                if(numPointIDs == pointIDs.length)
+                    pointIDs = Arrays.copyOf(pointIDs, 2 * numPointIDs);
+                pointIDs[numPointIDs++] = results.getInt(1);
+            }
+            return Arrays.copyOf(pointIDs, numPointIDs);
+        }
 
         /**
          * Loads the Trace table into a Map (traceID -> envelopeID) and returns the Map
@@ -869,13 +1726,18 @@ public class HybridStorage implements StorageFacade
 
         /**
          * Deletes the specified trace from the database, first taking the time
-         * update any points that reference the trace to have a null trace reference
+         * update any points that reference the trace to have a null trace reference.
+         * The points are found through the trace index
          * @param traceID ID of the trace to delete
          * @throws SQLException
          */
         public void deleteTrace(int traceID) throws SQLException, IOException
         {
-            pointEngine.clearTrace(traceID);
+            for (int pointID : this.selectTracePointIDs(traceID))
+                pointEngine.updatePointTrace(pointID, 0);
+
+            this.deleteTracePointsStatement.setInt(1, traceID);
+            this.deleteTracePointsStatement.executeUpdate();
 
             // now that references are cleared, delete the trace
             this.deleteTraceStatement.setInt(1,traceID);
@@ -927,6 +1789,7 @@ public class HybridStorage implements StorageFacade
 
               // clear references
               pointEngine.clearTraces();
+              stmt.execute("DELETE FROM TracePoint;");
 
               // delete all traces
               stmt.execute("DELETE FROM Trace;");
@@ -968,240 +1831,4 @@ public class HybridStorage implements StorageFacade
             }
         }
     }
-
-    //**********************************************//
-    //                POINT ENGINE                  //
-    //**********************************************//
-    private static class PointEngine {
-
-        /* POINT FORMAT
-         * NOTE: Java uses big-endian in RandomAccessFile and in ByteBuffer
-         *
-         * MZ   : 8 [DOUBLE]
-         * RT   : 4 [FLOAT]
-         * INTEN: 8 [DOUBLE]
-         * TRACE: 4 [INTEGER]
-         */
-
-        private final RandomAccessFile pointFile;
-
-        // location within a point entry where the trace is located
-        private static final int TRACE_OFFSET = 8 + 4 + 8;
-
-        // number of points in the file
-        private int pointCount;
-
-        /**
-         * Creates or opens the point storage file
-         * @throws IOException
-         */
-        public PointEngine(String pointFilePath) throws IOException {
-            pointFile = new RandomAccessFile(pointFilePath, "rw");
-            this.pointCount = 0;
-
-            if (pointFile.length() > 0) {
-                // existing file
-                pointCount = (int) (pointFile.length() / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
-            }
-
-        }
-
-        /* Converts a byte array to point data */
-        private MsDataPoint pointFromBytes(int id, byte[] data)
-        {
-            ByteBuffer buf = ByteBuffer.wrap(data);
-            double mz = buf.getDouble();
-            float rt = buf.getFloat();
-            double intensity = buf.getDouble();
-            int traceID = buf.getInt();
-
-            MsDataPoint pt = new MsDataPoint(id, mz, rt, intensity);
-            pt.traceID = traceID;
-            return pt;
-        }
-
-        /* Converts point data to a byte array */
-        private byte[] pointToBytes(MsDataPoint point) {
-            ByteBuffer buf = ByteBuffer.allocate(MsDataPoint.DISK_NUM_BYTES_PER_POINT);
-            buf.putDouble(point.mz);
-            buf.putFloat(point.rt);
-            buf.putDouble(point.intensity);
-            buf.putInt(point.traceID);
-            return buf.array();
-        }
-
-        /* Reserves space in the file for the necessary number of points */
-        public synchronized void reserveSpace(int numPoints) throws IOException {
-            pointFile.setLength((long)(numPoints) * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
-        }
-
-        /**
-         * Inserts a MsDataPoint into the point file at the current point file pointer location
-         * @param point MsDataPoint to insert into database
-         * @throws SQLException
-         */
-        public synchronized void insert(MsDataPoint point) throws IOException
-        {
-            // assign the point's ID
-            point.pointID = this.pointCount;
-            this.pointCount++;
-
-            // write the point to the point file
-            pointFile.seek((long)point.pointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
-            byte[] data = pointToBytes(point);
-            pointFile.write(data);
-        }
-
-         /**
-         * Selects a point entity from the database, returns as MsDataPoint object
-         * @param pointID ID of point to select
-         * @return MsDataPoint selected from database
-         * @throws SQLException
-         */
-        public synchronized MsDataPoint selectPoint(int pointID) throws IOException
-        {
-            if (pointID < 0) {
-                throw new IndexOutOfBoundsException("pointID");
-            }
-
-            if (pointID >= this.pointCount) {
-                throw new IndexOutOfBoundsException("pointID");
-            }
-
-            // convert to long to avoid integer overflow
-            long pointLocation = (long)pointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT;
-            this.pointFile.seek(pointLocation);
-            byte[] data = new byte[MsDataPoint.DISK_NUM_BYTES_PER_POINT];
-            this.pointFile.read(data);
-            return pointFromBytes(pointID, data);
-        }
-
-        /**
-         * Queries for points specified in pointIDs
-         * @param pointIDs IDs of points to select
-         * @return MsDataPoints selected from storage
-         * @throws SQLException
-         */
-        public synchronized List<MsDataPoint> selectPoints(List<Integer> pointIDs) throws IOException
-        {
-            // return list
-            ArrayList<MsDataPoint> points = new ArrayList<>(pointIDs.size());
-            for (Integer id : pointIDs) {
-                points.add(this.selectPoint(id));
-            }
-
-            return points;
-        }
-
-        /**
-         * Selects a leaf node's points from the point file by loading its entire block of points.
-         * Allows for accessing an entire leaf node's data points with only one file seek.
-         * Additionally trims the resulting list according to the given bounds
-         * @param leaf leaf node that will have data block loaded
-         * @param mzmin lower mz bound
-         * @param mzmax upper mz bound
-         * @param rtmin lower rt bound
-         * @param rtmax upper rt bound
-         * @return list of MsDataPoints loaded from leaf node's data block, trimmed according to data bounds
-         * @throws IOException
-         */
-        public synchronized List<MsDataPoint> selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException
-        {
-            // results list
-            List<MsDataPoint> results = new ArrayList<>();
-
-            if (leaf.fileIndex == null) {
-                // not a leaf node, or upgraded from a version without this optimization
-                return selectPoints(Arrays.stream(leaf.pointIDs).boxed().collect(Collectors.toList()))
-                        .stream().filter(p -> p.isInBounds(mzmin, mzmax, rtmin, rtmax)).collect(Collectors.toList());
-            }
-
-            // start location of node in point file
-            long nodeStartLocation = leaf.fileIndex;
-
-            // seek to start of node in point file
-            this.pointFile.seek(nodeStartLocation);
-
-            // allocated space for the node block
-            byte[] data = new byte[leaf.numSavedPoints * MsDataPoint.DISK_NUM_BYTES_PER_POINT];
-
-            // read node block
-            this.pointFile.read(data);
-
-            // parse points from retrieved binary
-            for(int i = 0; i < leaf.numSavedPoints; i++)
-            {
-                // current point's sub array
-                byte[] pointData = Arrays.copyOfRange(data, i * MsDataPoint.DISK_NUM_BYTES_PER_POINT, (i+1) * MsDataPoint.DISK_NUM_BYTES_PER_POINT);
-
-                // parse into MsDataPoint
-                MsDataPoint point = this.pointFromBytes(leaf.pointIDs[i], pointData);
-
-                //assert point.mz >= leaf.mzMin && point.mz <= leaf.mzMax && point.rt >= leaf.rtMin && point.rt <= leaf.rtMax : "A loaded point was outside of its node's bounds!!!";
-
-                // include in result set if within bounds
-                if(point.isInBounds(mzmin, mzmax, rtmin, rtmax))
-                    results.add(point);
-            }
-            return results;
-        }
-
-        /**
-         * Updates a point in the DB to have the given dbTraceID
-         * @param pointID ID of the point to be updated
-         * @param traceID new dbTraceID value. If 0, DB entry will have dbTraceID set to null
-         */
-
-        public synchronized void updatePointTrace(int pointID, int traceID) throws IOException
-        {
-            long pointLocation = (long)pointID * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
-
-            pointFile.seek(pointLocation + TRACE_OFFSET);
-            pointFile.writeInt(traceID);
-        }
-
-        /**
-         * Deletes a trace by setting every reference to it to no-trace
-         * @param traceID trace ID to erase
-         * @throws IOException
-         */
-        private synchronized void clearTrace(int traceID) throws IOException {
-            for (int i = 0; i < pointCount; i++) {
-                pointFile.seek(i * MsDataPoint.DISK_NUM_BYTES_PER_POINT + TRACE_OFFSET);
-                if (pointFile.readInt() == traceID) {
-                    pointFile.writeInt(0);
-                }
-            }
-        }
-        private synchronized void clearTraces() throws IOException {
-          pointFile.seek(0);
-          int CHUNK_SIZE = 24000;
-          byte[] buffer = new byte[CHUNK_SIZE];
-          int bytesRead = pointFile.read(buffer);
-          while(bytesRead >= CHUNK_SIZE){
-            pointFile.seek(pointFile.getFilePointer()-bytesRead);
-            for(int i = 0; i < (bytesRead/MsDataPoint.DISK_NUM_BYTES_PER_POINT); ++i){
-              buffer[i*24+20] = 0;
-              buffer[i*24+21] = 0;
-              buffer[i*24+22] = 0;
-              buffer[i*24+23] = 0;
-            }
-            pointFile.write(buffer);
-            bytesRead = pointFile.read(buffer);
-          }
-          pointFile.seek(pointFile.getFilePointer()-bytesRead);
-          for(int i = 0; i < (bytesRead/MsDataPoint.DISK_NUM_BYTES_PER_POINT); ++i){
-            buffer[i*24+20] = 0;
-            buffer[i*24+21] = 0;
-            buffer[i*24+22] = 0;
-            buffer[i*24+23] = 0;
-          }
-          pointFile.write(buffer);
-        }
-
-        /* Ensures changes have been saved to the underlying storage medium */
-        private synchronized void flush() throws IOException {
-            pointFile.getFD().sync();
-        }
-    }
 }
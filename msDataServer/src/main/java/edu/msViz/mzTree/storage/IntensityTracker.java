@@ -6,62 +6,101 @@ import edu.msViz.mzTree.MsDataPoint;
 import edu.msViz.mzTree.PointCache;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.koloboke.collect.map.hash.HashIntIntMap;
+import com.koloboke.collect.map.hash.HashIntIntMaps;
+
 // Tracks traced/untraced points by highest intensity
+//
+// The file holds runs of point IDs, each sorted by descending intensity. Runs are
+// memory mapped, which points are traced is held in a bitset by point ID (built
+// from the trace index on first use and updated by updateTraces), and the head of
+// each run (its first untraced point) is kept in a max-heap by intensity, so the
+// highest untraced point is the top of the heap
 public class IntensityTracker {
 
     private static final Logger LOGGER = Logger.getLogger(IntensityTracker.class.getName());
 
-    private RandomAccessFile dataFile;
+    // number of point IDs per mapping of a run
+    private static final int CHUNK_NUM_IDS = 1 << 28;
+
+    // number of bytes written per write call when adding a run
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private FileChannel dataFile;
     private PointCache pointCache;
+    private StorageFacade dataStorage;
     private int runs;
 
     private long[] runStarts;
     private int[] runLengths;
 
+    // mapped point IDs of each run, in chunks of CHUNK_NUM_IDS
+    private IntBuffer[][] runChunks;
+
+    // traced (traceID != 0) bit per point ID, null until built
+    private long[] traced;
+
+    // index of each run's head, runLengths[run] once the run is exhausted
     private int[] candidateIndexes;
 
+    // intensity of each run's head
+    private double[] headIntensities;
+
+    // run of each head point ID
+    private HashIntIntMap headRuns;
+
+    // max-heap of non exhausted runs by head intensity, and each run's place in it
+    private int[] heap;
+    private int[] heapPositions;
+    private int heapSize;
+
+    // sum of the candidate indexes and of the run lengths
+    private long done;
+    private long total;
+
+    // true when the candidate indexes must be searched again from the start of each run
+    private boolean rewind = true;
+
     private boolean writing = false;
 
-    public IntensityTracker(String fileName, PointCache pointCache) throws IOException {
+    public IntensityTracker(String fileName, PointCache pointCache, StorageFacade dataStorage) throws IOException {
         this.pointCache = pointCache;
+        this.dataStorage = dataStorage;
 
-        dataFile = new RandomAccessFile(fileName, "rw");
+        dataFile = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
 
-        if (dataFile.length() == 0) {
+        if (dataFile.size() == 0) {
             writing = true;
 
         } else {
-            runs = dataFile.readInt();
-            runStarts = new long[runs];
+            ByteBuffer header = ByteBuffer.allocate(4);
+            readFully(header, 0);
+            runs = header.getInt(0);
 
+            header = ByteBuffer.allocate(8 * runs);
+            readFully(header, 4);
+            runStarts = new long[runs];
             for (int i = 0; i < runs; i++) {
-                runStarts[i] = dataFile.readLong();
+                runStarts[i] = header.getLong(8 * i);
             }
 
             calculateRunLengths();
-            initCandidateIndexes();
+            mapRuns();
         }
     }
 
-    // initializes or resets the candidate indexes, forcing the database to be searched again
+    // initializes or resets the candidate indexes, forcing the runs to be searched again
     public synchronized void initCandidateIndexes() throws IOException {
-        candidateIndexes = new int[runs];
-        for (int i = 0; i < runs; i++) {
-            candidateIndexes[i] = 0;
-        }
-        findAllUntraced();
-    }
-
-    // finds the next untraced point in all runs
-    private void findAllUntraced() throws IOException {
-        for (int i = 0; i < runs; i++) {
-            findUntraced(i);
-        }
+        rewind = true;
     }
 
     // calculate the number of points per run, after run start positions have been read/written
@@ -70,7 +109,26 @@ public class IntensityTracker {
         for (int i = 0; i < runs-1; i++) {
             runLengths[i] = (int) ((runStarts[i+1] - runStarts[i])/4);
         }
-        runLengths[runs-1] = (int) ((dataFile.length() - runStarts[runs-1])/4);
+        runLengths[runs-1] = (int) ((dataFile.size() - runStarts[runs-1])/4);
+
+        total = 0;
+        for (int i = 0; i < runs; i++) {
+            total += runLengths[i];
+        }
+    }
+
+    // maps the point IDs of each run
+    private void mapRuns() throws IOException {
+        runChunks = new IntBuffer[runs][];
+        for (int i = 0; i < runs; i++) {
+            int numChunks = (runLengths[i] + CHUNK_NUM_IDS - 1) / CHUNK_NUM_IDS;
+            runChunks[i] = new IntBuffer[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                long chunkStart = runStarts[i] + 4L * c * CHUNK_NUM_IDS;
+                int chunkLength = Math.min(CHUNK_NUM_IDS, runLengths[i] - c * CHUNK_NUM_IDS);
+                runChunks[i][c] = dataFile.map(FileChannel.MapMode.READ_ONLY, chunkStart, 4L * chunkLength).asIntBuffer();
+            }
+        }
     }
 
     // initializes the number of runs that will be written
@@ -82,9 +140,10 @@ public class IntensityTracker {
         this.runs = runs;
         runStarts = new long[runs];
         runLengths = new int[runs];
-        dataFile.seek(0);
-        dataFile.writeInt(runs);
-        dataFile.seek(4 + 8*runs);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(0, runs);
+        writeFully(header, 0);
+        dataFile.position(4 + 8*runs);
     }
 
     private int writingRun = 0;
@@ -98,19 +157,28 @@ public class IntensityTracker {
             throw new UnsupportedOperationException();
         }
 
-        long offset = dataFile.getFilePointer();
+        long offset = dataFile.position();
         runStarts[writingRun] = offset;
 
+        // write the point IDs a buffer at a time
         int workDone = importState.getIndexingWorkDone();
-        for (int i = 0; i < pointIds.length; i++) {
-            dataFile.writeInt(pointIds[i]);
-            if (i % 1000 == 0){
-              importState.setIndexingWorkDone(i + workDone);
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        IntBuffer ids = buffer.asIntBuffer();
+        for (int i = 0; i < pointIds.length; i += ids.capacity()) {
+            int count = Math.min(ids.capacity(), pointIds.length - i);
+            ids.clear();
+            ids.put(pointIds, i, count);
+
+            buffer.clear();
+            buffer.limit(4 * count);
+            while (buffer.hasRemaining()) {
+                dataFile.write(buffer);
             }
+            importState.setIndexingWorkDone(i + count + workDone);
         }
 
         writingRun++;
-        dataFile.getFD().sync();
+        dataFile.force(false);
     }
 
     // finalize internal data structures after all runs have been added
@@ -119,20 +187,22 @@ public class IntensityTracker {
             throw new UnsupportedOperationException();
         }
 
-        dataFile.seek(4);
+        ByteBuffer header = ByteBuffer.allocate(8 * runs);
         for (int i = 0; i < runs; i++) {
-            dataFile.writeLong(runStarts[i]);
+            header.putLong(8 * i, runStarts[i]);
         }
+        writeFully(header, 4);
 
-        dataFile.getFD().sync();
+        dataFile.force(false);
         writing = false;
 
         calculateRunLengths();
-        initCandidateIndexes();
+        mapRuns();
+        rewind = true;
     }
 
     // reads an individual point ID in a run at the given index
-    private int get(int run, int index) throws IOException {
+    private int get(int run, int index) {
         if (run < 0 || run >= runs) {
             throw new IndexOutOfBoundsException();
         }
@@ -140,76 +210,195 @@ public class IntensityTracker {
             throw new IndexOutOfBoundsException();
         }
 
-        dataFile.seek(runStarts[run] + index * 4);
-        return dataFile.readInt();
+        return runChunks[run][index / CHUNK_NUM_IDS].get(index % CHUNK_NUM_IDS);
     }
 
-    // searches through "run" until an untraced point is encountered
-    private synchronized void findUntraced(int run) throws IOException {
-        if (run < 0 || run >= runs) {
-            throw new IndexOutOfBoundsException();
+    // updates the traced bits of points assigned to a trace (0 for no trace)
+    public synchronized void updateTraces(int traceID, Integer[] pointIDs) {
+        if (traced == null) {
+            // built from the trace index, which already holds the update
+            return;
+        }
+
+        for (Integer pointID : pointIDs) {
+            if (traceID != 0) {
+                setTraced(pointID);
+
+                // a traced head moves its run on to the next untraced point
+                int run = rewind ? -1 : headRuns.getOrDefault((int) pointID, -1);
+                if (run != -1) {
+                    advance(run);
+                    reposition(run);
+                }
+            } else if (isTraced(pointID)) {
+                traced[pointID >>> 6] &= ~(1L << pointID);
+
+                // the point may lie behind its run's head
+                rewind = true;
+            }
+        }
+    }
+
+    // marks every point untraced, after all traces are deleted
+    public synchronized void clearTraces() {
+        if (traced != null) {
+            Arrays.fill(traced, 0);
+        }
+        rewind = true;
+    }
+
+    // builds the traced bitset and searches every run for its first untraced point
+    private void ensureCandidates() throws Exception {
+        if (!rewind) {
+            return;
+        }
+
+        if (traced == null) {
+            traced = new long[(int) ((total + 63) / 64)];
+            for (int pointID : dataStorage.getAssignedPointIDs()) {
+                setTraced(pointID);
+            }
+        }
+
+        candidateIndexes = new int[runs];
+        headIntensities = new double[runs];
+        headRuns = HashIntIntMaps.newMutableMap(runs);
+        heap = new int[runs];
+        heapPositions = new int[runs];
+        heapSize = 0;
+        done = 0;
+
+        for (int i = 0; i < runs; i++) {
+            advance(i);
+            if (candidateIndexes[i] < runLengths[i]) {
+                heapPositions[i] = heapSize;
+                heap[heapSize++] = i;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+
+        rewind = false;
+    }
+
+    // moves a run's head past its traced points, reading the new head's intensity
+    private void advance(int run) {
+        int length = runLengths[run];
+        int index = candidateIndexes[run];
+        if (index < length) {
+            headRuns.remove(get(run, index));
+        }
+
+        int start = index;
+        while (index < length && isTraced(get(run, index))) {
+            index++;
+        }
+        candidateIndexes[run] = index;
+        done += index - start;
+
+        if (index < length) {
+            int pointId = get(run, index);
+            headRuns.put(pointId, run);
+            MsDataPoint head = pointCache.get(pointId);
+            headIntensities[run] = head == null ? 0 : head.intensity;
+        }
+    }
+
+    // restores the heap after a run's head changed
+    private void reposition(int run) {
+        int position = heapPositions[run];
+        if (candidateIndexes[run] >= runLengths[run]) {
+            // exhausted, remove from the heap
+            int last = heap[--heapSize];
+            if (position < heapSize) {
+                heap[position] = last;
+                heapPositions[last] = position;
+                siftDown(position);
+                siftUp(position);
+            }
+        } else {
+            // heads only lose intensity as a run advances
+            siftDown(position);
+        }
+    }
+
+    private void siftDown(int position) {
+        int run = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && headIntensities[heap[child + 1]] > headIntensities[heap[child]]) {
+                child++;
+            }
+            if (headIntensities[heap[child]] <= headIntensities[run]) {
+                break;
+            }
+            heap[position] = heap[child];
+            heapPositions[heap[position]] = position;
+            position = child;
         }
+        heap[position] = run;
+        heapPositions[run] = position;
+    }
 
-        while (candidateIndexes[run] < runLengths[run]) {
-            int pointId = get(run, candidateIndexes[run]);
-            MsDataPoint p = pointCache.get(pointId);
-            if (p.traceID == 0) {
-                return;
+    private void siftUp(int position) {
+        int run = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (headIntensities[heap[parent]] >= headIntensities[run]) {
+                break;
             }
-            candidateIndexes[run]++;
+            heap[position] = heap[parent];
+            heapPositions[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = run;
+        heapPositions[run] = position;
+    }
+
+    private boolean isTraced(int pointId) {
+        int word = pointId >>> 6;
+        return word < traced.length && (traced[word] & (1L << pointId)) != 0;
+    }
+
+    private void setTraced(int pointId) {
+        int word = pointId >>> 6;
+        if (word >= traced.length) {
+            traced = Arrays.copyOf(traced, Math.max(word + 1, 2 * traced.length));
         }
-        candidateIndexes[run] = Integer.MAX_VALUE;
+        traced[word] |= 1L << pointId;
     }
 
     // retrieve the highest-intensity MsDataPoint with no trace
     public synchronized MsDataPoint getHighestUntraced() {
-        // build list of ids from the highest untraced point in each run
-        List<Integer> candidateIds = new ArrayList<>(runs);
         try {
-            findAllUntraced();
-            for (int i = 0; i < runs; i++) {
-                if (candidateIndexes[i] != Integer.MAX_VALUE) {
-                    candidateIds.add(get(i, candidateIndexes[i]));
-                }
-            }
-        } catch (IOException e) {
+            ensureCandidates();
+        } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Failed to retrieve highest untraced value", e);
             return null;
         }
 
-        // return the highest intensity of all points checked
-        return candidateIds.stream()
-                .map(i -> pointCache.get(i))
-                .sorted(Comparator.comparingDouble((MsDataPoint p) -> p.intensity).reversed())
-                .findFirst()
-                .orElse(null);
+        // the top of the heap is the highest intensity of all run heads
+        if (heapSize == 0) {
+            return null;
+        }
+        int run = heap[0];
+        return pointCache.get(get(run, candidateIndexes[run]));
     }
 
     // based on highest-intensity-first workflow, find the current progress
     public synchronized Double getProgress() {
         try {
-            findAllUntraced();
-        } catch (IOException e) {
+            ensureCandidates();
+        } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Failed to calculate progress", e);
             return null;
         }
 
-        int done = 0;
-        int total = 0;
-        for (int i = 0; i < runs; i++) {
-            // add run's total to total count
-            int runTotal = runLengths[i];
-            total += runTotal;
-
-            // add the progress through this run to the total progress
-            // MAX_VALUE (= past end of run) means whole run is done
-            int index = candidateIndexes[i];
-            if (index == Integer.MAX_VALUE) {
-                done += runTotal;
-            } else {
-                done += index;
-            }
-        }
+        // the progress through each run is the index of its head
         return (double)done / total;
     }
 
@@ -220,4 +409,18 @@ public class IntensityTracker {
             LOGGER.log(Level.WARNING, "Could not close intensity tracking file", e);
         }
     }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (dataFile.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of intensity tracking file");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            dataFile.write(buffer, position + buffer.position());
+        }
+    }
 }
@@ -0,0 +1,426 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import edu.msViz.mzTree.MsDataPoint;
+import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointBlock;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * PointEngine implementation that accesses the point file through memory mappings.
+ * Reads use absolute gets on a snapshot of the mappings and take no locks.
+ * A single MappedByteBuffer is limited to 2GB, so the file is mapped in chunks
+ * of CHUNK_NUM_POINTS points. Chunk size is a multiple of the point size, so no
+ * point straddles two chunks. Summary records may straddle two chunks and are
+ * copied through byte ranges, their trace fields are 4-byte aligned and never straddle.
+ */
+class MappedPointEngine extends PointEngine {
+
+    // number of points held by each mapped chunk (384MB per chunk)
+    private static final int CHUNK_NUM_POINTS = 1 << 24;
+    private static final long CHUNK_NUM_BYTES = (long) CHUNK_NUM_POINTS * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+
+    private final RandomAccessFile pointFile;
+    private final FileChannel pointChannel;
+
+    // mapped chunks of the point file, replaced whenever the file grows
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    // number of bytes currently covered by the mappings
+    private long mappedLength = 0;
+
+    /**
+     * Opens or creates the point storage file and maps its current contents
+     * @param pointFilePath location of the point file
+     * @throws IOException
+     */
+    public MappedPointEngine(String pointFilePath) throws IOException {
+        pointFile = new RandomAccessFile(pointFilePath, "rw");
+        pointChannel = pointFile.getChannel();
+        this.pointCount = 0;
+
+        if (pointFile.length() > 0) {
+            // existing file
+            pointCount = (int) (pointFile.length() / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        }
+
+        this.remap();
+    }
+
+    /* Maps the full length of the point file, reusing chunks that are already complete */
+    private synchronized void remap() throws IOException
+    {
+        long length = pointFile.length();
+        if (length == mappedLength)
+            return;
+
+        int numChunks = (int) ((length + CHUNK_NUM_BYTES - 1) / CHUNK_NUM_BYTES);
+        MappedByteBuffer[] newChunks = new MappedByteBuffer[numChunks];
+        MappedByteBuffer[] oldChunks = this.chunks;
+
+        for (int i = 0; i < numChunks; i++)
+        {
+            long chunkStart = i * CHUNK_NUM_BYTES;
+            long chunkLength = Math.min(CHUNK_NUM_BYTES, length - chunkStart);
+
+            // full chunks never change size, keep the existing mapping
+            if (i < oldChunks.length && oldChunks[i].capacity() == chunkLength)
+                newChunks[i] = oldChunks[i];
+            else
+                newChunks[i] = pointChannel.map(FileChannel.MapMode.READ_WRITE, chunkStart, chunkLength);
+        }
+
+        this.chunks = newChunks;
+        this.mappedLength = length;
+    }
+
+    /* Gets the chunk containing the given point from a snapshot of the mappings */
+    private static MappedByteBuffer chunkOf(MappedByteBuffer[] chunks, int pointID)
+    {
+        return chunks[pointID / CHUNK_NUM_POINTS];
+    }
+
+    /* Gets the byte offset of the given point within its chunk */
+    private static int offsetOf(int pointID)
+    {
+        return (pointID % CHUNK_NUM_POINTS) * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+    }
+
+    /* Copies bytes starting at an absolute file position into the buffer, crossing chunks as needed */
+    private static void getBytes(MappedByteBuffer[] chunks, long position, ByteBuffer dst)
+    {
+        while (dst.hasRemaining()) {
+            ByteBuffer chunk = chunks[(int) (position / CHUNK_NUM_BYTES)].duplicate();
+            chunk.position((int) (position % CHUNK_NUM_BYTES));
+            int length = Math.min(chunk.remaining(), dst.remaining());
+            chunk.limit(chunk.position() + length);
+            dst.put(chunk);
+            position += length;
+        }
+    }
+
+    /* Copies the buffer's bytes to an absolute file position, crossing chunks as needed */
+    private static void putBytes(MappedByteBuffer[] chunks, long position, ByteBuffer src)
+    {
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = chunks[(int) (position / CHUNK_NUM_BYTES)].duplicate();
+            chunk.position((int) (position % CHUNK_NUM_BYTES));
+            int length = Math.min(chunk.remaining(), src.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + length);
+            chunk.put(slice);
+            src.position(src.position() + length);
+            position += length;
+        }
+    }
+
+    /* Decodes the point at the given offset of a chunk */
+    private static MsDataPoint pointAt(MappedByteBuffer chunk, int offset, int id)
+    {
+        double mz = chunk.getDouble(offset);
+        float rt = chunk.getFloat(offset + 8);
+        double intensity = chunk.getDouble(offset + 12);
+        int traceID = chunk.getInt(offset + TRACE_OFFSET);
+
+        MsDataPoint pt = new MsDataPoint(id, mz, rt, intensity);
+        pt.traceID = traceID;
+        return pt;
+    }
+
+    @Override
+    public synchronized void reserveSpace(int numPoints) throws IOException {
+        pointFile.setLength((long)(numPoints) * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        this.remap();
+
+        // the summary section follows the reserved space
+        this.summaryStart = pointFile.length();
+        this.summaryEnd = this.summaryStart;
+    }
+
+    @Override
+    public synchronized void insert(MsDataPoint point) throws IOException
+    {
+        // assign the point's ID
+        point.pointID = this.pointCount;
+
+        // grow the file if no space was reserved for this point
+        long pointEnd = (long)(point.pointID + 1) * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+        if (pointEnd > this.mappedLength)
+        {
+            if (pointFile.length() < pointEnd)
+                pointFile.setLength(pointEnd);
+            this.remap();
+        }
+
+        // write the point to its mapped location
+        MappedByteBuffer chunk = chunkOf(this.chunks, point.pointID);
+        int offset = offsetOf(point.pointID);
+        chunk.putDouble(offset, point.mz);
+        chunk.putFloat(offset + 8, point.rt);
+        chunk.putDouble(offset + 12, point.intensity);
+        chunk.putInt(offset + TRACE_OFFSET, point.traceID);
+
+        // publish the point to readers once written
+        this.pointCount++;
+    }
+
+    @Override
+    public long insertBlock(PointBlock points, int from, int to) throws IOException
+    {
+        int numPoints = to - from;
+        if (numPoints == 0)
+            return 0;
+
+        // grow the file if no space was reserved for this block
+        int firstPointID = points.id[from];
+        long blockEnd = (long)(firstPointID + numPoints) * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+        synchronized (this) {
+            if (blockEnd > this.mappedLength)
+            {
+                if (pointFile.length() < blockEnd)
+                    pointFile.setLength(blockEnd);
+                this.remap();
+            }
+        }
+
+        // write each point to its mapped location
+        MappedByteBuffer[] chunks = this.chunks;
+        for (int i = 0; i < numPoints; i++) {
+            MappedByteBuffer chunk = chunkOf(chunks, firstPointID + i);
+            int offset = offsetOf(firstPointID + i);
+            chunk.putDouble(offset, points.mz[from + i]);
+            chunk.putFloat(offset + 8, points.rt[from + i]);
+            chunk.putDouble(offset + 12, points.intensity[from + i]);
+            chunk.putInt(offset + TRACE_OFFSET, points.traceID[from + i]);
+        }
+
+        // publish the points to readers once written
+        this.publishBlock(firstPointID + numPoints);
+        return (long)firstPointID * (long)MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+    }
+
+    @Override
+    public MsDataPoint selectPoint(int pointID) throws IOException
+    {
+        this.checkPointID(pointID);
+        return pointAt(chunkOf(this.chunks, pointID), offsetOf(pointID), pointID);
+    }
+
+    @Override
+    public List<MsDataPoint> selectPoints(List<Integer> pointIDs) throws IOException
+    {
+        // return list
+        ArrayList<MsDataPoint> points = new ArrayList<>(pointIDs.size());
+        for (Integer id : pointIDs) {
+            points.add(this.selectPoint(id));
+        }
+
+        return points;
+    }
+
+    @Override
+    public void selectPoints(int[] pointIDs, PointBlock results) throws IOException
+    {
+        results.ensureCapacity(results.size() + pointIDs.length);
+        MappedByteBuffer[] chunks = this.chunks;
+
+        for (int pointID : pointIDs) {
+            this.checkPointID(pointID);
+
+            MappedByteBuffer chunk = chunkOf(chunks, pointID);
+            int offset = offsetOf(pointID);
+            results.add(pointID, chunk.getDouble(offset), chunk.getFloat(offset + 8),
+                    chunk.getDouble(offset + 12), chunk.getInt(offset + TRACE_OFFSET));
+        }
+    }
+
+    /**
+     * Selects a leaf node's points directly from the mapped point file,
+     * trimming the resulting list according to the given bounds.
+     * Points are bounds-checked before a MsDataPoint is allocated.
+     */
+    @Override
+    public List<MsDataPoint> selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException
+    {
+        // results list
+        List<MsDataPoint> results = new ArrayList<>();
+
+        if (leaf.fileIndex == null) {
+            // not a leaf node, or upgraded from a version without this optimization
+            return selectPoints(Arrays.stream(leaf.pointIDs).boxed().collect(Collectors.toList()))
+                    .stream().filter(p -> p.isInBounds(mzmin, mzmax, rtmin, rtmax)).collect(Collectors.toList());
+        }
+
+        // index of the first point of the node in the point file
+        int firstPoint = (int) (leaf.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        MappedByteBuffer[] chunks = this.chunks;
+
+        // the range of the leaf's scans overlapping the rt bounds
+        int end = leafScanEnd(leaf, rtmax);
+
+        for (int i = leafScanStart(leaf, rtmin); i < end; i++)
+        {
+            MappedByteBuffer chunk = chunkOf(chunks, firstPoint + i);
+            int offset = offsetOf(firstPoint + i);
+
+            double mz = chunk.getDouble(offset);
+            float rt = chunk.getFloat(offset + 8);
+
+            // include in result set if within bounds
+            if (mz >= mzmin && mz <= mzmax && rt >= rtmin && rt <= rtmax)
+                results.add(pointAt(chunk, offset, firstPoint + i));
+        }
+        return results;
+    }
+
+    @Override
+    public void selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws IOException
+    {
+        if (leaf.fileIndex == null) {
+            // not a leaf node, or upgraded from a version without this optimization
+            this.selectNodePointsInBounds(leaf, mzmin, mzmax, rtmin, rtmax, results);
+            return;
+        }
+
+        // index of the first point of the node in the point file
+        int firstPoint = (int) (leaf.fileIndex / MsDataPoint.DISK_NUM_BYTES_PER_POINT);
+        MappedByteBuffer[] chunks = this.chunks;
+
+        // the range of the leaf's scans overlapping the rt bounds
+        int end = leafScanEnd(leaf, rtmax);
+
+        // decode points within bounds straight into the block
+        for (int i = leafScanStart(leaf, rtmin); i < end; i++)
+        {
+            MappedByteBuffer chunk = chunkOf(chunks, firstPoint + i);
+            int offset = offsetOf(firstPoint + i);
+
+            double mz = chunk.getDouble(offset);
+            float rt = chunk.getFloat(offset + 8);
+            if (mz >= mzmin && mz <= mzmax && rt >= rtmin && rt <= rtmax)
+                results.add(firstPoint + i, mz, rt, chunk.getDouble(offset + 12), chunk.getInt(offset + TRACE_OFFSET));
+        }
+    }
+
+    @Override
+    public synchronized long appendSummary(PointBlock summary) throws IOException
+    {
+        this.ensureSummarySection();
+
+        // encode the summary records
+        ByteBuffer data = ByteBuffer.allocate(summary.size() * SUMMARY_NUM_BYTES_PER_POINT);
+        for (int i = 0; i < summary.size(); i++) {
+            data.putDouble(summary.mz[i]);
+            data.putFloat(summary.rt[i]);
+            data.putDouble(summary.intensity[i]);
+            data.putInt(summary.traceID[i]);
+            data.putInt(summary.id[i]);
+        }
+        data.flip();
+
+        // grow the file and mappings to hold the summary
+        long summaryIndex = this.summaryEnd;
+        long end = summaryIndex + data.remaining();
+        if (pointFile.length() < end)
+            pointFile.setLength(end);
+        this.remap();
+
+        putBytes(this.chunks, summaryIndex, data);
+        this.summaryEnd = end;
+        return summaryIndex;
+    }
+
+    @Override
+    public void selectSummary(long summaryIndex, int numPoints, PointBlock results) throws IOException
+    {
+        // copy the node's summary records out of the mappings
+        ByteBuffer data = ByteBuffer.allocate(numPoints * SUMMARY_NUM_BYTES_PER_POINT);
+        getBytes(this.chunks, summaryIndex, data);
+
+        results.ensureCapacity(results.size() + numPoints);
+        for (int i = 0; i < numPoints; i++)
+        {
+            int offset = i * SUMMARY_NUM_BYTES_PER_POINT;
+            results.add(data.getInt(offset + SUMMARY_ID_OFFSET), data.getDouble(offset), data.getFloat(offset + 8),
+                    data.getDouble(offset + 12), data.getInt(offset + TRACE_OFFSET));
+        }
+    }
+
+    @Override
+    public void updateSummaryTrace(long summaryIndex, int index, int traceID) throws IOException
+    {
+        long position = summaryIndex + (long)index * SUMMARY_NUM_BYTES_PER_POINT + TRACE_OFFSET;
+
+        // any stripe excludes a concurrent trace clear
+        ReentrantLock lock = this.traceLock(index);
+        lock.lock();
+        try {
+            this.chunks[(int) (position / CHUNK_NUM_BYTES)].putInt((int) (position % CHUNK_NUM_BYTES), traceID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void updatePointTrace(int pointID, int traceID) throws IOException
+    {
+        this.checkPointID(pointID);
+
+        ReentrantLock lock = this.traceLock(pointID);
+        lock.lock();
+        try {
+            chunkOf(this.chunks, pointID).putInt(offsetOf(pointID) + TRACE_OFFSET, traceID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clearTraces() throws IOException {
+        MappedByteBuffer[] chunks = this.chunks;
+
+        this.lockAllTraces();
+        try {
+            for (int i = 0; i < pointCount; i++) {
+                chunkOf(chunks, i).putInt(offsetOf(i) + TRACE_OFFSET, 0);
+            }
+
+            // summary copies
+            for (long i = 0, n = this.summaryRecordCount(); i < n; i++) {
+                long position = summaryStart + i * SUMMARY_NUM_BYTES_PER_POINT + TRACE_OFFSET;
+                chunks[(int) (position / CHUNK_NUM_BYTES)].putInt((int) (position % CHUNK_NUM_BYTES), 0);
+            }
+        } finally {
+            this.unlockAllTraces();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (MappedByteBuffer chunk : this.chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // mappings are released once unreachable
+        this.chunks = new MappedByteBuffer[0];
+        this.mappedLength = 0;
+        pointChannel.close();
+        pointFile.close();
+    }
+}
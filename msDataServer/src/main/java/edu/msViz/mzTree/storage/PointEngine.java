@@ -0,0 +1,330 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import edu.msViz.mzTree.MsDataPoint;
+import edu.msViz.mzTree.MzTree;
+import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointBlock;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Point value access for the HybridStorage point file. Describes the Record
+ * point format, see CompactPointEngine for the Compact format
+ *
+ * POINT FORMAT
+ * NOTE: Java uses big-endian in RandomAccessFile, ByteBuffer and MappedByteBuffer
+ *
+ * MZ   : 8 [DOUBLE]
+ * RT   : 4 [FLOAT]
+ * INTEN: 8 [DOUBLE]
+ * TRACE: 4 [INTEGER]
+ *
+ * FILE LAYOUT
+ * The point section holds one record per point at pointID * 24, with space
+ * reserved for every expected point. The summary section follows the reserved
+ * space and holds a contiguous copy of each intermediate node's summary points,
+ * sorted by pointID. Summary records append the point's ID to the point format:
+ *
+ * POINT: 24 [POINT FORMAT]
+ * ID   : 4 [INTEGER]
+ *
+ * CONCURRENCY
+ * Reads are positional and take no locks, so queries run in parallel.
+ * Trace writes lock the stripe of the leaf block containing the point,
+ * whole-file trace rewrites lock every stripe.
+ */
+abstract class PointEngine {
+
+    // location within a point entry where the trace is located
+    protected static final int TRACE_OFFSET = 8 + 4 + 8;
+
+    // number of bytes in a summary section record, and location of the point's ID
+    protected static final int SUMMARY_NUM_BYTES_PER_POINT = 24 + 4;
+    protected static final int SUMMARY_ID_OFFSET = 24;
+
+    // number of trace write lock stripes
+    private static final int NUM_TRACE_LOCKS = 64;
+
+    // number of points in the file
+    protected volatile int pointCount;
+
+    // start of the summary section in the file, -1 if the file has none
+    protected volatile long summaryStart = -1;
+
+    // end of the summary section, where the next summary is appended
+    protected volatile long summaryEnd = -1;
+
+    // trace write locks, striped by leaf block
+    private final ReentrantLock[] traceLocks = new ReentrantLock[NUM_TRACE_LOCKS];
+
+    protected PointEngine()
+    {
+        for (int i = 0; i < NUM_TRACE_LOCKS; i++)
+            traceLocks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Reserves space in the file for the necessary number of points
+     * @param numPoints number of points that will be inserted
+     * @throws IOException
+     */
+    public abstract void reserveSpace(int numPoints) throws IOException;
+
+    /**
+     * Inserts a MsDataPoint into the point file after the last inserted point,
+     * assigning the point its ID
+     * @param point MsDataPoint to insert into the point file
+     * @throws IOException
+     */
+    public abstract void insert(MsDataPoint point) throws IOException;
+
+    /**
+     * Writes a block of points whose IDs were assigned by the caller and are
+     * contiguous, at the block's location in the point file. Blocks may be
+     * written in any order
+     * @param points points with contiguous IDs, in ID order
+     * @param from index of the block's first point in points
+     * @param to index following the block's last point in points
+     * @return absolute index of the block in the point file
+     * @throws IOException
+     */
+    public abstract long insertBlock(PointBlock points, int from, int to) throws IOException;
+
+    /**
+     * Selects a point entity from the point file, returns as MsDataPoint object
+     * @param pointID ID of point to select
+     * @return MsDataPoint selected from the point file
+     * @throws IOException
+     */
+    public abstract MsDataPoint selectPoint(int pointID) throws IOException;
+
+    /**
+     * Queries for points specified in pointIDs
+     * @param pointIDs IDs of points to select
+     * @return MsDataPoints selected from storage
+     * @throws IOException
+     */
+    public abstract List<MsDataPoint> selectPoints(List<Integer> pointIDs) throws IOException;
+
+    /**
+     * Selects the points specified in pointIDs into a columnar block, in pointIDs order
+     * @param pointIDs IDs of points to select
+     * @param results block the points are appended to
+     * @throws IOException
+     */
+    public abstract void selectPoints(int[] pointIDs, PointBlock results) throws IOException;
+
+    /**
+     * Selects a leaf node's points from the point file, trimming the result
+     * according to the given bounds
+     * @param leaf leaf node that will have data block loaded
+     * @param mzmin lower mz bound
+     * @param mzmax upper mz bound
+     * @param rtmin lower rt bound
+     * @param rtmax upper rt bound
+     * @return list of MsDataPoints loaded from leaf node's data block, trimmed according to data bounds
+     * @throws IOException
+     */
+    public abstract List<MsDataPoint> selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax) throws IOException;
+
+    /**
+     * Selects a leaf node's points from the point file into a columnar block,
+     * appending only the points within the given bounds
+     * @param leaf leaf node that will have data block loaded
+     * @param mzmin lower mz bound
+     * @param mzmax upper mz bound
+     * @param rtmin lower rt bound
+     * @param rtmax upper rt bound
+     * @param results block the points within bounds are appended to
+     * @throws IOException
+     */
+    public abstract void selectLeafPointsInBounds(MzTreeNode leaf, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws IOException;
+
+    /**
+     * Appends a node's summary points to the summary section. Space for every
+     * point must have been reserved, the summary section follows it
+     * @param summary summary points sorted by pointID
+     * @return absolute index of the summary copy in the point file
+     * @throws IOException
+     */
+    public abstract long appendSummary(PointBlock summary) throws IOException;
+
+    /**
+     * Selects a node's summary points from the summary section with one read
+     * @param summaryIndex absolute index of the summary copy in the point file
+     * @param numPoints number of points in the summary copy
+     * @param results block the points are appended to, sorted by pointID
+     * @throws IOException
+     */
+    public abstract void selectSummary(long summaryIndex, int numPoints, PointBlock results) throws IOException;
+
+    /**
+     * Updates a point's copy in a node's summary to have the given traceID
+     * @param summaryIndex absolute index of the summary copy in the point file
+     * @param index index of the point within the summary copy
+     * @param traceID new traceID value
+     * @throws IOException
+     */
+    public abstract void updateSummaryTrace(long summaryIndex, int index, int traceID) throws IOException;
+
+    /**
+     * Restores the layout of an existing point file, which cannot be derived
+     * from its length once it holds a summary section
+     * @param numPoints number of points in the point section
+     * @param summarySectionStart start of the summary section, -1 if none
+     * @param fileLength length of the point file
+     */
+    public void restoreLayout(int numPoints, long summarySectionStart, long fileLength)
+    {
+        this.pointCount = numPoints;
+        this.summaryStart = summarySectionStart;
+        this.summaryEnd = (summarySectionStart < 0) ? -1 : fileLength;
+    }
+
+    /**
+     * Advances the point count past a written block
+     * @param endPointID ID following the block's last point
+     */
+    protected synchronized void publishBlock(int endPointID)
+    {
+        if (endPointID > this.pointCount)
+            this.pointCount = endPointID;
+    }
+
+    /**
+     * Begins the summary section after the reserved point section if it has not begun
+     */
+    protected void ensureSummarySection()
+    {
+        if (this.summaryStart < 0) {
+            // nothing reserved, the summary section follows the inserted points
+            this.summaryStart = (long)this.pointCount * MsDataPoint.DISK_NUM_BYTES_PER_POINT;
+            this.summaryEnd = this.summaryStart;
+        }
+    }
+
+    /**
+     * Number of records in the summary section
+     * @return number of summary records
+     */
+    protected long summaryRecordCount()
+    {
+        return (this.summaryStart < 0) ? 0 : (this.summaryEnd - this.summaryStart) / SUMMARY_NUM_BYTES_PER_POINT;
+    }
+
+    /**
+     * Updates a point in the point file to have the given traceID
+     * @param pointID ID of the point to be updated
+     * @param traceID new traceID value
+     * @throws IOException
+     */
+    public abstract void updatePointTrace(int pointID, int traceID) throws IOException;
+
+    /**
+     * Sets every point and summary copy in the file to no-trace
+     * @throws IOException
+     */
+    public abstract void clearTraces() throws IOException;
+
+    /**
+     * Ensures changes have been saved to the underlying storage medium
+     * @throws IOException
+     */
+    public abstract void flush() throws IOException;
+
+    /**
+     * Releases the point file
+     * @throws IOException
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Appends the points referenced by a node's pointIDs that are within bounds,
+     * for nodes whose points are not stored as a contiguous block
+     * @param node node whose points are selected
+     * @param mzmin lower mz bound
+     * @param mzmax upper mz bound
+     * @param rtmin lower rt bound
+     * @param rtmax upper rt bound
+     * @param results block the points within bounds are appended to
+     * @throws IOException
+     */
+    protected void selectNodePointsInBounds(MzTreeNode node, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws IOException
+    {
+        for (int pointID : node.pointIDs) {
+            MsDataPoint point = this.selectPoint(pointID);
+            if (point.isInBounds(mzmin, mzmax, rtmin, rtmax))
+                results.add(point);
+        }
+    }
+
+    /**
+     * Position within a leaf of the first point that can lie within the rt
+     * bounds, using the leaf's scan index
+     * @param leaf leaf node stored as a contiguous block
+     * @param rtmin lower rt bound
+     * @return position of the first point to decode
+     */
+    protected static int leafScanStart(MzTreeNode leaf, float rtmin)
+    {
+        return (leaf.scanIndex == null) ? 0 : leaf.scanIndex.start(rtmin);
+    }
+
+    /**
+     * Position within a leaf following the last point that can lie within
+     * the rt bounds, using the leaf's scan index
+     * @param leaf leaf node stored as a contiguous block
+     * @param rtmax upper rt bound
+     * @return position following the last point to decode
+     */
+    protected static int leafScanEnd(MzTreeNode leaf, float rtmax)
+    {
+        return (leaf.scanIndex == null) ? leaf.numSavedPoints : leaf.scanIndex.end(rtmax, leaf.numSavedPoints);
+    }
+
+    /**
+     * Gets the trace write lock guarding the given point. Points are
+     * written in leaf order, so a leaf's points share a stripe
+     * @param pointID ID of the point to be written
+     * @return lock for the point's stripe
+     */
+    protected ReentrantLock traceLock(int pointID)
+    {
+        return traceLocks[(pointID / MzTree.NUM_POINTS_PER_NODE) % NUM_TRACE_LOCKS];
+    }
+
+    /**
+     * Acquires every trace write lock, for operations rewriting the whole file
+     */
+    protected void lockAllTraces()
+    {
+        for (ReentrantLock lock : traceLocks)
+            lock.lock();
+    }
+
+    /**
+     * Releases every trace write lock
+     */
+    protected void unlockAllTraces()
+    {
+        for (int i = NUM_TRACE_LOCKS - 1; i >= 0; i--)
+            traceLocks[i].unlock();
+    }
+
+    /**
+     * Checks that the pointID references a point in the file
+     * @param pointID ID of the point to check
+     */
+    protected void checkPointID(int pointID)
+    {
+        if (pointID < 0 || pointID >= this.pointCount) {
+            throw new IndexOutOfBoundsException("pointID");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+/**
+ * On-disk formats of the point file, chosen when a file is converted and
+ * recorded by version in the mzTree file's Metadata table
+ */
+public enum PointFormat
+{
+    /**
+     * Fixed 24 byte records addressed by pointID (double mz, float rt, double intensity, int trace)
+     */
+    Record(1),
+
+    /**
+     * Self-describing leaf blocks with a per-leaf rt dictionary, quantized mz and float intensities
+     */
+    Compact(2);
+
+    // version number stored in the Metadata table
+    public final int version;
+
+    PointFormat(int version)
+    {
+        this.version = version;
+    }
+
+    /**
+     * Gets the point format with the given version number
+     * @param version stored version number
+     * @return matching point format
+     * @throws IllegalArgumentException if no format has the version
+     */
+    public static PointFormat fromVersion(int version)
+    {
+        for (PointFormat format : PointFormat.values())
+            if (format.version == version)
+                return format;
+        throw new IllegalArgumentException("Unsupported point format version " + version);
+    }
+}
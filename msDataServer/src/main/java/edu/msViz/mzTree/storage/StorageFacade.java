@@ -10,6 +10,7 @@ import edu.msViz.xnet.dataTypes.IsotopicEnvelope;
 import edu.msViz.mzTree.ImportState;
 import edu.msViz.mzTree.MsDataPoint;
 import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointBlock;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,20 @@ public interface StorageFacade
      */
     public void init(String filepath, Integer numPoints) throws Exception;
 
+    /**
+     * Sets the point format written by a subsequent init of a new file.
+     * Existing files are read in the format they were written with
+     * @param format point format of new files
+     */
+    public void setPointFormat(PointFormat format);
+
+    /**
+     * Sets the codec of the leaf blocks written by a subsequent init of a new
+     * Compact point file. Each block records the codec it was stored with
+     * @param codec codec of new leaf blocks
+     */
+    public void setBlockCodec(BlockCodec codec);
+
     /**
      * @return The root node of the mzTree stored in this instance
      * @throws Exception
@@ -69,13 +84,48 @@ public interface StorageFacade
     public int[] getNodePointIDs(int nodeID) throws Exception;
 
     /**
-     * Updates the specified points to have the given traceID
+     * Updates the specified points to have the given traceID, keeping the
+     * trace index (traceID -> pointIDs) in step. The update is durable once
+     * commitEdits returns
      * @param traceID updated traceID value
      * @param pointIDs IDs of points to update
      * @throws Exception
      */
     public void updateTraces(int traceID, Integer[] pointIDs) throws Exception;
 
+    /**
+     * Updates the points of several traces in a single transaction, keeping
+     * the trace index in step. The update is durable once commitEdits returns
+     * @param traces IDs of the points to update, keyed by their new traceID
+     * @throws Exception
+     */
+    public void updateTraces(Map<Integer, Integer[]> traces) throws Exception;
+
+    /**
+     * Gets the IDs of the points assigned to a trace from the trace index,
+     * without scanning the points
+     * @param traceID trace identifier
+     * @return IDs of the trace's points, ascending
+     * @throws Exception
+     */
+    public int[] getTracePointIDs(int traceID) throws Exception;
+
+    /**
+     * Loads every point assigned to a trace (traceID above 0), found through
+     * the trace index
+     * @param results block the points are appended to, sorted by pointID
+     * @throws Exception
+     */
+    public void loadTracedPoints(PointBlock results) throws Exception;
+
+    /**
+     * Gets the IDs of every point assigned to a trace or marked as noise
+     * (traceID other than 0) from the trace index
+     * @return IDs of the assigned points, ascending
+     * @throws Exception
+     */
+    public int[] getAssignedPointIDs() throws Exception;
+
     /**
      * Updates the trace with the given traceID to have the given compiled trace values
      * @param traceID trace identifier
@@ -88,7 +138,7 @@ public interface StorageFacade
     public void updateTrace(int traceID, double centroidMZ, float minRT, float maxRT, double intensitySum) throws Exception;
 
     /**
-     * Inserts a trace
+     * Inserts a trace, durable once commitEdits returns
      * @param traceID ID of the new trace
      * @param envelopeID initial envelope of the trace
      * @throws Exception
@@ -96,7 +146,25 @@ public interface StorageFacade
     public void insertTrace(int traceID, int envelopeID) throws Exception;
 
     /**
-     * Deletes the specified trace
+     * Inserts several traces in a single transaction, durable once commitEdits returns
+     * @param traceIDs IDs of the new traces
+     * @param envelopeID initial envelope of the traces
+     * @throws Exception
+     */
+    public void insertTraces(List<Integer> traceIDs, int envelopeID) throws Exception;
+
+    /**
+     * Blocks until the trace edits made so far (updateTraces, insertTrace(s),
+     * updateSummaryTrace) are durable. Edits committed concurrently by
+     * several callers may share a single disk sync
+     * @throws Exception
+     */
+    public void commitEdits() throws Exception;
+
+    /**
+     * Deletes the specified trace, setting the points the trace index lists
+     * for it to no-trace. Copies of the points in node summaries are updated
+     * through updateSummaryTrace
      * @param traceID ID of the trace to delete
      * @throws Exception
      */
@@ -143,8 +211,9 @@ public interface StorageFacade
     public int saveNode(MzTreeNode node, int parentNodeID) throws Exception;
 
     /**
-     * Saves the given points to the storage solution
-     * @param points MsDataPoints to save
+     * Saves the given points to the storage solution. The points' IDs must
+     * have been assigned and be contiguous, tasks may be saved in any order
+     * @param task leaf node and the range of a dataset holding its points
      * @param importState import progress monitor
      * @throws Exception
      */
@@ -158,6 +227,32 @@ public interface StorageFacade
      */
     public void saveNodePoints(MzTreeNode curNode, ImportState importState) throws Exception;
 
+    /**
+     * Saves a contiguous copy of an intermediate node's summary points,
+     * setting the node's summaryIndex and numSummaryPoints
+     * @param node node whose summary (sorted by pointID) is saved
+     * @throws Exception
+     */
+    public void saveNodeSummary(MzTreeNode node) throws Exception;
+
+    /**
+     * Loads an intermediate node's summary points from its contiguous copy
+     * @param node node with a saved summary
+     * @param results block the points are appended to, sorted by pointID
+     * @throws Exception
+     */
+    public void loadNodeSummary(MzTreeNode node, PointBlock results) throws Exception;
+
+    /**
+     * Updates the trace of a point's copy in a node's saved summary, durable
+     * once commitEdits returns
+     * @param node node with a saved summary
+     * @param index index of the point within the summary
+     * @param traceID new trace ID value
+     * @throws Exception
+     */
+    public void updateSummaryTrace(MzTreeNode node, int index, int traceID) throws Exception;
+
     /**
      * Loads the requested points from storage
      * @param pointIDs IDs of points to load
@@ -166,6 +261,14 @@ public interface StorageFacade
      */
     public List<MsDataPoint> loadPoints(List<Integer> pointIDs) throws Exception;
 
+    /**
+     * Loads the points specified in pointIDs into a columnar block
+     * @param pointIDs IDs of points to load
+     * @param results block the points are appended to, in pointIDs order
+     * @throws java.lang.Exception
+     */
+    public void loadPoints(int[] pointIDs, PointBlock results) throws Exception;
+
     /**
      * Loads all of the points belonging to the inputted set of leaf mzTreeNodes
      * @param leaves leaf nodes whose points are to be returned
@@ -178,6 +281,34 @@ public interface StorageFacade
      */
     public List<MsDataPoint> loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax) throws Exception;
 
+    /**
+     * Loads the points belonging to the inputted set of leaf mzTreeNodes into
+     * a columnar block, without creating a point object per point
+     * @param leaves leaf nodes whose points are to be returned
+     * @param mzmin
+     * @param mzmax
+     * @param rtmin
+     * @param rtmax
+     * @param results block the points within bounds are appended to
+     * @throws java.lang.Exception
+     */
+    public void loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results) throws Exception;
+
+    /**
+     * Loads the points belonging to the inputted set of leaf mzTreeNodes into
+     * a columnar block, optionally fetching and decoding the leaves in parallel.
+     * Points are appended in leaf order either way
+     * @param leaves leaf nodes whose points are to be returned
+     * @param mzmin
+     * @param mzmax
+     * @param rtmin
+     * @param rtmax
+     * @param results block the points within bounds are appended to
+     * @param parallel if true the leaves are read on a bounded pool of reader threads
+     * @throws java.lang.Exception
+     */
+    public void loadLeavesPointsInBounds(List<MzTreeNode> leaves, double mzmin, double mzmax, float rtmin, float rtmax, PointBlock results, boolean parallel) throws Exception;
+
     /**
      * Performs any commits or updates that are required to flush
      * any potentially pending changes to disk
@@ -204,11 +335,20 @@ public interface StorageFacade
 
     public class SavePointsTask {
         public MzTreeNode node;
-        public List<MsDataPoint> dataset;
-        public SavePointsTask(MzTreeNode inNode, List<MsDataPoint> inDataset)
+        public PointBlock dataset;
+        // range of dataset holding the node's points, unmodified until saved
+        public int from;
+        public int to;
+        public SavePointsTask(MzTreeNode inNode, PointBlock inDataset)
+        {
+            this(inNode, inDataset, 0, inDataset.size());
+        }
+        public SavePointsTask(MzTreeNode inNode, PointBlock inDataset, int inFrom, int inTo)
         {
             this.node = inNode;
             this.dataset = inDataset;
+            this.from = inFrom;
+            this.to = inTo;
         }
     }
 }
@@ -12,7 +12,7 @@ package edu.msViz.mzTree.storage;
 public class StorageFacadeFactory
 {
     // Facade options
-    public static enum Facades { Hybrid };
+    public static enum Facades { Hybrid, HybridMapped };
     
     /**
      * Constructs the StorageFacade implementation corresponding to the facade choice
@@ -24,6 +24,8 @@ public class StorageFacadeFactory
             default:
             case Hybrid:
                 return new HybridStorage();
+            case HybridMapped:
+                return new HybridStorage(true);
         }
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.IO;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests counting the points of an indexedmzML file from its spectrum index
+ */
+public class MzmlIndexTest {
+
+    private File mzmlFile;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mzmlFile = File.createTempFile("index", ".mzML");
+    }
+
+    @After
+    public void tearDown()
+    {
+        mzmlFile.delete();
+    }
+
+    @Test
+    public void countTest() throws Exception
+    {
+        writeIndexed(
+                spectrum(10, "<cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/>"),
+                spectrum(20, "<cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"2\"/>"),
+                spectrum(30, "<cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/>"));
+
+        MzmlIndex index = MzmlIndex.read(mzmlFile.getPath());
+        Assert.assertEquals(3, index.numSpectra());
+        Assert.assertEquals(Integer.valueOf(40), index.countPointsUpperBound(1));
+        Assert.assertEquals(Integer.valueOf(20), index.countPointsUpperBound(2));
+    }
+
+    @Test
+    public void attributeOrderTest() throws Exception
+    {
+        // value ahead of accession, single quoted
+        writeIndexed(
+                spectrum(10, "<cvParam value=\"1\" name=\"ms level\" accession=\"MS:1000511\" cvRef=\"MS\"/>"),
+                spectrum(20, "<cvParam cvRef='MS' value='1' accession='MS:1000511' name='ms level'/>"));
+
+        Assert.assertEquals(Integer.valueOf(30), MzmlIndex.read(mzmlFile.getPath()).countPointsUpperBound(1));
+    }
+
+    @Test
+    public void missingLevelTest() throws Exception
+    {
+        // the spectrum could still be decoded, the count is unusable
+        writeIndexed(
+                spectrum(10, "<cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/>"),
+                spectrum(20, "<cvParam cvRef=\"MS\" accession=\"MS:1000127\" name=\"centroid spectrum\" value=\"\"/>"));
+
+        Assert.assertNull(MzmlIndex.read(mzmlFile.getPath()).countPointsUpperBound(1));
+    }
+
+    @Test
+    public void distantLevelTest() throws Exception
+    {
+        // the level lies beyond the bytes searched for it
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < 70000)
+            padding.append("<userParam name=\"padding\" value=\"0000000000000000\"/>\n");
+        writeIndexed(spectrum(10, padding + "<cvParam cvRef=\"MS\" accession=\"MS:1000511\" name=\"ms level\" value=\"1\"/>"));
+
+        Assert.assertNull(MzmlIndex.read(mzmlFile.getPath()).countPointsUpperBound(1));
+    }
+
+    /* A spectrum element with the given array length and parameters */
+    private static String spectrum(int arrayLength, String params)
+    {
+        return "<spectrum index=\"0\" id=\"scan\" defaultArrayLength=\"" + arrayLength + "\">\n"
+                + params + "\n"
+                + "<binaryDataArrayList count=\"0\">\n</binaryDataArrayList>\n"
+                + "</spectrum>\n";
+    }
+
+    /* Writes an indexedmzML file holding the spectra, with its spectrum index */
+    private void writeIndexed(String... spectra) throws Exception
+    {
+        StringBuilder mzml = new StringBuilder("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<indexedmzML>\n<mzML>\n<run>\n<spectrumList count=\"" + spectra.length + "\">\n");
+        List<Integer> offsets = new ArrayList<>();
+        for (String spectrum : spectra) {
+            offsets.add(mzml.length());
+            mzml.append(spectrum);
+        }
+        mzml.append("</spectrumList>\n</run>\n</mzML>\n");
+
+        int indexListOffset = mzml.length();
+        mzml.append("<indexList count=\"1\">\n<index name=\"spectrum\">\n");
+        for (int i = 0; i < offsets.size(); i++)
+            mzml.append("<offset idRef=\"scan=").append(i).append("\">").append(offsets.get(i)).append("</offset>\n");
+        mzml.append("</index>\n</indexList>\n<indexListOffset>").append(indexListOffset).append("</indexListOffset>\n</indexedmzML>\n");
+
+        Files.write(mzmlFile.toPath(), mzml.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.IO;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests MS-Numpress decoding against the example vectors of the reference
+ * implementation (MSNumpressTest), and round trips through a port of its encoders
+ */
+public class NumpressTest {
+
+    // 100000.0 as a big endian double
+    private static final byte[] FIXED_POINT_1E5 = {0x40, (byte) 0xf8, 0x6a, 0, 0, 0, 0, 0};
+
+    @Test
+    public void linearSingleValueTest() throws Exception
+    {
+        // encodeLinear1: 100.0 at fixed point 100000.0
+        byte[] data = bytes(FIXED_POINT_1E5, 0x80, 0x96, 0x98, 0x00);
+
+        Assert.assertArrayEquals(new double[]{100.0}, decode(Numpress.LINEAR, data), 0);
+    }
+
+    @Test
+    public void linearReferenceTest() throws Exception
+    {
+        // encodeLinear: 100.0, 200.0, 300.00005, 400.00010 at fixed point 100000.0,
+        // residuals 5 (half bytes 7 5) and 0 (half byte 8, then padding)
+        byte[] data = bytes(FIXED_POINT_1E5,
+                0x80, 0x96, 0x98, 0x00,
+                0x00, 0x2d, 0x31, 0x01,
+                0x75, 0x80);
+
+        Assert.assertArrayEquals(new double[]{100.0, 200.0, 300.00005, 400.0001},
+                decode(Numpress.LINEAR, data), 1e-9);
+    }
+
+    @Test
+    public void linearNegativeResidualTest() throws Exception
+    {
+        // residual -5 omits seven leading 0xf half bytes (head 15)
+        byte[] data = bytes(FIXED_POINT_1E5,
+                0x80, 0x96, 0x98, 0x00,
+                0x00, 0x2d, 0x31, 0x01,
+                0xfb);
+
+        Assert.assertArrayEquals(new double[]{100.0, 200.0, 299.99995},
+                decode(Numpress.LINEAR, data), 1e-9);
+    }
+
+    @Test
+    public void linearEmptyTest() throws Exception
+    {
+        Assert.assertEquals(0, decode(Numpress.LINEAR, FIXED_POINT_1E5).length);
+    }
+
+    @Test
+    public void picReferenceTest() throws Exception
+    {
+        // 100 (6 4 6), 0 (8), 7 (7 7)
+        byte[] data = bytes(new byte[0], 0x64, 0x68, 0x77);
+
+        Assert.assertArrayEquals(new double[]{100, 0, 7}, decode(Numpress.PIC, data), 0);
+    }
+
+    @Test
+    public void slofReferenceTest() throws Exception
+    {
+        // fixed point 1000.0, log values 0 and 1000 (little endian)
+        byte[] data = bytes(new byte[]{0x40, (byte) 0x8f, 0x40, 0, 0, 0, 0, 0}, 0x00, 0x00, 0xe8, 0x03);
+
+        Assert.assertArrayEquals(new double[]{0, Math.E - 1}, decode(Numpress.SLOF, data), 1e-12);
+    }
+
+    @Test
+    public void linearRoundTripTest() throws Exception
+    {
+        Random random = new Random(7);
+        double[] mzs = new double[1000];
+        mzs[0] = 300;
+        for (int i = 1; i < mzs.length; i++)
+            mzs[i] = mzs[i - 1] + random.nextDouble() * (random.nextBoolean() ? 0.01 : 5);
+
+        // fixed point keeping the largest value within 31 bits
+        double fixedPoint = Math.floor(0x7fffffffL / mzs[mzs.length - 1]);
+        double[] decoded = decode(Numpress.LINEAR, encodeLinear(mzs, fixedPoint));
+
+        Assert.assertArrayEquals(mzs, decoded, 0.5 / fixedPoint + 1e-12);
+    }
+
+    @Test
+    public void picRoundTripTest() throws Exception
+    {
+        Random random = new Random(11);
+        double[] ics = new double[999];
+        for (int i = 0; i < ics.length; i++)
+            ics[i] = random.nextInt(1 << random.nextInt(31));
+
+        Assert.assertArrayEquals(ics, decode(Numpress.PIC, encodePic(ics)), 0);
+    }
+
+    @Test
+    public void slofRoundTripTest() throws Exception
+    {
+        Random random = new Random(13);
+        double[] intensities = new double[500];
+        for (int i = 0; i < intensities.length; i++)
+            intensities[i] = Math.exp(random.nextDouble() * 20) - 1;
+
+        double fixedPoint = Math.floor(0xffff / Math.log(Arrays.stream(intensities).max().getAsDouble() + 1));
+        double[] decoded = decode(Numpress.SLOF, encodeSlof(intensities, fixedPoint));
+
+        // half a log step of relative error
+        for (int i = 0; i < intensities.length; i++)
+            Assert.assertEquals(intensities[i], decoded[i], (intensities[i] + 1) * (Math.exp(0.5 / fixedPoint) - 1) + 1e-9);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void truncatedIntegerTest() throws Exception
+    {
+        // head 0 announces eight half bytes, only three follow
+        decode(Numpress.PIC, bytes(new byte[0], 0x01, 0x23));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void truncatedLinearTest() throws Exception
+    {
+        decode(Numpress.LINEAR, bytes(FIXED_POINT_1E5, 0x80, 0x96));
+    }
+
+    //**********************************************//
+    //                   HELPERS                    //
+    //**********************************************//
+
+    /* Decodes all of the data */
+    private static double[] decode(Numpress numpress, byte[] data) throws DataFormatException
+    {
+        double[] result = new double[numpress.maxNumValues(data.length)];
+        return Arrays.copyOf(result, numpress.decode(data, data.length, result));
+    }
+
+    /* Concatenates a prefix and unsigned byte values */
+    private static byte[] bytes(byte[] prefix, int... values)
+    {
+        byte[] data = Arrays.copyOf(prefix, prefix.length + values.length);
+        for (int i = 0; i < values.length; i++)
+            data[prefix.length + i] = (byte) values[i];
+        return data;
+    }
+
+    /* Port of the reference encodeLinear */
+    private static byte[] encodeLinear(double[] values, double fixedPoint)
+    {
+        HalfBytes out = new HalfBytes();
+        out.putFixedPoint(fixedPoint);
+
+        long[] ints = new long[values.length];
+        for (int i = 0; i < values.length; i++)
+            ints[i] = (long) (values[i] * fixedPoint + 0.5);
+        for (int i = 0; i < Math.min(2, values.length); i++)
+            for (int b = 0; b < 4; b++)
+                out.putByte((int) (ints[i] >> (8 * b)));
+
+        for (int i = 2; i < values.length; i++)
+            out.putInt((int) (ints[i] - (2 * ints[i - 1] - ints[i - 2])));
+        return out.toBytes();
+    }
+
+    /* Port of the reference encodePic */
+    private static byte[] encodePic(double[] values)
+    {
+        HalfBytes out = new HalfBytes();
+        for (double value : values)
+            out.putInt((int) (value + 0.5));
+        return out.toBytes();
+    }
+
+    /* Port of the reference encodeSlof */
+    private static byte[] encodeSlof(double[] values, double fixedPoint)
+    {
+        HalfBytes out = new HalfBytes();
+        out.putFixedPoint(fixedPoint);
+        for (double value : values) {
+            int x = (int) (Math.log(value + 1) * fixedPoint + 0.5);
+            out.putByte(x);
+            out.putByte(x >> 8);
+        }
+        return out.toBytes();
+    }
+
+    /**
+     * Output of the reference encoders: whole bytes, then half byte encoded
+     * integers packed high half first and padded with a zero half byte
+     */
+    private static class HalfBytes
+    {
+        private byte[] data = new byte[64];
+        private int numHalfBytes = 0;
+
+        void putFixedPoint(double fixedPoint)
+        {
+            long bits = Double.doubleToLongBits(fixedPoint);
+            for (int i = 7; i >= 0; i--)
+                this.putByte((int) (bits >> (8 * i)));
+        }
+
+        void putByte(int b)
+        {
+            this.putHalf(b >> 4);
+            this.putHalf(b);
+        }
+
+        /* Reference encodeInt: leading zero or 0xf half bytes are omitted */
+        void putInt(int x)
+        {
+            int init = x & 0xf0000000;
+            int omitted = 0;
+            int head = 0;
+            if (init == 0 || init == 0xf0000000) {
+                int fill = (init == 0) ? 0 : 0xf;
+                while (omitted < 8 && ((x >>> (28 - 4 * omitted)) & 0xf) == fill)
+                    omitted++;
+                if (init != 0)
+                    omitted = Math.min(omitted, 7);
+                head = (init == 0) ? omitted : omitted + 8;
+            }
+
+            this.putHalf(head);
+            for (int i = omitted; i < 8; i++)
+                this.putHalf(x >> (4 * (i - omitted)));
+        }
+
+        void putHalf(int half)
+        {
+            if ((this.numHalfBytes >> 1) == this.data.length)
+                this.data = Arrays.copyOf(this.data, 2 * this.data.length);
+            if ((this.numHalfBytes & 1) == 0)
+                this.data[this.numHalfBytes >> 1] = (byte) ((half & 0xf) << 4);
+            else
+                this.data[this.numHalfBytes >> 1] |= (byte) (half & 0xf);
+            this.numHalfBytes++;
+        }
+
+        byte[] toBytes()
+        {
+            return Arrays.copyOf(this.data, (this.numHalfBytes + 1) >> 1);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree;
+
+import edu.msViz.mzTree.storage.StorageFacade;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that trace updates racing a summary load are not lost
+ */
+public class NodeSummaryCacheTest {
+
+    // trace ID of the stored summary point
+    private volatile int storedTraceID = 0;
+
+    // number of summary loads
+    private final AtomicInteger numLoads = new AtomicInteger();
+
+    // released once a load has started, and to let it finish
+    private final CountDownLatch loadStarted = new CountDownLatch(1);
+    private final CountDownLatch finishLoad = new CountDownLatch(1);
+
+    /* Storage holding a single summary point, whose first load waits for finishLoad */
+    private StorageFacade summaryStorage()
+    {
+        return (StorageFacade) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{StorageFacade.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("loadNodeSummary"))
+                throw new UnsupportedOperationException(method.getName());
+
+            int traceID = storedTraceID;
+            if (numLoads.getAndIncrement() == 0) {
+                loadStarted.countDown();
+                finishLoad.await();
+            }
+            ((PointBlock) args[1]).add(42, 500.0, 10f, 1000.0, traceID);
+            return null;
+        });
+    }
+
+    @Test
+    public void updateDuringLoadTest() throws Exception
+    {
+        NodeSummaryCache cache = new NodeSummaryCache(summaryStorage(), 1 << 20);
+        MzTreeNode node = new MzTreeNode();
+        node.nodeID = 1;
+        node.summaryIndex = 0L;
+        node.numSummaryPoints = 1;
+
+        PointBlock[] loaded = new PointBlock[1];
+        Thread reader = new Thread(() -> loaded[0] = cache.retrieve(node));
+        reader.start();
+
+        // the point is traced after the reader read its old trace
+        loadStarted.await();
+        storedTraceID = 7;
+        cache.updateTraces(7, new Integer[]{42});
+        finishLoad.countDown();
+        reader.join();
+
+        // the stale block is returned to its reader but not cached
+        Assert.assertEquals(0, loaded[0].traceID[0]);
+        Assert.assertEquals(0, cache.size());
+
+        PointBlock reloaded = cache.retrieve(node);
+        Assert.assertEquals(7, reloaded.traceID[0]);
+        Assert.assertEquals(2, numLoads.get());
+
+        // later retrievals are served from the cache
+        Assert.assertSame(reloaded, cache.retrieve(node));
+        Assert.assertEquals(2, numLoads.get());
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import edu.msViz.mzTree.LeafScanIndex;
+import edu.msViz.mzTree.MsDataPoint;
+import edu.msViz.mzTree.MzTreeNode;
+import edu.msViz.mzTree.PointBlock;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests writing, reading and reopening leaf blocks of a Compact point file,
+ * stored as is or through a block codec
+ */
+public class CompactPointEngineTest {
+
+    // points and distinct rts of the first block, the second block needs a 2 byte rt index
+    private static final int NUM_POINTS = 1200;
+    private static final int NUM_RTS = 100;
+    private static final int NUM_POINTS_WIDE = 1500;
+    private static final int NUM_RTS_WIDE = 300;
+
+    private File pointFile;
+    private CompactPointEngine engine;
+
+    // the blocks as written, their leaves, and the summary copy
+    private final List<PointBlock> blocks = new ArrayList<>();
+    private final List<MzTreeNode> leaves = new ArrayList<>();
+    private PointBlock summary;
+    private long summaryIndex;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        pointFile = File.createTempFile("compact", ".bin");
+        engine = new CompactPointEngine(pointFile.getPath());
+        engine.reserveSpace(NUM_POINTS + NUM_POINTS_WIDE);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        engine.close();
+        pointFile.delete();
+    }
+
+    @Test
+    public void readTest() throws Exception
+    {
+        writeBlocks();
+
+        // each point by itself
+        for (PointBlock block : blocks)
+            for (int i = 0; i < block.size(); i++)
+                assertPoint(block, i, engine.selectPoint(block.id[i]));
+
+        // runs within each block and single points, spanning both blocks
+        int[] pointIDs = { 3, 4, 5, 900, NUM_POINTS - 1, NUM_POINTS, NUM_POINTS + 1, NUM_POINTS + 700, NUM_POINTS + NUM_POINTS_WIDE - 1 };
+        PointBlock selected = new PointBlock();
+        engine.selectPoints(pointIDs, selected);
+        Assert.assertEquals(pointIDs.length, selected.size());
+        for (int k = 0; k < pointIDs.length; k++) {
+            PointBlock block = blockOf(pointIDs[k]);
+            assertPoint(block, pointIDs[k] - block.id[0], selected.get(k));
+        }
+
+        List<MsDataPoint> listed = engine.selectPoints(Arrays.asList(10, 11, NUM_POINTS + 299));
+        assertPoint(blocks.get(0), 10, listed.get(0));
+        assertPoint(blocks.get(0), 11, listed.get(1));
+        assertPoint(blocks.get(1), 299, listed.get(2));
+    }
+
+    @Test
+    public void leafBoundsTest() throws Exception
+    {
+        writeBlocks();
+        assertLeafBounds(400.5, 401.25, 12.0f, 25.0f);
+        assertLeafBounds(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+        // no scan within the rt bounds
+        PointBlock results = new PointBlock();
+        engine.selectLeafPointsInBounds(leaves.get(0), 0, 1000, 1000f, 2000f, results);
+        Assert.assertEquals(0, results.size());
+    }
+
+    @Test
+    public void traceTest() throws Exception
+    {
+        writeBlocks();
+
+        engine.updatePointTrace(7, 11);
+        engine.updatePointTrace(NUM_POINTS + 400, 12);
+        engine.updateSummaryTrace(summaryIndex, 2, 13);
+        Assert.assertEquals(11, engine.selectPoint(7).traceID);
+        Assert.assertEquals(12, engine.selectPoint(NUM_POINTS + 400).traceID);
+        Assert.assertEquals(0, engine.selectPoint(8).traceID);
+        Assert.assertEquals(13, selectSummary().traceID[2]);
+
+        // the rest of the point is untouched
+        assertPoint(blocks.get(1), 400, engine.selectPoint(NUM_POINTS + 400), 12);
+
+        engine.clearTraces();
+        Assert.assertEquals(0, engine.selectPoint(7).traceID);
+        Assert.assertEquals(0, engine.selectPoint(NUM_POINTS + 400).traceID);
+        Assert.assertEquals(0, selectSummary().traceID[2]);
+    }
+
+    @Test
+    public void reopenTest() throws Exception
+    {
+        writeBlocks();
+        engine.updatePointTrace(NUM_POINTS + 5, 21);
+
+        reopen();
+
+        for (PointBlock block : blocks)
+            for (int i = 0; i < block.size(); i += 37)
+                assertPoint(block, i, engine.selectPoint(block.id[i]), (block.id[i] == NUM_POINTS + 5) ? 21 : 0);
+        assertLeafBounds(400.25, 401.5, 30.0f, 60.0f);
+
+        // traces of restored blocks and summaries can still be written and cleared
+        engine.updatePointTrace(3, 22);
+        Assert.assertEquals(22, engine.selectPoint(3).traceID);
+        engine.updateSummaryTrace(summaryIndex, 0, 23);
+        engine.clearTraces();
+        Assert.assertEquals(0, engine.selectPoint(3).traceID);
+        Assert.assertEquals(0, engine.selectPoint(NUM_POINTS + 5).traceID);
+        Assert.assertEquals(0, selectSummary().traceID[0]);
+    }
+
+    @Test
+    public void deflateTest() throws Exception
+    {
+        useCodec(BlockCodec.Deflate);
+        writeBlocks();
+
+        // the rt dictionary and index compress well
+        for (PointBlock block : blocks) {
+            Assert.assertEquals(BlockCodec.Deflate, engine.codecOf(block.id[0]));
+            Assert.assertTrue(engine.storedLengthOf(block.id[0]) < 9 * block.size());
+        }
+
+        for (PointBlock block : blocks)
+            for (int i = 0; i < block.size(); i += 13)
+                assertPoint(block, i, engine.selectPoint(block.id[i]));
+        PointBlock selected = new PointBlock();
+        engine.selectPoints(new int[] { 0, 1, 2, NUM_POINTS + 3 }, selected);
+        assertPoint(blocks.get(1), 3, selected.get(3));
+        assertLeafBounds(400.5, 401.25, 12.0f, 25.0f);
+
+        // traces follow the encoded bytes as is
+        engine.updatePointTrace(NUM_POINTS + 9, 31);
+        Assert.assertEquals(31, engine.selectPoint(NUM_POINTS + 9).traceID);
+
+        reopen();
+        for (PointBlock block : blocks)
+            for (int i = 0; i < block.size(); i += 13)
+                assertPoint(block, i, engine.selectPoint(block.id[i]), (block.id[i] == NUM_POINTS + 9) ? 31 : 0);
+        assertLeafBounds(400.25, 401.5, 30.0f, 60.0f);
+
+        engine.clearTraces();
+        Assert.assertEquals(0, engine.selectPoint(NUM_POINTS + 9).traceID);
+    }
+
+    @Test
+    public void incompressibleTest() throws Exception
+    {
+        useCodec(BlockCodec.Deflate);
+        PointBlock block = randomBlock(0, NUM_POINTS, 3);
+        writeBlock(block);
+
+        // stored as is rather than grown by the codec
+        Assert.assertEquals(BlockCodec.None, engine.codecOf(0));
+        for (int i = 0; i < block.size(); i += 7)
+            assertPoint(block, i, engine.selectPoint(i));
+
+        reopen();
+        for (int i = 0; i < block.size(); i += 7)
+            assertPoint(block, i, engine.selectPoint(i));
+    }
+
+    @Test
+    public void codecRoundTripTest() throws Exception
+    {
+        byte[] compressible = new byte[5000];
+        for (int i = 0; i < compressible.length; i++)
+            compressible[i] = (byte) (i / 50);
+        byte[] incompressible = new byte[5000];
+        new Random(4).nextBytes(incompressible);
+
+        for (BlockCodec codec : BlockCodec.values()) {
+            Assert.assertEquals(codec, BlockCodec.fromId(codec.id));
+
+            byte[] encoded = new byte[compressible.length];
+            int encodedLength = codec.encode(compressible, compressible.length, encoded);
+            Assert.assertTrue(encodedLength > 0);
+
+            // decoded at an offset into the stored bytes
+            byte[] stored = new byte[encodedLength + 3];
+            System.arraycopy(encoded, 0, stored, 3, encodedLength);
+            byte[] decoded = new byte[compressible.length];
+            codec.decode(stored, 3, encodedLength, decoded, decoded.length);
+            Assert.assertArrayEquals(compressible, decoded);
+
+            // no room to store random bytes any smaller
+            Assert.assertEquals(-1, codec.encode(incompressible, incompressible.length, new byte[incompressible.length - 1]));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedStreamTest() throws Exception
+    {
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i / 50);
+        byte[] encoded = new byte[data.length];
+        int encodedLength = BlockCodec.Deflate.encode(data, data.length, encoded);
+
+        BlockCodec.Deflate.decode(encoded, 0, encodedLength / 2, new byte[data.length], data.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedBlockTest() throws Exception
+    {
+        useCodec(BlockCodec.Deflate);
+        writeBlock(block(0, NUM_POINTS, NUM_RTS, 1));
+        reopen();
+
+        // the file ends within the block
+        try (RandomAccessFile file = new RandomAccessFile(pointFile, "rw")) {
+            file.setLength(leaves.get(0).fileIndex + engine.storedLengthOf(0) / 2);
+        }
+        engine.selectPoint(0);
+    }
+
+    @Test(expected = IOException.class)
+    public void shortStoredLengthTest() throws Exception
+    {
+        useCodec(BlockCodec.Deflate);
+        writeBlock(block(0, NUM_POINTS, NUM_RTS, 1));
+        int storedLength = engine.storedLengthOf(0);
+        reopen();
+
+        // the Node table's stored length ends within the deflate stream
+        engine.restoreLeaf(0, NUM_POINTS, leaves.get(0).fileIndex, BlockCodec.Deflate, storedLength - 16);
+        engine.selectPoint(0);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBlockTest() throws Exception
+    {
+        useCodec(BlockCodec.Deflate);
+        writeBlock(block(0, NUM_POINTS, NUM_RTS, 1));
+        reopen();
+
+        // overwrite the zlib header
+        try (RandomAccessFile file = new RandomAccessFile(pointFile, "rw")) {
+            file.seek(leaves.get(0).fileIndex);
+            file.write(new byte[] { 0x12, 0x34 });
+        }
+        engine.selectPoint(0);
+    }
+
+    //**********************************************//
+    //                   HELPERS                    //
+    //**********************************************//
+
+    /* Replaces the engine with one storing new blocks through a codec */
+    private void useCodec(BlockCodec codec) throws Exception
+    {
+        engine.close();
+        engine = new CompactPointEngine(pointFile.getPath(), codec);
+        engine.reserveSpace(NUM_POINTS + NUM_POINTS_WIDE);
+    }
+
+    /* Writes a block with a 1 byte rt index, a summary copy, and a block with a 2 byte rt index */
+    private void writeBlocks() throws Exception
+    {
+        writeBlock(block(0, NUM_POINTS, NUM_RTS, 1));
+
+        summary = new PointBlock();
+        for (int i = 0; i < 10; i++)
+            summary.add(blocks.get(0), i * 100);
+        summaryIndex = engine.appendSummary(summary);
+
+        writeBlock(block(NUM_POINTS, NUM_POINTS_WIDE, NUM_RTS_WIDE, 2));
+    }
+
+    /* Writes a block, keeping its leaf */
+    private void writeBlock(PointBlock block) throws Exception
+    {
+        MzTreeNode leaf = new MzTreeNode();
+        leaf.initLeaf(block);
+        leaf.fileIndex = engine.insertBlock(block, 0, block.size());
+        leaf.numSavedPoints = block.size();
+        leaf.scanIndex = LeafScanIndex.build(block);
+
+        blocks.add(block);
+        leaves.add(leaf);
+    }
+
+    /**
+     * Creates a leaf's points sorted by rt, spread over evenly spaced scans
+     * @param firstPointID ID of the first point
+     * @param numPoints number of points
+     * @param numRts number of distinct rts
+     * @param seed seed of the mz and intensity values
+     * @return the leaf's points
+     */
+    private static PointBlock block(int firstPointID, int numPoints, int numRts, long seed)
+    {
+        Random random = new Random(seed);
+        PointBlock block = new PointBlock(numPoints);
+        for (int i = 0; i < numPoints; i++) {
+            float rt = 10.0f + 0.25f * (i * numRts / numPoints);
+            // intensities are stored as floats
+            double intensity = (float) (random.nextDouble() * 1e6);
+            block.add(firstPointID + i, 400.0 + 2.0 * random.nextDouble(), rt, intensity, 0);
+        }
+        return block;
+    }
+
+    /**
+     * Creates points of random mz, rt and intensity bits, which no codec can shrink
+     * @param firstPointID ID of the first point
+     * @param numPoints number of points
+     * @param seed seed of the values
+     * @return the points
+     */
+    private static PointBlock randomBlock(int firstPointID, int numPoints, long seed)
+    {
+        Random random = new Random(seed);
+        float[] rts = new float[256];
+        for (int i = 0; i < rts.length; i++)
+            rts[i] = Float.intBitsToFloat(random.nextInt() & 0x3FFFFFFF);
+
+        PointBlock block = new PointBlock(numPoints);
+        for (int i = 0; i < numPoints; i++) {
+            // finite positive floats of any exponent
+            double intensity = Float.intBitsToFloat(random.nextInt() & 0x7F7FFFFF);
+            block.add(firstPointID + i, 400.0 + 2.0 * random.nextDouble(), rts[random.nextInt(rts.length)], intensity, 0);
+        }
+        return block;
+    }
+
+    /* The written block holding a point */
+    private PointBlock blockOf(int pointID)
+    {
+        for (PointBlock block : blocks)
+            if (pointID >= block.id[0] && pointID < block.id[0] + block.size())
+                return block;
+        throw new IllegalArgumentException("pointID " + pointID);
+    }
+
+    /* Closes the engine and opens the file again, restoring its layout as the Node table would */
+    private void reopen() throws Exception
+    {
+        int numPoints = 0;
+        long[] fileIndices = new long[blocks.size()];
+        BlockCodec[] codecs = new BlockCodec[blocks.size()];
+        int[] storedLengths = new int[blocks.size()];
+        for (int k = 0; k < blocks.size(); k++) {
+            int firstPointID = blocks.get(k).id[0];
+            fileIndices[k] = leaves.get(k).fileIndex;
+            codecs[k] = engine.codecOf(firstPointID);
+            // blocks stored as is have no stored length in the Node table
+            storedLengths[k] = (codecs[k] == BlockCodec.None) ? -1 : engine.storedLengthOf(firstPointID);
+            numPoints += blocks.get(k).size();
+        }
+        engine.close();
+
+        engine = new CompactPointEngine(pointFile.getPath());
+        engine.restoreLayout(numPoints, -1, pointFile.length());
+        for (int k = 0; k < blocks.size(); k++)
+            engine.restoreLeaf(blocks.get(k).id[0], blocks.get(k).size(), fileIndices[k], codecs[k], storedLengths[k]);
+        if (summary != null)
+            engine.restoreSummary(summaryIndex, summary.size());
+    }
+
+    /* Reads the summary copy */
+    private PointBlock selectSummary() throws Exception
+    {
+        PointBlock results = new PointBlock();
+        engine.selectSummary(summaryIndex, summary.size(), results);
+        return results;
+    }
+
+    /* Compares each leaf's points within bounds against the written points */
+    private void assertLeafBounds(double mzmin, double mzmax, float rtmin, float rtmax) throws Exception
+    {
+        for (int k = 0; k < blocks.size(); k++) {
+            PointBlock block = blocks.get(k);
+            PointBlock results = new PointBlock();
+            engine.selectLeafPointsInBounds(leaves.get(k), mzmin, mzmax, rtmin, rtmax, results);
+
+            // points at the mz bounds may fall either side once quantized
+            double quantum = quantum(block);
+            int r = 0;
+            for (int i = 0; i < block.size(); i++) {
+                if (block.rt[i] < rtmin || block.rt[i] > rtmax || block.mz[i] < mzmin - quantum || block.mz[i] > mzmax + quantum)
+                    continue;
+                if (r < results.size() && results.id[r] == block.id[i])
+                    assertPoint(block, i, results.get(r++));
+                else
+                    Assert.assertTrue("point " + block.id[i] + " is within bounds",
+                            block.mz[i] < mzmin + quantum || block.mz[i] > mzmax - quantum);
+            }
+            Assert.assertEquals("every result is a written point within bounds", results.size(), r);
+        }
+    }
+
+    private static void assertPoint(PointBlock expected, int i, MsDataPoint actual)
+    {
+        assertPoint(expected, i, actual, expected.traceID[i]);
+    }
+
+    /* Compares a read point with a written one, mz to within one quantum of its block */
+    private static void assertPoint(PointBlock expected, int i, MsDataPoint actual, int traceID)
+    {
+        Assert.assertEquals(expected.id[i], actual.pointID);
+        Assert.assertEquals(expected.mz[i], actual.mz, quantum(expected));
+        Assert.assertEquals(expected.rt[i], actual.rt, 0);
+        Assert.assertEquals(expected.intensity[i], actual.intensity, 0);
+        Assert.assertEquals(traceID, actual.traceID);
+    }
+
+    /* Size of the mz quanta of a written block */
+    private static double quantum(PointBlock block)
+    {
+        double mzMin = Double.POSITIVE_INFINITY;
+        double mzMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < block.size(); i++) {
+            mzMin = Math.min(mzMin, block.mz[i]);
+            mzMax = Math.max(mzMax, block.mz[i]);
+        }
+        return (mzMax - mzMin) / 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import edu.msViz.mzTree.storage.EditJournal.Edit;
+import edu.msViz.mzTree.storage.EditJournal.EditType;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests journal replay after torn writes and crashes, and group commit of
+ * concurrent and interrupted writers
+ */
+public class EditJournalTest {
+
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        journalFile = File.createTempFile("edits", "-journal");
+    }
+
+    @After
+    public void tearDown()
+    {
+        journalFile.delete();
+    }
+
+    @Test
+    public void crashBeforeCheckpointTest() throws Exception
+    {
+        EditJournal journal = new EditJournal(journalFile.getPath());
+        journal.append(Edit.insertTrace(4, 2));
+        journal.append(Edit.setTrace(4, new Integer[]{10, 11, 12}));
+        journal.append(Edit.summaryTrace(1L << 33, 5, 4));
+        journal.sync();
+
+        // appended but never synced, lost in the crash
+        journal.append(Edit.setTrace(-1, new Integer[]{13}));
+
+        // crash: the journal is never reset by a checkpoint
+        journal.close();
+
+        List<Edit> edits = replay();
+        Assert.assertEquals(3, edits.size());
+
+        Assert.assertEquals(EditType.InsertTrace, edits.get(0).type);
+        Assert.assertEquals(4, edits.get(0).traceID);
+        Assert.assertEquals(2, edits.get(0).envelopeID);
+
+        Assert.assertEquals(EditType.SetTrace, edits.get(1).type);
+        Assert.assertEquals(4, edits.get(1).traceID);
+        Assert.assertArrayEquals(new Integer[]{10, 11, 12}, edits.get(1).pointIDs);
+
+        Assert.assertEquals(EditType.SummaryTrace, edits.get(2).type);
+        Assert.assertEquals(1L << 33, edits.get(2).summaryIndex);
+        Assert.assertEquals(5, edits.get(2).index);
+        Assert.assertEquals(4, edits.get(2).traceID);
+    }
+
+    @Test
+    public void tornTailTest() throws Exception
+    {
+        writeSetTraces(3);
+
+        // the last record is cut short
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        EditJournal journal = new EditJournal(journalFile.getPath());
+        Assert.assertEquals(2, journal.replay().size());
+
+        // the torn record is truncated away, appends follow the valid records
+        journal.append(Edit.setTrace(9, new Integer[]{9}));
+        journal.sync();
+        journal.close();
+
+        List<Edit> edits = replay();
+        Assert.assertEquals(3, edits.size());
+        Assert.assertEquals(1, edits.get(1).traceID);
+        Assert.assertEquals(9, edits.get(2).traceID);
+    }
+
+    @Test
+    public void corruptRecordTest() throws Exception
+    {
+        writeSetTraces(3);
+
+        // flip a byte of the second record's contents
+        int recordNumBytes = 8 + 9 + 4;
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            long position = recordNumBytes + 8 + 3;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0x40);
+        }
+
+        // the corrupt record ends the journal
+        List<Edit> edits = replay();
+        Assert.assertEquals(1, edits.size());
+        Assert.assertEquals(0, edits.get(0).traceID);
+        Assert.assertEquals(recordNumBytes, journalFile.length());
+    }
+
+    @Test
+    public void resetTest() throws Exception
+    {
+        EditJournal journal = new EditJournal(journalFile.getPath());
+        journal.append(Edit.setTrace(1, new Integer[]{1}));
+        journal.sync();
+        Assert.assertFalse(journal.isEmpty());
+
+        // checkpointed, including a buffered edit
+        journal.append(Edit.setTrace(2, new Integer[]{2}));
+        journal.reset();
+        Assert.assertTrue(journal.isEmpty());
+        journal.sync();
+        journal.close();
+
+        Assert.assertEquals(0, journalFile.length());
+        Assert.assertEquals(0, replay().size());
+    }
+
+    @Test
+    public void concurrentSyncTest() throws Exception
+    {
+        int numThreads = 8;
+        int numEdits = 200;
+        EditJournal journal = new EditJournal(journalFile.getPath());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // each thread appends and syncs its edits, as journalEdit and commitEdits do
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int traceID = t + 1;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < numEdits; i++) {
+                        journal.append(Edit.setTrace(traceID, new Integer[]{i}));
+                        journal.sync();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        Assert.assertNull(failure.get());
+
+        // crash after the last sync
+        journal.close();
+
+        // every synced edit is durable, in each thread's order
+        int[] next = new int[numThreads + 1];
+        List<Edit> edits = replay();
+        Assert.assertEquals(numThreads * numEdits, edits.size());
+        for (Edit edit : edits)
+            Assert.assertEquals(next[edit.traceID]++, (int) edit.pointIDs[0]);
+    }
+
+    @Test
+    public void interruptedSyncTest() throws Exception
+    {
+        EditJournal journal = new EditJournal(journalFile.getPath());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean stillInterrupted = new AtomicBoolean();
+
+        // an interrupted writer, as by Stop Trace during segmentation
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.currentThread().interrupt();
+                journal.append(Edit.setTrace(1, new Integer[]{1}));
+                journal.sync();
+                stillInterrupted.set(Thread.currentThread().isInterrupted());
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        writer.join();
+
+        Assert.assertNull(failure.get());
+        Assert.assertTrue("interrupt status is kept", stillInterrupted.get());
+
+        // the journal stays usable
+        journal.append(Edit.setTrace(2, new Integer[]{2}));
+        journal.sync();
+        journal.close();
+        Assert.assertEquals(2, replay().size());
+    }
+
+    /* Journals numEdits single point edits with traceIDs 0, 1, ... and closes the journal */
+    private void writeSetTraces(int numEdits) throws Exception
+    {
+        EditJournal journal = new EditJournal(journalFile.getPath());
+        for (int i = 0; i < numEdits; i++) {
+            journal.append(Edit.setTrace(i, new Integer[]{100 + i}));
+            journal.sync();
+        }
+        journal.close();
+    }
+
+    /* Replays the journal file from a new journal, as when reopening after a crash */
+    private List<Edit> replay() throws Exception
+    {
+        EditJournal journal = new EditJournal(journalFile.getPath());
+        try {
+            return journal.replay();
+        } finally {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package edu.msViz.mzTree.storage;
+
+import edu.msViz.mzTree.MsDataPoint;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that an interrupt during point file I/O does not close the file
+ * for later queries and edits
+ */
+public class FilePointEngineTest {
+
+    private static final int NUM_POINTS = 100;
+
+    private File pointFile;
+    private FilePointEngine engine;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        pointFile = File.createTempFile("points", ".bin");
+        engine = new FilePointEngine(pointFile.getPath());
+        for (int i = 0; i < NUM_POINTS; i++)
+            engine.insert(new MsDataPoint(0, 100.0 + i, 0.5f * i, 10.0 * i));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        engine.close();
+        pointFile.delete();
+    }
+
+    @Test
+    public void interruptedReaderTest() throws Exception
+    {
+        AtomicReference<MsDataPoint> read = new AtomicReference<>();
+        AtomicBoolean stillInterrupted = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+            try {
+                // interrupted before the read, as by Stop Trace during a segmentation query
+                Thread.currentThread().interrupt();
+                read.set(engine.selectPoint(7));
+                stillInterrupted.set(Thread.currentThread().isInterrupted());
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        reader.start();
+        reader.join();
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(107.0, read.get().mz, 0);
+        Assert.assertTrue("interrupt status is restored", stillInterrupted.get());
+
+        // the file stays usable for every other thread
+        Assert.assertEquals(150.0, engine.selectPoint(50).mz, 0);
+        engine.updatePointTrace(50, 3);
+        Assert.assertEquals(3, engine.selectPoint(50).traceID);
+    }
+
+    @Test
+    public void interruptedWriterTest() throws Exception
+    {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.currentThread().interrupt();
+                engine.updatePointTrace(20, 5);
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        writer.start();
+        writer.join();
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(5, engine.selectPoint(20).traceID);
+        Assert.assertEquals(NUM_POINTS - 1, engine.selectPoint(NUM_POINTS - 1).intensity / 10.0, 0);
+    }
+}
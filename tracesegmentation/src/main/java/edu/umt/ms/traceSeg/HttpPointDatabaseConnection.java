@@ -16,6 +16,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 /**
  * Implements PointDatabaseConnection over HTTP for use with MsDataServer or a compatible interface
@@ -110,8 +111,45 @@ class HttpPointDatabaseConnection implements PointDatabaseConnection {
     }
 
     public void writePoint(int traceId, Point point) throws IOException {
-        String requestText = "[{\"type\": \"set-trace\", \"trace\": " + traceId
-                + ",\"points\": [" + point.id + "]}]";
+        writeTrace(traceId, new int[] { point.id });
+    }
+
+    /**
+     * Assigns the points to the trace with a single updatesegmentation request
+     */
+    public void writeTrace(int traceId, int[] pointIds) throws IOException {
+        StringBuilder requestText = new StringBuilder("[");
+        appendSetTrace(requestText, traceId, pointIds);
+        requestText.append(']');
+        postSegmentation(requestText.toString());
+    }
+
+    /**
+     * Assigns the points of every trace with a single updatesegmentation request,
+     * holding one set-trace action per trace
+     */
+    public void writeTraces(Map<Integer, int[]> traces) throws IOException {
+        if (traces.isEmpty()) { return; }
+
+        StringBuilder requestText = new StringBuilder("[");
+        for (Map.Entry<Integer, int[]> trace : traces.entrySet()) {
+            if (requestText.length() > 1) { requestText.append(','); }
+            appendSetTrace(requestText, trace.getKey(), trace.getValue());
+        }
+        requestText.append(']');
+        postSegmentation(requestText.toString());
+    }
+
+    private static void appendSetTrace(StringBuilder requestText, int traceId, int[] pointIds) {
+        requestText.append("{\"type\": \"set-trace\", \"trace\": ").append(traceId).append(",\"points\": [");
+        for (int i = 0; i < pointIds.length; i++) {
+            if (i > 0) { requestText.append(','); }
+            requestText.append(pointIds[i]);
+        }
+        requestText.append("]}");
+    }
+
+    private void postSegmentation(String requestText) throws IOException {
         HttpEntity requestEntity = new StringEntity(requestText);
 
         URI uri = serverRoot.resolve(API_PATH).resolve("updatesegmentation");
@@ -7,6 +7,8 @@ import java.util.*;
  *     * the highest point that has not yet been segmented
  *     * the next available ID for a trace
  *     * a system for assigning a point to a trace
+ * Points should be assigned in bulk through writeTrace or writeTraces, which
+ * apply a whole batch in a single transaction or request
  */
 public interface PointDatabaseConnection {
     List<Point> getAllPoints(double minMz, double maxMz, float minRt, float maxRt, double minIntensity) throws Exception;
@@ -16,5 +18,7 @@ public interface PointDatabaseConnection {
     Point getHighestUnassignedPoint() throws Exception;
     int getNextTraceId() throws Exception;
     void writePoint(int traceId, Point point) throws Exception;
+    void writeTrace(int traceId, int[] pointIds) throws Exception;
+    void writeTraces(Map<Integer, int[]> traces) throws Exception;
     double getMzResolution(double nearMz) throws Exception;
 }
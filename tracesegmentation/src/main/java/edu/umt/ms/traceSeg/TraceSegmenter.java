@@ -19,6 +19,9 @@ public class TraceSegmenter {
     private double SMALL_STD_DEV = 0;
 
     int pointLimit = 10;
+
+    // number of points assigned per writeTraces call
+    static final int WRITE_BATCH_SIZE = 65536;
   
     int GRIDX = 1;
     int GRIDY = 1;
@@ -281,15 +284,32 @@ public class TraceSegmenter {
         }
       }
 
+      // traces are written in batches of about WRITE_BATCH_SIZE points
+      Map<Integer, int[]> batch = new HashMap<Integer, int[]>();
+      int batchSize = 0;
+
       Set<Integer> keys = traceMap.keySet();
       int nextTraceId = 0;
       for(Integer key: keys){
-        if(traceMap.get(key).size() > pointLimit){
-          for(int i = 0; i < traceMap.get(key).size(); i++){
-            connection.writePoint(nextTraceId, traceMap.get(key).get(i));
+        ArrayList<Point> tracePoints = traceMap.get(key);
+        if(tracePoints.size() > pointLimit){
+          int[] pointIds = new int[tracePoints.size()];
+          for(int i = 0; i < tracePoints.size(); i++){
+            pointIds[i] = tracePoints.get(i).id;
           }
+          batch.put(nextTraceId, pointIds);
+          batchSize += pointIds.length;
           ++nextTraceId;
+
+          if(batchSize >= WRITE_BATCH_SIZE){
+            connection.writeTraces(batch);
+            batch.clear();
+            batchSize = 0;
+          }
         }
       }
+      if(!batch.isEmpty()){
+        connection.writeTraces(batch);
+      }
     }
 }
@@ -54,6 +54,12 @@ public class IsotopeTrace {
      */
     public Double intensitySum;
 
+    /**
+     * RT value of the most intense point in trace
+     * (0 for precompiled traces not given one)
+     */
+    public float apexRT;
+
     /**
      * map of RT value to intensity of point nearest centroidMZ
      */
@@ -97,6 +103,7 @@ public class IsotopeTrace {
         this.minRT = Float.MAX_VALUE;
         this.maxRT = Float.MIN_VALUE;
         this.intensitySum = 0.0;
+        double apexIntensity = Double.NEGATIVE_INFINITY;
 
         // iterate through each point
         for(int i = 0; i < mzValues.size(); i++)
@@ -110,6 +117,13 @@ public class IsotopeTrace {
             this.minRT = rt < this.minRT ? rt : this.minRT;
             this.maxRT = rt > this.maxRT ? rt : this.maxRT;
 
+            // keep the most intense point's RT
+            if(intensity > apexIntensity)
+            {
+                apexIntensity = intensity;
+                this.apexRT = rt;
+            }
+
             // sort into scans
             if(scans.containsKey(rt))
                 scans.get(rt).add(mz, intensity);
@@ -212,11 +226,15 @@ public class IsotopeTrace {
     }
 
     /**
-     * Returns the RT value of the maximum intensity entry from the trace's arc
+     * Returns the RT value of the maximum intensity entry from the trace's arc.
+     * Precompiled traces have no arc and return the RT of their most intense point
      * @return RT value of maximum intensity entry in arc
      */
     public float getMaxIntensityRT()
     {
+        if(this.arc == null)
+            return this.apexRT;
+
         return this.arc.entrySet().stream().max(Comparator.comparing(d -> d.getValue())).get().getKey();
     }
 
@@ -72,6 +72,25 @@ public class IsotopeTraceTest {
         
         // test computed arc
         Assert.assertEquals(expectedArc, trace.arc);
+
+        // most intense point
+        Assert.assertEquals(2.0, trace.apexRT, DELTA);
+        Assert.assertEquals(2.0, trace.getMaxIntensityRT(), DELTA);
+    }
+    
+    @Test
+    public void precompiledApexTest()
+    {
+        // precompiled traces have no arc, the apex RT is given
+        IsotopeTrace precompiled = new IsotopeTrace(1, 1.0, 0.5f, 3.0f, 28.5);
+        precompiled.apexRT = 2.5f;
+        
+        Assert.assertNull(precompiled.arc);
+        Assert.assertEquals(2.5, precompiled.getMaxIntensityRT(), DELTA);
+        
+        // without a given apex
+        IsotopeTrace noApex = new IsotopeTrace(2, 1.0, 0.5f, 3.0f, 28.5);
+        Assert.assertEquals(0.0, noApex.getMaxIntensityRT(), DELTA);
     }
     
     @Test